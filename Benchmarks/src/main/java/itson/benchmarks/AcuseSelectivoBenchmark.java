@@ -0,0 +1,140 @@
+package itson.benchmarks;
+
+import itson.clientearchivos.Protocolo;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Codificación y lectura de los acuses selectivos (NACK). El cliente recorre su mapa de
+ * paquetes recibidos y escribe los huecos como rangos en varint, repartidos en datagramas de
+ * {@link #TAMANO_MAXIMO_ACUSE} bytes, igual que {@code TransferenciaProxy}; el servidor lee los
+ * rangos de cada datagrama igual que {@code ManejadorCliente}. Los huecos salen de una pérdida
+ * aleatoria con la tasa indicada.
+ * @author asielapodaca
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcuseSelectivoBenchmark {
+    private static final int TAMANO_MAXIMO_ACUSE = 1024;
+    private static final int ENCABEZADO_ACUSE = 11; // [tipo][id][base][cantidad de rangos]
+
+    @Param({"16384", "262144"})
+    private int totalPaquetes;
+
+    @Param({"0.001", "0.01", "0.1"})
+    private double perdida;
+
+    private BitSet recibidos;
+    private final ByteBuffer solicitud = ByteBuffer.allocate(TAMANO_MAXIMO_ACUSE);
+    private final CRC32C crc = new CRC32C();
+    private List<ByteBuffer> datagramas;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        Random aleatorio = new Random(1);
+        recibidos = new BitSet(totalPaquetes);
+        for (int i = 0; i < totalPaquetes; i++) {
+            if (aleatorio.nextDouble() >= perdida) {
+                recibidos.set(i);
+            }
+        }
+        datagramas = new ArrayList<>();
+        codificar(datagramas);
+    }
+
+    /**
+     * Escribe todos los huecos en acuses selectivos.
+     *
+     * @return Datagramas escritos.
+     */
+    @Benchmark
+    public int codificarHuecos() {
+        return codificar(null);
+    }
+
+    /**
+     * Lee los rangos de todos los acuses selectivos.
+     *
+     * @return Paquetes pedidos en total.
+     */
+    @Benchmark
+    public long leerHuecos() {
+        long solicitados = 0;
+        for (ByteBuffer datagrama : datagramas) {
+            ByteBuffer mensaje = datagrama.duplicate();
+            if (!itson.servidorarchivos.Protocolo.verificarSello(crc, mensaje)) {
+                throw new IllegalStateException("Acuse corrupto");
+            }
+            mensaje.position(Byte.BYTES + Integer.BYTES);
+            int inicioRango = mensaje.getInt();
+            int cantidadRangos = Short.toUnsignedInt(mensaje.getShort());
+            for (int r = 0; r < cantidadRangos; r++) {
+                inicioRango += itson.servidorarchivos.Protocolo.leerVarint(mensaje);
+                int finRango = inicioRango + itson.servidorarchivos.Protocolo.leerVarint(mensaje);
+                solicitados += finRango - inicioRango;
+                inicioRango = finRango;
+            }
+        }
+        return solicitados;
+    }
+
+    /**
+     * @param copias Lista donde se guarda una copia de cada datagrama, o null.
+     */
+    private int codificar(List<ByteBuffer> copias) {
+        int cantidadDatagramas = 0;
+        int inicioFaltante = recibidos.nextClearBit(0);
+        while (inicioFaltante < totalPaquetes) {
+            solicitud.clear();
+            solicitud.put(Protocolo.ACUSE_SELECTIVO);
+            solicitud.putInt(1);
+            solicitud.putInt(inicioFaltante);
+            solicitud.putShort((short) 0);
+
+            int finAnterior = inicioFaltante;
+            int cantidadRangos = 0;
+            while (inicioFaltante < totalPaquetes
+                    && solicitud.remaining() >= Protocolo.TAMANO_MAXIMO_RANGO + Integer.BYTES
+                    && cantidadRangos < 0xFFFF) {
+                int finFaltante = recibidos.nextSetBit(inicioFaltante);
+                if (finFaltante < 0 || finFaltante > totalPaquetes) {
+                    finFaltante = totalPaquetes;
+                }
+                Protocolo.escribirVarint(solicitud, inicioFaltante - finAnterior);
+                Protocolo.escribirVarint(solicitud, finFaltante - inicioFaltante);
+                cantidadRangos++;
+                finAnterior = finFaltante;
+                inicioFaltante = recibidos.nextClearBit(finFaltante);
+            }
+            solicitud.putShort(ENCABEZADO_ACUSE - Short.BYTES, (short) cantidadRangos);
+            Protocolo.sellar(crc, solicitud);
+            solicitud.flip();
+            if (copias != null) {
+                copias.add(ByteBuffer.allocate(solicitud.remaining()).put(solicitud).flip());
+            }
+            cantidadDatagramas++;
+        }
+        return cantidadDatagramas;
+    }
+}
@@ -0,0 +1,123 @@
+package itson.benchmarks;
+
+import itson.servidorarchivos.CacheBloques;
+import itson.servidorarchivos.IdentidadArchivo;
+import itson.servidorarchivos.Protocolo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Armado y verificación de un paquete de datos, el trabajo que se hace por cada paquete en
+ * ambos extremos: el servidor escribe el encabezado, copia los datos desde la
+ * {@link CacheBloques} y calcula su CRC32C, igual que {@code TransmisionArchivo}; el cliente
+ * vuelve a calcular el CRC sobre el datagrama recibido y el aporte del paquete a la huella,
+ * igual que {@code TransferenciaProxy}. El archivo completo cabe en la caché, así que se mide
+ * la copia desde memoria y no la lectura del disco.
+ * @author asielapodaca
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntramadoBenchmark {
+    private static final int TAMANO_ARCHIVO = 4 * 1024 * 1024;
+
+    @Param({"1024", "8192", "65000"})
+    private int tamanoFragmento;
+
+    private Path archivo;
+    private FileChannel canal;
+    private IdentidadArchivo identidad;
+    private CacheBloques cache;
+    private ByteBuffer buffer;
+    private ByteBuffer recibido;
+    private final CRC32C crc = new CRC32C();
+    private int totalPaquetes;
+    private int idPaquete;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        byte[] contenido = new byte[TAMANO_ARCHIVO];
+        new Random(1).nextBytes(contenido);
+        archivo = Files.createTempFile("entramado", ".bin");
+        Files.write(archivo, contenido);
+        canal = FileChannel.open(archivo, StandardOpenOption.READ);
+        identidad = IdentidadArchivo.de(archivo.toFile());
+        cache = new CacheBloques(2L * TAMANO_ARCHIVO);
+        buffer = ByteBuffer.allocateDirect(Protocolo.TAMANO_ENCABEZADO_DATOS + tamanoFragmento);
+        totalPaquetes = TAMANO_ARCHIVO / tamanoFragmento;
+
+        // Primera pasada para llenar la caché y dejar un paquete listo para verificar
+        for (int i = 0; i < totalPaquetes; i++) {
+            armarPaquete();
+        }
+        recibido = ByteBuffer.allocateDirect(buffer.capacity());
+        recibido.put(buffer.duplicate()).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() throws IOException {
+        canal.close();
+        Files.deleteIfExists(archivo);
+    }
+
+    /**
+     * Arma el siguiente paquete del archivo como lo hace el servidor antes de enviarlo.
+     */
+    @Benchmark
+    public int armarPaquete() throws IOException {
+        int id = idPaquete;
+        idPaquete = id + 1 == totalPaquetes ? 0 : id + 1;
+        long posicion = (long) id * tamanoFragmento;
+        buffer.clear();
+        Protocolo.escribirEncabezado(buffer, Protocolo.DATOS, 0);
+        buffer.putLong(posicion);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.limit(Protocolo.TAMANO_ENCABEZADO_DATOS + tamanoFragmento);
+        cache.leer(identidad, canal, posicion, buffer);
+        buffer.flip();
+        int crcPaquete = Protocolo.calcularCrc(crc, posicion, buffer, Protocolo.TAMANO_ENCABEZADO_DATOS);
+        buffer.putInt(Protocolo.TAMANO_ENCABEZADO_DATOS - 4, crcPaquete);
+        return crcPaquete;
+    }
+
+    /**
+     * Verifica un paquete recibido y calcula su aporte a la huella como lo hace el cliente.
+     */
+    @Benchmark
+    public long verificarPaquete() {
+        ByteBuffer vista = recibido.duplicate();
+        vista.position(Protocolo.TAMANO_ENCABEZADO);
+        long posicion = vista.getLong();
+        vista.getInt();
+        int crcPaquete = vista.getInt();
+        int calculado = itson.clientearchivos.Protocolo.calcularCrc(crc, posicion, vista, vista.position());
+        if (calculado != crcPaquete) {
+            throw new IllegalStateException("CRC incorrecto");
+        }
+        return itson.clientearchivos.Protocolo.terminoHuella((int) (posicion / tamanoFragmento), crcPaquete);
+    }
+}
@@ -0,0 +1,109 @@
+package itson.benchmarks;
+
+import itson.clientearchivos.DiarioDescarga;
+import itson.clientearchivos.EscritorAgrupado;
+import itson.clientearchivos.Protocolo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reensamblado del archivo en el cliente: cada lote de datagramas recibidos se escribe en su
+ * posición del archivo de destino y se marca en el {@link DiarioDescarga}. Compara el
+ * {@link EscritorAgrupado}, que junta los paquetes consecutivos en una sola escritura, con
+ * una escritura posicional por paquete. Los resultados son por paquete.
+ * @author asielapodaca
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EscrituraBenchmark {
+    private static final int PAQUETES_POR_LOTE = 64; // Datagramas que entrega un lote de recepción
+    private static final int TAMANO_ARCHIVO = 64 * 1024 * 1024;
+
+    @Param({"1024", "8192"})
+    private int tamanoFragmento;
+
+    private Path destino;
+    private FileChannel canal;
+    private DiarioDescarga diario;
+    private EscritorAgrupado escritor;
+    private ByteBuffer datos;
+    private int totalPaquetes;
+    private int siguientePaquete;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        destino = Files.createTempFile("escritura", ".bin");
+        canal = FileChannel.open(destino, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        totalPaquetes = TAMANO_ARCHIVO / tamanoFragmento;
+        diario = DiarioDescarga.abrir(destino);
+        diario.preparar(1, TAMANO_ARCHIVO, tamanoFragmento, totalPaquetes, Protocolo.CODEC_NINGUNO, TAMANO_ARCHIVO);
+        escritor = new EscritorAgrupado(canal, diario, tamanoFragmento);
+        byte[] contenido = new byte[tamanoFragmento];
+        new Random(1).nextBytes(contenido);
+        datos = ByteBuffer.allocateDirect(tamanoFragmento).put(contenido).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() throws IOException {
+        canal.close();
+        diario.eliminar();
+        Files.deleteIfExists(destino);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAQUETES_POR_LOTE)
+    public void escribirAgrupado() throws IOException {
+        int primero = siguienteLote();
+        for (int i = primero; i < primero + PAQUETES_POR_LOTE; i++) {
+            escritor.agregar(i, (long) i * tamanoFragmento, datos.duplicate(), i);
+        }
+        escritor.vaciar();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAQUETES_POR_LOTE)
+    public void escribirPorPaquete() throws IOException {
+        int primero = siguienteLote();
+        for (int i = primero; i < primero + PAQUETES_POR_LOTE; i++) {
+            ByteBuffer paquete = datos.duplicate();
+            long posicion = (long) i * tamanoFragmento;
+            while (paquete.hasRemaining()) {
+                canal.write(paquete, posicion + paquete.position());
+            }
+            diario.marcar(i, i);
+        }
+    }
+
+    private int siguienteLote() {
+        if (siguientePaquete + PAQUETES_POR_LOTE > totalPaquetes) {
+            siguientePaquete = 0;
+        }
+        int primero = siguientePaquete;
+        siguientePaquete += PAQUETES_POR_LOTE;
+        return primero;
+    }
+}
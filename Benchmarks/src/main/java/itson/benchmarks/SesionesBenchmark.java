@@ -0,0 +1,109 @@
+package itson.benchmarks;
+
+import itson.servidorarchivos.ArchivoIndexado;
+import itson.servidorarchivos.CacheBloques;
+import itson.servidorarchivos.ClaveSesion;
+import itson.servidorarchivos.CompresionArchivos;
+import itson.servidorarchivos.HuellasArchivo;
+import itson.servidorarchivos.IdentidadArchivo;
+import itson.servidorarchivos.LimitadorTasa;
+import itson.servidorarchivos.MetricasServidor;
+import itson.servidorarchivos.Protocolo;
+import itson.servidorarchivos.RegistroSesiones;
+import itson.servidorarchivos.SesionTransferenciaArchivo;
+import itson.servidorarchivos.TransmisionArchivo;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Búsqueda de la sesión de cada mensaje de control en el {@link RegistroSesiones}: igual que
+ * {@code ManejadorCliente}, por cada datagrama se crea la {@link ClaveSesion} con la dirección
+ * del cliente y el id de la transferencia y se busca en el registro. Se mide con un hilo, y
+ * con varios a la vez como cuando varios reactores comparten carga.
+ * @author asielapodaca
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SesionesBenchmark {
+    @Param({"100", "10000"})
+    private int sesiones;
+
+    private Path archivo;
+    private RegistroSesiones registro;
+    private InetSocketAddress[] clientes;
+    private int[] ids;
+
+    /**
+     * Cliente cuyo mensaje se busca en cada invocación, distinto en cada hilo.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int siguiente;
+    }
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        archivo = Files.createTempFile("sesiones", ".bin");
+        Files.write(archivo, new byte[64 * 1024]);
+        CacheBloques cache = new CacheBloques(0);
+        ArchivoIndexado indexado = new ArchivoIndexado(archivo.getFileName().toString(), IdentidadArchivo.de(archivo.toFile()));
+        TransmisionArchivo transmision = new TransmisionArchivo(indexado, 0, 1, 1024,
+                Protocolo.CODEC_NINGUNO, cache, new LimitadorTasa(Long.MAX_VALUE, Long.MAX_VALUE),
+                new CompresionArchivos(archivo.getParent().toString()), new HuellasArchivo(),
+                new MetricasServidor(cache), null, 0);
+
+        registro = new RegistroSesiones(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        clientes = new InetSocketAddress[sesiones];
+        ids = new int[sesiones];
+        InetAddress local = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < sesiones; i++) {
+            clientes[i] = new InetSocketAddress(local, 1024 + i % 60000);
+            ids[i] = i * 0x9E3779B9;
+            ClaveSesion clave = new ClaveSesion(clientes[i], ids[i]);
+            registro.registrar(clave, SesionTransferenciaArchivo.crear(clave, transmision, false, null));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() throws IOException {
+        for (SesionTransferenciaArchivo sesion : registro.getSesiones()) {
+            sesion.close();
+        }
+        Files.deleteIfExists(archivo);
+    }
+
+    @Benchmark
+    public SesionTransferenciaArchivo buscarSesion(Cursor cursor) {
+        int i = cursor.siguiente;
+        cursor.siguiente = i + 1 == sesiones ? 0 : i + 1;
+        return registro.obtener(new ClaveSesion(clientes[i], ids[i]));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SesionTransferenciaArchivo buscarSesionConcurrente(Cursor cursor) {
+        return buscarSesion(cursor);
+    }
+}
@@ -0,0 +1,32 @@
+package itson.clientearchivos;
+
+/**
+ * Un archivo que ofrece el servidor, tal como llega en su listado.
+ * @author asielapodaca
+ */
+public class ArchivoRemoto {
+    private final String nombre;
+    private final long tamano;
+    private final long fechaModificacion;
+
+    public ArchivoRemoto(String nombre, long tamano, long fechaModificacion) {
+        this.nombre = nombre;
+        this.tamano = tamano;
+        this.fechaModificacion = fechaModificacion;
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    public long getTamano() {
+        return tamano;
+    }
+
+    /**
+     * @return Fecha de modificación en milisegundos desde 1970, según el reloj del servidor.
+     */
+    public long getFechaModificacion() {
+        return fechaModificacion;
+    }
+}
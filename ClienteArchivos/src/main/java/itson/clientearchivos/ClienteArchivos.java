@@ -1,34 +1,100 @@
 package itson.clientearchivos;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramSocket;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class ClienteArchivos {
-    private static final String SERVIDOR = "localhost";
-    private static final int PUERTO_SERVIDOR = 5000;
+    private static final String SERVIDOR = System.getProperty("cliente.servidor", "localhost");
+    private static final int PUERTO_SERVIDOR = Integer.getInteger("cliente.puerto", 5000);
     private static final int TAMANO_BUFFER = 1024;
     private static final int TIEMPO_ESPERA = 2000; // 2 segundos
     private static final int MAX_INTENTOS = 5;
+    // Sockets con los que se descarga el archivo en paralelo (1 = descarga normal)
+    private static final int FLUJOS = Integer.getInteger("cliente.flujos", 1);
     
     public static void main(String[] args) {
-        try (DatagramSocket socket = new DatagramSocket()) {
+        try (DatagramChannel canal = DatagramChannel.open()) {
             Scanner scanner = new Scanner(System.in);
-            System.out.println("Ingrese el nombre del archivo a solicitar: ");
-            String nombreArchivo = scanner.nextLine();
+            System.out.println("Ingrese el nombre del archivo a solicitar, o varios separados por comas o un patrón"
+                    + " como *.txt (vacío para ver los archivos disponibles): ");
+            String nombreArchivo = scanner.nextLine().trim();
+            if (nombreArchivo.isEmpty()) {
+                mostrarListado(new TransferenciaProxy(canal, SERVIDOR, PUERTO_SERVIDOR));
+                System.out.println("Ingrese el nombre del archivo a solicitar: ");
+                if (!scanner.hasNextLine()) {
+                    return;
+                }
+                nombreArchivo = scanner.nextLine().trim();
+            }
             
-            TransferenciaProxy proxy = new TransferenciaProxy(socket, SERVIDOR, PUERTO_SERVIDOR);
-            byte[] fileData = proxy.solicitarArchivo(nombreArchivo);
+            if (esLote(nombreArchivo)) {
+                solicitarLote(new TransferenciaProxy(canal, SERVIDOR, PUERTO_SERVIDOR), nombreArchivo);
+                return;
+            }
+            Path destino = Paths.get("archivo_recibido_" + nombreArchivo);
+            long inicio = System.nanoTime();
+            boolean recibido;
+            if (FLUJOS > 1) {
+                recibido = new DescargaParalela(SERVIDOR, PUERTO_SERVIDOR, FLUJOS).descargar(nombreArchivo, destino);
+            } else {
+                TransferenciaProxy proxy = new TransferenciaProxy(canal, SERVIDOR, PUERTO_SERVIDOR);
+                recibido = proxy.solicitarArchivo(nombreArchivo, destino);
+            }
             
-            if (fileData != null) {
-                try (FileOutputStream fos = new FileOutputStream("archivo_recibido_" + nombreArchivo)) {
-                    fos.write(fileData);
-                    System.out.println("Archivo recibido correctamente y guardado como 'archivo_recibido_" + nombreArchivo + "'.");
-                }
+            if (recibido) {
+                System.out.println("Archivo recibido correctamente y guardado como 'archivo_recibido_" + nombreArchivo + "'.");
+                // Goodput: bytes útiles del archivo entre el tiempo total de la descarga
+                double segundos = (System.nanoTime() - inicio) / 1e9;
+                System.out.printf("Tiempo: %.2f s, goodput: %.2f MB/s%n", segundos,
+                        Files.size(destino) / segundos / (1024 * 1024));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * @return true si se piden varios archivos: una lista separada por comas o un patrón glob.
+     */
+    private static boolean esLote(String entrada) {
+        for (char c : ",*?[{".toCharArray()) {
+            if (entrada.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void solicitarLote(TransferenciaProxy proxy, String entrada) throws IOException {
+        List<String> patrones = new ArrayList<>();
+        for (String patron : entrada.split(",")) {
+            if (!patron.trim().isEmpty()) {
+                patrones.add(patron.trim());
+            }
+        }
+        long inicio = System.nanoTime();
+        long bytes = proxy.solicitarLote(patrones, "archivo_recibido_");
+        if (bytes >= 0) {
+            // Goodput: bytes útiles de los archivos íntegros entre el tiempo total del lote
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            System.out.printf("Tiempo: %.2f s, goodput: %.2f MB/s%n", segundos, bytes / segundos / (1024 * 1024));
+        }
+    }
+
+    private static void mostrarListado(TransferenciaProxy proxy) throws IOException {
+        List<ArchivoRemoto> archivos = proxy.listarArchivos();
+        if (archivos == null) {
+            return;
+        }
+        System.out.println(archivos.size() + " archivos disponibles:");
+        for (ArchivoRemoto archivo : archivos) {
+            System.out.printf("  %-40s %,15d bytes%n", archivo.getNombre(), archivo.getTamano());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package itson.clientearchivos;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Descarga un archivo por varios sockets a la vez. El archivo se divide en tantas partes
+ * como flujos; cada flujo tiene su propio socket y su propio hilo, y el servidor atiende
+ * cada parte como una sesión independiente. Como el servidor reparte los sockets entre sus
+ * reactores, la descarga de un archivo grande aprovecha varios núcleos en ambos extremos.
+ *
+ * Todas las partes escriben en el mismo archivo de destino, cada paquete en su posición, y
+ * marcan su progreso en el mismo diario, así que una descarga interrumpida puede reanudarse
+ * aunque se haga con otra cantidad de flujos.
+ * @author asielapodaca
+ */
+public class DescargaParalela {
+    private final String servidorHost;
+    private final int servidorPuerto;
+    private final int flujos;
+
+    public DescargaParalela(String servidorHost, int servidorPuerto, int flujos) {
+        this.servidorHost = servidorHost;
+        this.servidorPuerto = servidorPuerto;
+        this.flujos = flujos;
+    }
+
+    /**
+     * Descarga el archivo completo repartido entre los flujos.
+     *
+     * @param nombreArchivo Nombre del archivo en el servidor.
+     * @param destino Ruta donde se guarda el archivo recibido.
+     * @return true si todas las partes se recibieron completas y el archivo es íntegro.
+     */
+    public boolean descargar(String nombreArchivo, Path destino) throws IOException {
+        boolean completo = true;
+        ExecutorService ejecutor = Executors.newFixedThreadPool(flujos);
+        DiarioDescarga diario = DiarioDescarga.abrir(destino);
+        try (RandomAccessFile archivo = TransferenciaProxy.abrirDestino(destino, diario)) {
+            List<Future<Boolean>> partes = new ArrayList<>();
+            for (int i = 0; i < flujos; i++) {
+                int parte = i;
+                partes.add(ejecutor.submit(() -> {
+                    try (DatagramChannel canal = DatagramChannel.open()) {
+                        TransferenciaProxy proxy = new TransferenciaProxy(canal, servidorHost, servidorPuerto);
+                        return proxy.solicitarParte(nombreArchivo, parte, flujos, archivo, diario);
+                    }
+                }));
+            }
+
+            for (Future<Boolean> parte : partes) {
+                try {
+                    completo &= parte.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    completo = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    completo = false;
+                }
+            }
+        } finally {
+            ejecutor.shutdownNow();
+        }
+
+        return TransferenciaProxy.terminarDescarga(destino, diario, completo);
+    }
+}
@@ -0,0 +1,419 @@
+package itson.clientearchivos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Destino de un lote de archivos pedidos en una sola sesión. El rango de paquetes del lote
+ * empieza con el manifiesto, que se guarda en memoria; cuando llega completo y coincide con su
+ * huella se sabe en qué paquete empieza cada archivo, y los paquetes siguientes se escriben en
+ * su archivo con un {@link EscritorAgrupado} que pasa de un archivo al siguiente. Los paquetes
+ * de archivos que llegan antes que el manifiesto completo se descartan y se piden de nuevo como
+ * cualquier pérdida.
+ *
+ * Cada archivo termina con un paquete de 8 bytes con su huella según el servidor, y se termina
+ * en cuanto tiene todos sus paquetes: en un hilo aparte se compara su huella con la de ese
+ * paquete, se descomprime si llegó comprimido y se deja con su nombre,
+ * mientras siguen llegando los demás. Con paridad se espera además a que estén completos los
+ * bloques que comparte con sus vecinos, porque la reconstrucción de un paquete lee a los demás
+ * de su grupo. Solo quedan abiertos los {@link #MAX_ABIERTOS} archivos usados más recientemente.
+ * @author asielapodaca
+ */
+public class DestinoLote {
+    private static final int MAX_ABIERTOS = 64;
+    private static final int HILOS_FINALIZACION = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final String prefijoDestino;
+    private final int totalPaquetes;
+    private final int tamanoFragmento;
+    private final int paquetesPorBloque;
+    private final BitSet paquetesRecibidos;
+    private final byte[] manifiesto;
+    private final int paquetesManifiesto;
+    private final long huellaManifiesto;
+    private long huellaRecibida;           // Huella acumulada de los paquetes del manifiesto
+    private int manifiestoRecibidos;
+    private Archivo[] archivos;            // null hasta que el manifiesto llega completo
+    private int[] finArchivos;             // Paquete siguiente al último de cada archivo
+    private final EscritorAgrupado escritor;
+    // Archivos abiertos, del usado hace más tiempo al más reciente
+    private final LinkedHashMap<Archivo, Boolean> abiertos = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Archivo> completos = new ArrayList<>(); // Completos que esperan la paridad de sus vecinos
+    private final ExecutorService finalizador = Executors.newFixedThreadPool(HILOS_FINALIZACION, r -> {
+        Thread hilo = new Thread(r, "finalizador-lote");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+    private final List<Future<Boolean>> terminados = new ArrayList<>();
+    private final AtomicLong bytesRecibidos = new AtomicLong();
+
+    /**
+     * @param prefijoDestino Ruta a la que se agrega el nombre de cada archivo para guardarlo.
+     * @param totalPaquetes Paquetes del lote, incluido el manifiesto.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     * @param tamanoManifiesto Bytes del manifiesto, según los metadatos.
+     * @param huellaManifiesto Huella del manifiesto, según los metadatos.
+     * @param paquetesPorBloque Paquetes de datos por bloque de paridad, o 0 sin paridad.
+     */
+    public DestinoLote(String prefijoDestino, int totalPaquetes, int tamanoFragmento, long tamanoManifiesto,
+            long huellaManifiesto, int paquetesPorBloque) throws IOException {
+        if (tamanoManifiesto < Integer.BYTES || tamanoManifiesto > (long) totalPaquetes * tamanoFragmento) {
+            throw new IOException("El manifiesto del lote no es válido");
+        }
+        this.prefijoDestino = prefijoDestino;
+        this.totalPaquetes = totalPaquetes;
+        this.tamanoFragmento = tamanoFragmento;
+        this.paquetesPorBloque = paquetesPorBloque;
+        this.paquetesRecibidos = new BitSet(totalPaquetes);
+        this.manifiesto = new byte[(int) tamanoManifiesto];
+        this.paquetesManifiesto = (int) ((tamanoManifiesto + tamanoFragmento - 1) / tamanoFragmento);
+        this.huellaManifiesto = huellaManifiesto;
+        this.escritor = new EscritorAgrupado(null, null, tamanoFragmento);
+    }
+
+    public BitSet getPaquetesRecibidos() {
+        return paquetesRecibidos;
+    }
+
+    public EscritorAgrupado getEscritor() {
+        return escritor;
+    }
+
+    /**
+     * @return Archivos del lote, o -1 si el manifiesto todavía no llega completo.
+     */
+    public int getCantidadArchivos() {
+        return archivos != null ? archivos.length : -1;
+    }
+
+    /**
+     * @param numPaquete Número del paquete en el lote.
+     * @return Los bytes de datos del paquete, o -1 si es de un archivo y el manifiesto todavía
+     *         no llega completo.
+     */
+    public int getTamanoPaquete(int numPaquete) {
+        if (numPaquete < paquetesManifiesto) {
+            return Math.min(tamanoFragmento, manifiesto.length - numPaquete * tamanoFragmento);
+        }
+        if (archivos == null) {
+            return -1;
+        }
+        Archivo archivo = archivos[buscar(numPaquete)];
+        int numero = numPaquete - archivo.primerPaquete;
+        if (numero == archivo.paquetesDatos) {
+            return Long.BYTES;
+        }
+        return (int) Math.min(tamanoFragmento, archivo.tamano - (long) numero * tamanoFragmento);
+    }
+
+    /**
+     * @param numPaquete Número del paquete en el lote; su tamaño debe conocerse.
+     * @return La posición del paquete dentro de su archivo o del manifiesto, que cubre su CRC.
+     */
+    public long getPosicion(int numPaquete) {
+        if (numPaquete < paquetesManifiesto) {
+            return (long) numPaquete * tamanoFragmento;
+        }
+        return (long) (numPaquete - archivos[buscar(numPaquete)].primerPaquete) * tamanoFragmento;
+    }
+
+    /**
+     * Guarda un paquete ya verificado: los del manifiesto en memoria, los de los archivos en
+     * la escritura agrupada y la huella del paquete final de cada archivo en su diario. Con el
+     * último paquete del manifiesto se leen los archivos del lote.
+     *
+     * @param numPaquete Número del paquete en el lote; su tamaño debe conocerse.
+     * @param datos Datos del paquete entre su posición y su límite; se consumen.
+     * @param crcPaquete CRC32C del paquete, para su aporte a la huella.
+     * @throws IOException Si el manifiesto no coincide con su huella o no es válido.
+     */
+    public void escribir(int numPaquete, ByteBuffer datos, int crcPaquete) throws IOException {
+        if (numPaquete < paquetesManifiesto) {
+            datos.get(manifiesto, numPaquete * tamanoFragmento, datos.remaining());
+            huellaRecibida += Protocolo.terminoHuella(numPaquete, crcPaquete);
+            if (++manifiestoRecibidos == paquetesManifiesto) {
+                leerManifiesto();
+            }
+            return;
+        }
+        Archivo archivo = archivos[buscar(numPaquete)];
+        int numero = numPaquete - archivo.primerPaquete;
+        if (numero == archivo.paquetesDatos) {
+            archivo.huellaServidor = datos.getLong();
+            archivo.diario.sumarHuellaServidor(archivo.huellaServidor);
+        } else {
+            escritor.redirigir(abrir(archivo), archivo.diario);
+            escritor.agregar(numero, (long) numero * tamanoFragmento, datos, Protocolo.terminoHuella(numero, crcPaquete));
+        }
+        if (++archivo.recibidos == archivo.totalPaquetes) {
+            completos.add(archivo);
+        }
+    }
+
+    /**
+     * Lee un paquete ya recibido, para reconstruir otro de su grupo con la paridad. Lo agrupado
+     * debe haberse escrito antes.
+     *
+     * @param numPaquete Número del paquete en el lote.
+     * @param destino Buffer donde se copian los datos, hasta su límite.
+     * @return false si el paquete no se pudo leer.
+     */
+    public boolean leer(int numPaquete, ByteBuffer destino) throws IOException {
+        if (numPaquete < paquetesManifiesto) {
+            destino.put(manifiesto, numPaquete * tamanoFragmento, destino.remaining());
+            return true;
+        }
+        if (archivos == null) {
+            return false;
+        }
+        Archivo archivo = archivos[buscar(numPaquete)];
+        int numero = numPaquete - archivo.primerPaquete;
+        if (numero == archivo.paquetesDatos) {
+            destino.putLong(archivo.huellaServidor);
+            return true;
+        }
+        FileChannel canal = abrir(archivo);
+        long posicion = (long) numero * tamanoFragmento;
+        while (destino.hasRemaining()) {
+            if (canal.read(destino, posicion + destino.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Escribe lo agrupado y manda a terminar los archivos que ya se pueden cerrar.
+     */
+    public void vaciar() throws IOException {
+        escritor.vaciar();
+        for (Iterator<Archivo> it = completos.iterator(); it.hasNext();) {
+            Archivo archivo = it.next();
+            if (vecinosCompletos(archivo)) {
+                it.remove();
+                finalizar(archivo);
+            }
+        }
+    }
+
+    /**
+     * Cierra el lote al terminar la recepción, completa o no: los archivos completos que
+     * faltaban se terminan, los incompletos se borran y se espera a que terminen todos.
+     *
+     * @return La cantidad de archivos recibidos completos e íntegros.
+     */
+    public int terminar() throws IOException {
+        int recibidos = 0;
+        try {
+            escritor.vaciar();
+            if (archivos != null) {
+                for (Archivo archivo : archivos) {
+                    if (archivo.terminado) {
+                        continue;
+                    }
+                    if (archivo.recibidos == archivo.totalPaquetes) {
+                        finalizar(archivo);
+                    } else {
+                        cerrar(archivo);
+                        Files.deleteIfExists(archivo.ruta);
+                    }
+                }
+            }
+        } finally {
+            finalizador.shutdown();
+            for (Future<Boolean> terminado : terminados) {
+                try {
+                    if (terminado.get()) {
+                        recibidos++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        }
+        return recibidos;
+    }
+
+    /**
+     * @return Bytes de los archivos que se recibieron íntegros, sin comprimir.
+     */
+    public long getBytesRecibidos() {
+        return bytesRecibidos.get();
+    }
+
+    /**
+     * Verifica el manifiesto completo con su huella y prepara los archivos que describe.
+     */
+    private void leerManifiesto() throws IOException {
+        if (huellaRecibida != huellaManifiesto) {
+            throw new IOException("El manifiesto del lote no coincide con la huella del servidor");
+        }
+        ByteBuffer contenido = ByteBuffer.wrap(manifiesto);
+        int cantidad = contenido.getInt();
+        if (cantidad < 0 || cantidad > manifiesto.length) {
+            throw new IOException("El manifiesto del lote no es válido");
+        }
+        Archivo[] leidos = new Archivo[cantidad];
+        int[] fines = new int[cantidad];
+        long siguiente = paquetesManifiesto;
+        for (int i = 0; i < cantidad; i++) {
+            byte[] nombre = new byte[Short.toUnsignedInt(contenido.getShort())];
+            contenido.get(nombre);
+            Archivo archivo = new Archivo(new String(nombre, StandardCharsets.UTF_8), contenido.getInt(),
+                    contenido.getLong(), contenido.get(), contenido.getLong());
+            // Los archivos van seguidos y solo se guardan con su nombre junto al prefijo
+            if (archivo.primerPaquete != siguiente || archivo.tamano < 0 || archivo.nombre.isEmpty()
+                    || archivo.nombre.contains("/") || archivo.nombre.contains("\\") || archivo.nombre.equals("..")) {
+                throw new IOException("El manifiesto del lote no es válido");
+            }
+            siguiente += archivo.totalPaquetes;
+            if (siguiente > totalPaquetes) {
+                throw new IOException("El manifiesto del lote no es válido");
+            }
+            leidos[i] = archivo;
+            fines[i] = (int) siguiente;
+        }
+        archivos = leidos;
+        finArchivos = fines;
+        System.out.println("Manifiesto recibido: " + cantidad + " archivos.");
+    }
+
+    /**
+     * @return El índice del archivo al que pertenece un paquete que no es del manifiesto.
+     */
+    private int buscar(int numPaquete) {
+        // Primer archivo que termina después del paquete; todos tienen al menos su paquete final
+        int bajo = 0;
+        int alto = finArchivos.length - 1;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (finArchivos[medio] > numPaquete) {
+                alto = medio;
+            } else {
+                bajo = medio + 1;
+            }
+        }
+        return bajo;
+    }
+
+    /**
+     * @return true si ya llegaron todos los paquetes de los bloques de paridad del archivo, de
+     *         modo que ninguna reconstrucción volverá a leerlo.
+     */
+    private boolean vecinosCompletos(Archivo archivo) {
+        if (paquetesPorBloque == 0) {
+            return true;
+        }
+        int desde = archivo.primerPaquete / paquetesPorBloque * paquetesPorBloque;
+        long hasta = Math.min(totalPaquetes,
+                ((long) archivo.primerPaquete + archivo.totalPaquetes + paquetesPorBloque - 1) / paquetesPorBloque * paquetesPorBloque);
+        return paquetesRecibidos.nextClearBit(desde) >= hasta;
+    }
+
+    /**
+     * Cierra un archivo completo y lo manda a verificar y descomprimir en un hilo aparte.
+     */
+    private void finalizar(Archivo archivo) throws IOException {
+        archivo.terminado = true;
+        cerrar(archivo);
+        if (!archivo.creado) {
+            // Archivo vacío: no llegó ningún paquete que lo creara
+            Files.newByteChannel(archivo.ruta, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING).close();
+        }
+        terminados.add(finalizador.submit(() -> {
+            boolean integro = TransferenciaProxy.terminarDescarga(archivo.ruta, archivo.diario, true);
+            if (integro) {
+                bytesRecibidos.addAndGet(archivo.tamanoOriginal);
+            } else {
+                System.out.println("No se pudo recibir '" + archivo.nombre + "'.");
+            }
+            return integro;
+        }));
+    }
+
+    /**
+     * Devuelve el canal de un archivo, abriéndolo si hace falta. La primera vez se vacía el
+     * archivo; después se reabre sin perder lo escrito.
+     */
+    private FileChannel abrir(Archivo archivo) throws IOException {
+        if (abiertos.get(archivo) != null) {
+            return archivo.canal;
+        }
+        if (abiertos.size() >= MAX_ABIERTOS) {
+            // El escritor puede tener agrupados paquetes del archivo que se cierra
+            escritor.vaciar();
+            Iterator<Archivo> antiguo = abiertos.keySet().iterator();
+            Archivo cerrado = antiguo.next();
+            antiguo.remove();
+            cerrado.canal.close();
+            cerrado.canal = null;
+        }
+        archivo.canal = archivo.creado
+                ? FileChannel.open(archivo.ruta, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(archivo.ruta, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        archivo.creado = true;
+        abiertos.put(archivo, Boolean.TRUE);
+        return archivo.canal;
+    }
+
+    private void cerrar(Archivo archivo) throws IOException {
+        if (archivo.canal == null) {
+            return;
+        }
+        escritor.redirigir(null, null);
+        abiertos.remove(archivo);
+        archivo.canal.close();
+        archivo.canal = null;
+    }
+
+    /**
+     * Un archivo del lote según el manifiesto.
+     */
+    private final class Archivo {
+        private final String nombre;
+        private final Path ruta;
+        private final int primerPaquete;
+        private final long tamano;          // Tamaño con que llega, comprimido si tiene códec
+        private final long tamanoOriginal;
+        private final int paquetesDatos;
+        private final int totalPaquetes;    // Con el paquete final, que trae la huella
+        private final DiarioDescarga diario; // En memoria: acumula la huella para verificarlo
+        private long huellaServidor;        // La del paquete final, cuando llega
+        private FileChannel canal;
+        private boolean creado;             // El archivo ya se vació y se abrió una vez
+        private boolean terminado;
+        private int recibidos;
+
+        private Archivo(String nombre, int primerPaquete, long tamano, byte codec, long tamanoOriginal) {
+            this.nombre = nombre;
+            this.ruta = Paths.get(prefijoDestino + nombre);
+            this.primerPaquete = primerPaquete;
+            this.tamano = tamano;
+            this.tamanoOriginal = tamanoOriginal;
+            this.paquetesDatos = (int) Math.min(Integer.MAX_VALUE - 1, (tamano + tamanoFragmento - 1) / tamanoFragmento);
+            this.totalPaquetes = paquetesDatos + 1;
+            this.diario = DiarioDescarga.enMemoria(tamano, tamanoFragmento, paquetesDatos, codec, tamanoOriginal);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package itson.clientearchivos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Diario de progreso de una descarga, guardado junto al archivo parcial. Registra la versión
+ * del archivo en el servidor y un mapa de bits con los paquetes ya escritos en disco, de modo
+ * que si la descarga se interrumpe (por tiempo de espera o porque el proceso termina) al
+ * reintentarla solo se piden los paquetes que faltan.
+ *
+ * El diario está mapeado en memoria: cada paquete se marca después de escribirse en el archivo
+ * y el sistema operativo conserva la marca aunque el proceso muera. Junto con la marca se suma
+ * el aporte del paquete a la huella acumulada, así que al terminar la huella del archivo recibido
+ * se conoce sin volver a leerlo, aunque la descarga se haya hecho en varios intentos. La huella
+ * del servidor no se guarda: en cada intento cada parte suma la de su rango, que llega en los
+ * metadatos o en el FIN, y al terminar se compara la suma con la acumulada.
+ *
+ * Si el servidor envía el archivo comprimido, el diario describe el archivo comprimido y guarda
+ * además el códec y el tamaño sin comprimir, para descomprimirlo al terminar.
+ *
+ * Los archivos de un lote, que no se reanudan, usan un diario en memoria sin archivo propio:
+ * solo acumula la huella y el códec del archivo para verificarlo y descomprimirlo al terminar.
+ *
+ * Formato: [magia (4 bytes)][versión del archivo (8 bytes)][tamaño (8 bytes)]
+ * [tamaño de fragmento (4 bytes)][total de paquetes (4 bytes)][huella acumulada (8 bytes)]
+ * [tamaño sin comprimir (8 bytes)][códec (1 byte)][mapa de bits]
+ * @author asielapodaca
+ */
+public class DiarioDescarga {
+    private static final int MAGIA = 0x44494152; // "DIAR"
+    private static final int POSICION_HUELLA = 28;
+    private static final int TAMANO_ENCABEZADO = 45;
+
+    private final Path ruta;  // null si el diario solo vive en memoria
+    private ByteBuffer mapa;
+    private long versionArchivo;
+    private long tamanoArchivo;
+    private int tamanoFragmento;
+    private int totalPaquetes;
+    private long huellaServidor; // Suma de las huellas de los rangos que anunció el servidor en este intento
+    private long tamanoOriginal;
+    private byte codec;
+
+    private DiarioDescarga(Path ruta) {
+        this.ruta = ruta;
+    }
+
+    /**
+     * Abre el diario de una descarga. Si existe un diario válido de un intento anterior se
+     * cargan sus datos; si no, el diario queda vacío hasta que se llame a {@link #preparar}.
+     *
+     * @param destino Ruta del archivo descargado.
+     * @return El diario de la descarga.
+     */
+    public static DiarioDescarga abrir(Path destino) throws IOException {
+        DiarioDescarga diario = new DiarioDescarga(destino.resolveSibling(destino.getFileName() + ".diario"));
+        if (Files.isRegularFile(diario.ruta) && Files.isRegularFile(destino)) {
+            diario.cargar();
+        }
+        return diario;
+    }
+
+    /**
+     * Crea un diario en memoria, ya preparado, para un archivo de un lote.
+     *
+     * @param codec Códec con que llega el archivo, {@code Protocolo.CODEC_*}.
+     * @param tamanoOriginal Tamaño del archivo sin comprimir.
+     * @return El diario del archivo.
+     */
+    public static DiarioDescarga enMemoria(long tamanoArchivo, int tamanoFragmento, int totalPaquetes,
+            byte codec, long tamanoOriginal) {
+        DiarioDescarga diario = new DiarioDescarga(null);
+        diario.mapa = ByteBuffer.allocate(TAMANO_ENCABEZADO + tamanoMapa(totalPaquetes));
+        diario.escribirEncabezado(0, tamanoArchivo, tamanoFragmento, totalPaquetes, codec, tamanoOriginal);
+        return diario;
+    }
+
+    private void cargar() throws IOException {
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (canal.size() < TAMANO_ENCABEZADO) {
+                return;
+            }
+            MappedByteBuffer contenido = canal.map(FileChannel.MapMode.READ_WRITE, 0, canal.size());
+            if (contenido.getInt(0) != MAGIA) {
+                return;
+            }
+            int total = contenido.getInt(24);
+            if (total < 0 || canal.size() != TAMANO_ENCABEZADO + tamanoMapa(total)) {
+                return;
+            }
+            this.mapa = contenido;
+            this.versionArchivo = contenido.getLong(4);
+            this.tamanoArchivo = contenido.getLong(12);
+            this.tamanoFragmento = contenido.getInt(20);
+            this.totalPaquetes = total;
+            this.tamanoOriginal = contenido.getLong(36);
+            this.codec = contenido.get(44);
+        }
+    }
+
+    /**
+     * Deja el diario listo para la versión del archivo que anunció el servidor. Si el diario
+     * corresponde a esa misma versión se conserva su progreso; si no, se crea uno nuevo vacío.
+     *
+     * @param codec Códec con que llega el archivo, {@code Protocolo.CODEC_*}.
+     * @param tamanoOriginal Tamaño del archivo sin comprimir.
+     * @return true si se conservó el progreso del diario.
+     */
+    public synchronized boolean preparar(long versionArchivo, long tamanoArchivo, int tamanoFragmento, int totalPaquetes,
+            byte codec, long tamanoOriginal) throws IOException {
+        if (mapa != null && this.versionArchivo == versionArchivo && this.tamanoArchivo == tamanoArchivo
+                && this.tamanoFragmento == tamanoFragmento && this.totalPaquetes == totalPaquetes
+                && this.codec == codec && this.tamanoOriginal == tamanoOriginal) {
+            return true;
+        }
+
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, TAMANO_ENCABEZADO + tamanoMapa(totalPaquetes));
+        }
+        escribirEncabezado(versionArchivo, tamanoArchivo, tamanoFragmento, totalPaquetes, codec, tamanoOriginal);
+        return false;
+    }
+
+    private void escribirEncabezado(long versionArchivo, long tamanoArchivo, int tamanoFragmento, int totalPaquetes,
+            byte codec, long tamanoOriginal) {
+        mapa.putInt(0, MAGIA);
+        mapa.putLong(4, versionArchivo);
+        mapa.putLong(12, tamanoArchivo);
+        mapa.putInt(20, tamanoFragmento);
+        mapa.putInt(24, totalPaquetes);
+        mapa.putLong(36, tamanoOriginal);
+        mapa.put(44, codec);
+        this.versionArchivo = versionArchivo;
+        this.tamanoArchivo = tamanoArchivo;
+        this.tamanoFragmento = tamanoFragmento;
+        this.totalPaquetes = totalPaquetes;
+        this.codec = codec;
+        this.tamanoOriginal = tamanoOriginal;
+    }
+
+    /**
+     * @return true si el diario trae el progreso de un intento anterior o de otra parte.
+     */
+    public synchronized boolean tieneProgreso() {
+        return mapa != null;
+    }
+
+    /**
+     * @return La versión del archivo del diario, o 0 si no hay progreso guardado.
+     */
+    public synchronized long getVersionArchivo() {
+        return mapa != null ? versionArchivo : 0;
+    }
+
+    public synchronized int getTamanoFragmento() {
+        return tamanoFragmento;
+    }
+
+    /**
+     * @return Códec con que llega el archivo, {@code Protocolo.CODEC_*}.
+     */
+    public synchronized byte getCodec() {
+        return codec;
+    }
+
+    public synchronized long getTamanoOriginal() {
+        return tamanoOriginal;
+    }
+
+    public synchronized boolean recibido(int numPaquete) {
+        int posicion = TAMANO_ENCABEZADO + (numPaquete >>> 3);
+        return (mapa.get(posicion) & (1 << (numPaquete & 7))) != 0;
+    }
+
+    /**
+     * Marca un paquete como recibido y suma su aporte a la huella acumulada. Debe llamarse
+     * después de escribir sus datos en el archivo, una sola vez por paquete. Es sincronizado
+     * porque las partes de una descarga en paralelo comparten bytes del mapa y la huella.
+     *
+     * @param termino Aporte del paquete a la huella, según {@link Protocolo#terminoHuella}.
+     */
+    public synchronized void marcar(int numPaquete, long termino) {
+        int posicion = TAMANO_ENCABEZADO + (numPaquete >>> 3);
+        mapa.put(posicion, (byte) (mapa.get(posicion) | (1 << (numPaquete & 7))));
+        mapa.putLong(POSICION_HUELLA, mapa.getLong(POSICION_HUELLA) + termino);
+    }
+
+    /**
+     * Suma la huella de un rango según el servidor. Cada parte de la descarga la suma una sola
+     * vez por intento, así que al terminar todas la suma es la huella del archivo completo.
+     *
+     * @param huellaRango Huella del rango de paquetes de la parte.
+     */
+    public synchronized void sumarHuellaServidor(long huellaRango) {
+        huellaServidor += huellaRango;
+    }
+
+    /**
+     * @return true si la huella acumulada de los paquetes recibidos coincide con la suma de las
+     *         huellas de los rangos que anunció el servidor.
+     */
+    public synchronized boolean huellaCoincide() {
+        return mapa != null && mapa.getLong(POSICION_HUELLA) == huellaServidor;
+    }
+
+    /**
+     * Escribe el diario en disco al interrumpirse la descarga.
+     */
+    public synchronized void guardar() {
+        if (mapa instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mapa).force();
+        }
+    }
+
+    /**
+     * Borra el diario cuando la descarga terminó.
+     */
+    public synchronized void eliminar() throws IOException {
+        mapa = null;
+        if (ruta != null) {
+            Files.deleteIfExists(ruta);
+        }
+    }
+
+    private static int tamanoMapa(int totalPaquetes) {
+        return (totalPaquetes + 7) >>> 3;
+    }
+}
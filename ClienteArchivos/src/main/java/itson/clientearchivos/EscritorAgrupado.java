@@ -0,0 +1,94 @@
+package itson.clientearchivos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Agrupa los datos de paquetes consecutivos para escribirlos en el archivo de destino con una
+ * sola escritura posicional. Los paquetes nuevos llegan casi siempre en orden, así que un lote
+ * de datagramas se convierte en una o dos escrituras en lugar de una por paquete.
+ *
+ * Los paquetes se marcan en el diario solo después de escribirse, igual que sin agrupar, para
+ * que el diario nunca dé por recibido un paquete que no llegó al archivo. En un lote el mismo
+ * escritor pasa de un archivo al siguiente con {@link #redirigir}.
+ * @author asielapodaca
+ */
+public class EscritorAgrupado {
+    private static final int BYTES_POR_ESCRITURA = 256 * 1024;
+
+    private FileChannel destino;
+    private DiarioDescarga diario;
+    private final ByteBuffer buffer;
+    private final int[] paquetes;   // Paquetes agrupados, para marcarlos en el diario
+    private final long[] terminos;  // Aporte de cada paquete a la huella
+    private int cantidad;
+    private long inicio;            // Posición en el archivo del primer byte agrupado
+
+    /**
+     * @param destino Archivo de destino.
+     * @param diario Diario donde se marcan los paquetes escritos.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     */
+    public EscritorAgrupado(FileChannel destino, DiarioDescarga diario, int tamanoFragmento) {
+        this.destino = destino;
+        this.diario = diario;
+        int capacidad = Math.max(1, BYTES_POR_ESCRITURA / tamanoFragmento);
+        this.buffer = ByteBuffer.allocateDirect(capacidad * tamanoFragmento);
+        this.paquetes = new int[capacidad];
+        this.terminos = new long[capacidad];
+    }
+
+    /**
+     * Cambia el archivo de destino y su diario; lo agrupado para el anterior se escribe primero.
+     */
+    public void redirigir(FileChannel destino, DiarioDescarga diario) throws IOException {
+        if (destino == this.destino) {
+            return;
+        }
+        vaciar();
+        this.destino = destino;
+        this.diario = diario;
+    }
+
+    /**
+     * Agrega un paquete. Si no continúa a los paquetes agrupados, o ya no cabe, primero se
+     * escriben los anteriores.
+     *
+     * @param numPaquete Número del paquete.
+     * @param posicion Posición del paquete en el archivo.
+     * @param datos Datos del paquete entre su posición y su límite; se consumen.
+     * @param termino Aporte del paquete a la huella del archivo.
+     */
+    public void agregar(int numPaquete, long posicion, ByteBuffer datos, long termino) throws IOException {
+        if (cantidad > 0 && (posicion != inicio + buffer.position() || datos.remaining() > buffer.remaining()
+                || cantidad == paquetes.length)) {
+            vaciar();
+        }
+        if (cantidad == 0) {
+            inicio = posicion;
+        }
+        buffer.put(datos);
+        paquetes[cantidad] = numPaquete;
+        terminos[cantidad] = termino;
+        cantidad++;
+    }
+
+    /**
+     * Escribe los paquetes agrupados y los marca en el diario.
+     */
+    public void vaciar() throws IOException {
+        if (cantidad == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            destino.write(buffer, inicio + buffer.position());
+        }
+        buffer.clear();
+        for (int i = 0; i < cantidad; i++) {
+            diario.marcar(paquetes[i], terminos[i]);
+        }
+        cantidad = 0;
+    }
+}
@@ -0,0 +1,61 @@
+package itson.clientearchivos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estima el tiempo de ida y vuelta con el servidor y calcula con él el tiempo de espera de
+ * retransmisión (RTO) según el RFC 6298. Las muestras se toman entre el envío de una solicitud
+ * y la primera respuesta; una solicitud repetida por tiempo agotado no da muestra, porque no se
+ * sabe a cuál de los envíos responde el servidor (algoritmo de Karn).
+ * @author asielapodaca
+ */
+public class EstimadorRtt {
+    private static final long RTO_INICIAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long RTO_MAXIMO = TimeUnit.SECONDS.toNanos(8);
+    private static final long RTO_MINIMO = TimeUnit.MILLISECONDS.toNanos(Long.getLong("cliente.rtoMinimo", 200L));
+
+    private long rttSuavizado; // En nanosegundos; 0 mientras no haya muestras
+    private long variacionRtt;
+    private long rto = RTO_INICIAL;
+    private int retrocesos;    // Tiempos agotados seguidos; cada uno duplica el RTO
+
+    /**
+     * Agrega una muestra del tiempo de ida y vuelta.
+     *
+     * @param muestra RTT medido, en nanosegundos.
+     */
+    public void registrarMuestra(long muestra) {
+        if (rttSuavizado == 0) {
+            rttSuavizado = Math.max(1, muestra);
+            variacionRtt = muestra / 2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|;  SRTT = 7/8 SRTT + 1/8 R
+            variacionRtt += (Math.abs(rttSuavizado - muestra) - variacionRtt) / 4;
+            rttSuavizado += (muestra - rttSuavizado) / 8;
+        }
+        rto = Math.min(RTO_MAXIMO, Math.max(RTO_MINIMO, rttSuavizado + 4 * variacionRtt));
+        retrocesos = 0;
+    }
+
+    /**
+     * Se agotó el tiempo de espera: el siguiente se duplica hasta el máximo.
+     */
+    public void retroceder() {
+        retrocesos++;
+    }
+
+    /**
+     * @return El tiempo de espera actual en milisegundos, para {@code setSoTimeout}.
+     */
+    public int getRtoMilisegundos() {
+        long actual = Math.min(RTO_MAXIMO, rto << Math.min(retrocesos, 16));
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(actual));
+    }
+
+    /**
+     * @return El RTT suavizado en nanosegundos, o 0 si todavía no hay muestras.
+     */
+    public long getRttSuavizado() {
+        return rttSuavizado;
+    }
+}
@@ -0,0 +1,247 @@
+package itson.clientearchivos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Generador de carga sin interfaz: lanza varios clientes a la vez contra un servidor local,
+ * cada uno descargando un archivo con {@link TransferenciaProxy} una o varias veces, y al
+ * terminar reporta el goodput total, los percentiles del tiempo de cada descarga y la
+ * actividad del recolector de basura de este proceso. Sirve para comparar el rendimiento
+ * antes y después de un cambio con la misma carga.
+ *
+ * Si se dan varios archivos separados por comas, los clientes se reparten entre ellos (el
+ * cliente c descarga el archivo c módulo la cantidad de archivos) y los percentiles se
+ * reportan también por archivo. Así se mide una carga mixta, por ejemplo cuánto tardan los
+ * archivos pequeños mientras otros clientes descargan archivos grandes.
+ *
+ * Si se pide pérdida o latencia, los clientes pasan por un {@link SimuladorRed} que se inicia
+ * en el mismo proceso. Las descargas se guardan en un directorio temporal que se borra al
+ * final, y los mensajes de progreso de los clientes se omiten para no medir la consola.
+ *
+ * Uso: {@code java itson.clientearchivos.GeneradorCarga <archivo[,archivo...]> [clientes] [descargas por cliente]
+ * [pérdida] [latencia en ms]}; el servidor se toma de {@code cliente.servidor} y {@code cliente.puerto}
+ * y el resto de las opciones del cliente ({@code cliente.fecBloque}, {@code cliente.multicast}...)
+ * se aplican a todas las descargas.
+ * @author asielapodaca
+ */
+public class GeneradorCarga {
+    private static final String SERVIDOR = System.getProperty("cliente.servidor", "localhost");
+    private static final int PUERTO_SERVIDOR = Integer.getInteger("cliente.puerto", 5000);
+    private static final long COLA_SIMULADOR = 256 * 1024;
+
+    private final String[] nombresArchivos;
+    private final int clientes;
+    private final int descargasPorCliente;
+    private final String servidorHost;
+    private final int servidorPuerto;
+    private final long[] duraciones; // Nanosegundos de cada descarga completa
+    private final int[] archivosDescargados; // Índice del archivo de cada descarga completa
+    private final AtomicInteger completas = new AtomicInteger();
+    private final AtomicInteger fallidas = new AtomicInteger();
+    private final AtomicLong bytesRecibidos = new AtomicLong();
+
+    /**
+     * @param nombresArchivos Archivos que se reparten entre los clientes.
+     * @param clientes Clientes que descargan a la vez, cada uno en su hilo y con su socket.
+     * @param descargasPorCliente Descargas seguidas de cada cliente.
+     * @param servidorHost Servidor o simulador al que se conectan los clientes.
+     * @param servidorPuerto Puerto del servidor o del simulador.
+     */
+    public GeneradorCarga(String[] nombresArchivos, int clientes, int descargasPorCliente, String servidorHost,
+            int servidorPuerto) {
+        this.nombresArchivos = nombresArchivos;
+        this.clientes = clientes;
+        this.descargasPorCliente = descargasPorCliente;
+        this.servidorHost = servidorHost;
+        this.servidorPuerto = servidorPuerto;
+        this.duraciones = new long[clientes * descargasPorCliente];
+        this.archivosDescargados = new int[clientes * descargasPorCliente];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Uso: GeneradorCarga <archivo[,archivo...]> [clientes] [descargas por cliente] [pérdida] [latencia ms]");
+            return;
+        }
+        String[] nombresArchivos = args[0].split(",");
+        int clientes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int descargas = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        double perdida = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        long latencia = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+        String host = SERVIDOR;
+        int puerto = PUERTO_SERVIDOR;
+        if (perdida > 0 || latencia > 0) {
+            puerto = iniciarSimulador(perdida, latencia);
+            host = "localhost";
+        }
+
+        System.out.printf("%d clientes x %d descargas de '%s' desde %s:%d, pérdida %.1f%%, latencia %d ms%n",
+                clientes, descargas, String.join("', '", nombresArchivos), SERVIDOR, PUERTO_SERVIDOR, perdida * 100, latencia);
+        new GeneradorCarga(nombresArchivos, clientes, descargas, host, puerto).ejecutar();
+    }
+
+    /**
+     * Inicia un simulador de red en un puerto libre, con un hilo que no impide terminar al proceso.
+     *
+     * @return El puerto donde el simulador recibe a los clientes.
+     */
+    private static int iniciarSimulador(double perdida, long latencia) throws IOException {
+        int puerto;
+        try (DatagramSocket libre = new DatagramSocket(0)) {
+            puerto = libre.getLocalPort();
+        }
+        SimuladorRed simulador = new SimuladorRed(puerto, new InetSocketAddress(SERVIDOR, PUERTO_SERVIDOR),
+                perdida, latencia, 0, COLA_SIMULADOR, 0);
+        Thread hilo = new Thread(() -> {
+            try {
+                simulador.ejecutar();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "simulador");
+        hilo.setDaemon(true);
+        hilo.start();
+        return puerto;
+    }
+
+    /**
+     * Lanza todos los clientes a la vez, espera a que terminen y escribe el reporte.
+     */
+    public void ejecutar() throws IOException, InterruptedException {
+        Path directorio = Files.createTempDirectory("generador-carga");
+        PrintStream consola = System.out;
+        List<GarbageCollectorMXBean> recolectores = ManagementFactory.getGarbageCollectorMXBeans();
+        long[] coleccionesAntes = new long[recolectores.size()];
+        long[] tiempoAntes = new long[recolectores.size()];
+        for (int i = 0; i < recolectores.size(); i++) {
+            coleccionesAntes[i] = recolectores.get(i).getCollectionCount();
+            tiempoAntes[i] = recolectores.get(i).getCollectionTime();
+        }
+
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Thread> hilos = new ArrayList<>();
+        for (int c = 0; c < clientes; c++) {
+            int cliente = c;
+            Thread hilo = new Thread(() -> descargar(cliente, directorio, salida), "cliente-" + c);
+            hilos.add(hilo);
+            hilo.start();
+        }
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long inicio = System.nanoTime();
+        try {
+            salida.countDown();
+            for (Thread hilo : hilos) {
+                hilo.join();
+            }
+        } finally {
+            System.setOut(consola);
+        }
+        long transcurrido = System.nanoTime() - inicio;
+        borrar(directorio);
+
+        double segundos = transcurrido / 1e9;
+        System.out.printf("Descargas completas: %d, fallidas: %d, en %.2f s%n", completas.get(), fallidas.get(), segundos);
+        System.out.printf("Goodput total: %.2f MB/s, %.2f descargas/s%n",
+                bytesRecibidos.get() / segundos / (1024 * 1024), completas.get() / segundos);
+        reportarTiempos("Tiempo por descarga", -1);
+        if (nombresArchivos.length > 1) {
+            for (int i = 0; i < nombresArchivos.length; i++) {
+                reportarTiempos("  " + nombresArchivos[i], i);
+            }
+        }
+        for (int i = 0; i < recolectores.size(); i++) {
+            GarbageCollectorMXBean recolector = recolectores.get(i);
+            long colecciones = recolector.getCollectionCount() - coleccionesAntes[i];
+            long tiempo = recolector.getCollectionTime() - tiempoAntes[i];
+            System.out.printf("GC %s: %d colecciones, %d ms (%.2f%% del tiempo)%n", recolector.getName(),
+                    colecciones, tiempo, tiempo * 100.0 / Math.max(1, TimeUnit.NANOSECONDS.toMillis(transcurrido)));
+        }
+    }
+
+    /**
+     * Escribe los percentiles del tiempo de las descargas completas de un archivo, o de todas
+     * si el índice es negativo.
+     */
+    private void reportarTiempos(String etiqueta, int archivo) {
+        int cantidad = completas.get();
+        long[] tiempos = new long[cantidad];
+        int n = 0;
+        for (int i = 0; i < cantidad; i++) {
+            if (archivo < 0 || archivosDescargados[i] == archivo) {
+                tiempos[n++] = duraciones[i];
+            }
+        }
+        tiempos = Arrays.copyOf(tiempos, n);
+        Arrays.sort(tiempos);
+        if (tiempos.length > 0) {
+            System.out.printf("%s: p50 %.1f ms, p99 %.1f ms, máximo %.1f ms%n", etiqueta,
+                    percentil(tiempos, 0.5) / 1e6, percentil(tiempos, 0.99) / 1e6, tiempos[tiempos.length - 1] / 1e6);
+        }
+    }
+
+    private void descargar(int cliente, Path directorio, CountDownLatch salida) {
+        try {
+            salida.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int archivo = cliente % nombresArchivos.length;
+        for (int d = 0; d < descargasPorCliente; d++) {
+            Path destino = directorio.resolve("cliente" + cliente + "-" + d);
+            long inicio = System.nanoTime();
+            try (DatagramChannel canal = DatagramChannel.open()) {
+                TransferenciaProxy proxy = new TransferenciaProxy(canal, servidorHost, servidorPuerto);
+                if (proxy.solicitarArchivo(nombresArchivos[archivo], destino)) {
+                    long duracion = System.nanoTime() - inicio;
+                    int indice = completas.getAndIncrement();
+                    duraciones[indice] = duracion;
+                    archivosDescargados[indice] = archivo;
+                    bytesRecibidos.addAndGet(Files.size(destino));
+                } else {
+                    fallidas.incrementAndGet();
+                }
+                Files.deleteIfExists(destino);
+            } catch (IOException e) {
+                fallidas.incrementAndGet();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Percentil por rango más cercano de valores ordenados.
+     */
+    private static long percentil(long[] ordenados, double percentil) {
+        int rango = (int) Math.ceil(percentil * ordenados.length);
+        return ordenados[Math.max(0, rango - 1)];
+    }
+
+    private static void borrar(Path directorio) throws IOException {
+        try (Stream<Path> rutas = Files.walk(directorio)) {
+            for (Path ruta : rutas.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(ruta);
+            }
+        }
+    }
+}
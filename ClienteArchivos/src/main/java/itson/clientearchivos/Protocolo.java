@@ -0,0 +1,173 @@
+package itson.clientearchivos;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Constantes y utilidades del protocolo binario de control que el cliente envía
+ * al servidor. Debe mantenerse sincronizado con la clase del mismo nombre en el servidor.
+ * @author asielapodaca
+ */
+public final class Protocolo {
+    // Versión del protocolo; los mensajes del servidor empiezan con ella
+    public static final byte VERSION = 12;
+
+    // Todos los mensajes llevan después del tipo el identificador de transferencia (4 bytes)
+    // elegido por el cliente, que junto con su dirección y puerto identifica la sesión.
+    // Todos terminan con el CRC32C del resto del mensaje (4 bytes), ver sellar; el servidor
+    // descarta los mensajes corruptos en lugar de interpretarlos.
+    // [tipo][id][siguiente paquete (4 bytes)][eco de la marca de tiempo (4 bytes)]
+    public static final byte ACUSE = 0x01;
+    // [tipo][id][base (4 bytes)][cantidad de rangos (2 bytes)]{[salto (varint)][longitud (varint)]}...
+    public static final byte ACUSE_SELECTIVO = 0x02;
+    // [tipo][id]
+    public static final byte COMPLETADO = 0x03;
+    // [tipo][id][versión][tamaño de fragmento deseado (4 bytes)][parte (2 bytes)][partes (2 bytes)]
+    // [versión del archivo a reanudar (8 bytes), 0 si la descarga es nueva]
+    // [paquetes por bloque (1 byte)][paquetes de paridad (1 byte)], ambos 0 sin paridad
+    // [códecs aceptados (1 byte), máscara de CODEC_*][opciones (1 byte), máscara de OPCION_*]
+    // [nombre del archivo]
+    public static final byte SOLICITUD = 0x04;
+    // [tipo][id][versión][primer archivo (4 bytes)]; pide el listado de archivos, sin crear sesión
+    public static final byte LISTA = 0x05;
+    // [tipo][id][versión][tamaño de fragmento deseado (4 bytes)][paquetes por bloque (1 byte)]
+    // [paquetes de paridad (1 byte)][códecs aceptados (1 byte)][nombres o patrones glob separados por '\n']
+    // Pide varios archivos en una sola sesión; el rango de paquetes empieza con el manifiesto:
+    // [cantidad de archivos (4 bytes)]{[longitud del nombre (2 bytes)][nombre en UTF-8]
+    // [primer paquete (4 bytes)][tamaño enviado (8 bytes)][códec (1 byte)][tamaño sin comprimir (8 bytes)]}...;
+    // los METADATOS describen el manifiesto, y el CRC y la huella de los paquetes de cada archivo
+    // usan su posición y su número dentro del archivo. Cada archivo termina con un paquete de 8
+    // bytes con su huella, que no se suma a ella; su CRC usa la posición siguiente a los datos
+    public static final byte SOLICITUD_LOTE = 0x06;
+    // [tipo][id]; se tienen todos los paquetes del rango pero no su huella: el servidor responde
+    // con FIN si ya la conoce
+    public static final byte PEDIR_FIN = 0x07;
+
+    // Mensajes del servidor al cliente, después del encabezado [versión][tipo][id]. Todos salvo
+    // DATOS y PARIDAD terminan con el CRC32C del mensaje (4 bytes)
+    // [total de paquetes (4 bytes)][tamaño del archivo (8 bytes)][tamaño de fragmento (4 bytes)]
+    // [primer paquete (4 bytes)][fin del rango (4 bytes)][versión del archivo (8 bytes)]
+    // [paquetes por bloque (1 byte)][paquetes de paridad (1 byte)][huella del rango (8 bytes), 0 si
+    // el servidor todavía no la conoce][códec (1 byte)][tamaño sin comprimir (8 bytes)]; con un
+    // códec los paquetes, el tamaño, la versión y la huella son los del archivo comprimido
+    // [id del grupo multicast (4 bytes)][puerto (2 bytes)][dirección IPv4 (4 bytes)]; con un id
+    // distinto de 0 los paquetes DATOS, PARIDAD y FIN llegan al grupo con ese id
+    public static final byte METADATOS = 0x10;
+    // [posición en el archivo (8 bytes)][marca de tiempo (4 bytes)][CRC32C de posición y datos (4 bytes)][datos]
+    public static final byte DATOS = 0x11;
+    // [huella del rango (8 bytes)]: se enviaron todos los paquetes del rango; en un lote la huella es 0
+    // y la de cada archivo llega en su paquete final
+    public static final byte FIN = 0x12;
+    // [mensaje de error en UTF-8]
+    public static final byte ERROR = 0x13;
+    // [bloque (4 bytes)][grupo (1 byte)][CRC32C (4 bytes)][XOR de los paquetes del grupo]
+    public static final byte PARIDAD = 0x14;
+    // [total de archivos (4 bytes)][primer archivo (4 bytes)][cantidad (2 bytes)]
+    // {[longitud del nombre (2 bytes)][nombre en UTF-8][tamaño (8 bytes)][fecha de modificación (8 bytes)]}...
+    // ordenados por nombre; los que no caben se piden con otra LISTA
+    public static final byte LISTADO = 0x15;
+
+    // Códecs con que el servidor puede enviar un archivo
+    public static final byte CODEC_NINGUNO = 0;
+    public static final byte CODEC_DEFLATE = 1; // Archivo completo en formato zlib (RFC 1950)
+
+    // Opciones de la solicitud
+    public static final byte OPCION_MULTICAST = 1; // El cliente puede unirse a un grupo multicast
+
+    // Bytes del encabezado de los mensajes del servidor: [versión][tipo][id]
+    public static final int TAMANO_ENCABEZADO = 6;
+    // Bytes del encabezado de los paquetes de datos: [versión][tipo][id][posición][marca de tiempo][CRC]
+    public static final int TAMANO_ENCABEZADO_DATOS = TAMANO_ENCABEZADO + 16;
+
+    // Bytes máximos que ocupa un rango codificado (dos varint de hasta 5 bytes)
+    public static final int TAMANO_MAXIMO_RANGO = 10;
+
+    private Protocolo() {
+    }
+
+    /**
+     * Agrega al final del mensaje el CRC32C de todo lo escrito en él, desde la posición 0.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param mensaje Mensaje posicionado al final de su contenido.
+     */
+    public static void sellar(CRC32C crc, ByteBuffer mensaje) {
+        crc.reset();
+        crc.update(mensaje.duplicate().flip());
+        mensaje.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Verifica el CRC32C con que termina un mensaje y, si es correcto, lo excluye del límite
+     * del buffer para que no se lea como contenido.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param mensaje Mensaje completo entre la posición 0 y su límite; no se modifica su posición.
+     * @return false si el mensaje está corrupto o es demasiado corto.
+     */
+    public static boolean verificarSello(CRC32C crc, ByteBuffer mensaje) {
+        int fin = mensaje.limit() - Integer.BYTES;
+        if (fin < 0) {
+            return false;
+        }
+        crc.reset();
+        crc.update(mensaje.duplicate().position(0).limit(fin));
+        if ((int) crc.getValue() != mensaje.getInt(fin)) {
+            return false;
+        }
+        mensaje.limit(fin);
+        return true;
+    }
+
+    /**
+     * Calcula el CRC32C de un paquete: los 8 bytes de su posición seguidos de sus datos.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param posicion Posición del paquete en el archivo.
+     * @param datos Buffer con los datos del paquete entre {@code desde} y su límite; no se
+     *              modifica su posición.
+     * @param desde Posición absoluta donde empiezan los datos.
+     * @return El CRC del paquete.
+     */
+    public static int calcularCrc(CRC32C crc, long posicion, ByteBuffer datos, int desde) {
+        crc.reset();
+        for (int desplazamiento = 56; desplazamiento >= 0; desplazamiento -= 8) {
+            crc.update((int) (posicion >>> desplazamiento));
+        }
+        int posicionOriginal = datos.position();
+        datos.position(desde);
+        crc.update(datos);
+        datos.position(posicionOriginal);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Aporte de un paquete a la huella del archivo: la huella es la suma módulo 2^64 de los
+     * aportes de todos sus paquetes, así que se acumula en cualquier orden.
+     *
+     * @param idPaquete Número del paquete.
+     * @param crc CRC32C del paquete.
+     * @return El aporte del paquete.
+     */
+    public static long terminoHuella(int idPaquete, int crc) {
+        long h = ((long) idPaquete << 32 | Integer.toUnsignedLong(crc)) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Escribe un entero sin signo en base 128 (7 bits por byte, el bit alto indica continuación).
+     *
+     * @param buffer Buffer donde se escribe el entero.
+     * @param valor Valor no negativo a escribir.
+     */
+    public static void escribirVarint(ByteBuffer buffer, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            buffer.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        buffer.put((byte) valor);
+    }
+}
@@ -0,0 +1,174 @@
+package itson.clientearchivos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recibe datagramas por lotes. Cada vez que el canal tiene datos se vacía de una sola vez en
+ * un grupo de buffers directos reutilizados, sin crear objetos por datagrama, y los datagramas
+ * se entregan uno por uno hasta agotar el lote; solo entonces se vuelve a esperar en el selector.
+ * Así el hilo despierta una vez por ráfaga en lugar de una vez por paquete, y quien procesa los
+ * datagramas puede agrupar su propio trabajo (escrituras y acuses) al final de cada lote.
+ *
+ * El canal debe estar conectado al servidor: con un canal conectado la lectura no necesita
+ * construir la dirección del remitente de cada datagrama. Se pueden agregar canales sin
+ * conectar, como el de un grupo multicast; cada lote empieza por un canal distinto para que
+ * ninguno acapare los lotes.
+ * @author asielapodaca
+ */
+public final class ReceptorLotes implements Closeable {
+    private static final int MAX_DATAGRAMAS_POR_LOTE = 64;
+    private static final int MIN_DATAGRAMAS_POR_LOTE = 4;
+    private static final int BYTES_POR_LOTE = 1024 * 1024; // Memoria de los buffers del lote
+
+    private final List<DatagramChannel> canales = new ArrayList<>();
+    private final List<DatagramChannel> agregados = new ArrayList<>();
+    private final Selector selector;
+    private ByteBuffer[] buffers;
+    private int tamanoDatagrama;
+    private int recibidos;   // Datagramas del lote actual
+    private int entregados;  // Datagramas del lote actual ya entregados
+    private int turno;       // Canal por el que empieza el siguiente lote
+    private long lotes;
+    private long datagramas;
+
+    /**
+     * @param canal Canal conectado al servidor; se configura como no bloqueante.
+     * @param tamanoDatagrama Bytes máximos de cada datagrama.
+     */
+    public ReceptorLotes(DatagramChannel canal, int tamanoDatagrama) throws IOException {
+        this.selector = Selector.open();
+        this.tamanoDatagrama = tamanoDatagrama;
+        registrar(canal);
+    }
+
+    /**
+     * Recibe también los datagramas de otro canal, que puede no estar conectado. El receptor
+     * cierra el canal al cerrarse.
+     *
+     * @param canal Canal adicional; se configura como no bloqueante.
+     */
+    public void agregarCanal(DatagramChannel canal) throws IOException {
+        agregados.add(canal);
+        registrar(canal);
+    }
+
+    private void registrar(DatagramChannel canal) throws IOException {
+        canal.configureBlocking(false);
+        canal.register(selector, SelectionKey.OP_READ);
+        canales.add(canal);
+    }
+
+    /**
+     * Cambia el tamaño máximo de los datagramas, por ejemplo al conocer el tamaño de fragmento
+     * acordado. Los buffers se reemplazan al empezar el siguiente lote, así que los datagramas
+     * pendientes del lote actual no se pierden.
+     */
+    public void ajustarTamanoDatagrama(int tamanoDatagrama) {
+        this.tamanoDatagrama = tamanoDatagrama;
+    }
+
+    /**
+     * Entrega el siguiente datagrama. Si el lote actual se agotó, espera a que el canal tenga
+     * datos y lo vacía en un lote nuevo.
+     *
+     * @param tiempoEspera Milisegundos que se espera un datagrama como máximo.
+     * @return El datagrama, entre la posición 0 y su límite. El buffer se reutiliza en el
+     *         siguiente lote, así que no debe conservarse.
+     * @throws SocketTimeoutException Si no llegó ningún datagrama en el tiempo de espera.
+     */
+    public ByteBuffer recibir(int tiempoEspera) throws IOException {
+        if (entregados < recibidos) {
+            return buffers[entregados++];
+        }
+
+        long limite = System.nanoTime() + tiempoEspera * 1_000_000L;
+        while (!llenarLote()) {
+            long restante = (limite - System.nanoTime()) / 1_000_000L;
+            if (restante <= 0) {
+                throw new SocketTimeoutException("No llegó ningún datagrama en " + tiempoEspera + " ms");
+            }
+            selector.select(restante);
+            selector.selectedKeys().clear();
+        }
+        return buffers[entregados++];
+    }
+
+    /**
+     * @return true si quedan datagramas del lote actual por entregar; cuando es false, el
+     *         siguiente {@link #recibir} puede bloquear.
+     */
+    public boolean hayPendientes() {
+        return entregados < recibidos;
+    }
+
+    /**
+     * Lee de los canales, sin bloquear, todos los datagramas que quepan en un lote.
+     *
+     * @return true si se recibió al menos uno.
+     */
+    private boolean llenarLote() throws IOException {
+        if (buffers == null || buffers[0].capacity() != tamanoDatagrama) {
+            int cantidad = Math.max(MIN_DATAGRAMAS_POR_LOTE, Math.min(MAX_DATAGRAMAS_POR_LOTE, BYTES_POR_LOTE / tamanoDatagrama));
+            buffers = new ByteBuffer[cantidad];
+            for (int i = 0; i < cantidad; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(tamanoDatagrama);
+            }
+        }
+
+        recibidos = 0;
+        entregados = 0;
+        for (int i = 0; i < canales.size() && recibidos < buffers.length; i++) {
+            DatagramChannel canal = canales.get((turno + i) % canales.size());
+            while (recibidos < buffers.length && leer(canal, buffers[recibidos])) {
+                buffers[recibidos].flip();
+                recibidos++;
+            }
+        }
+        turno++;
+        if (recibidos > 0) {
+            lotes++;
+            datagramas += recibidos;
+        }
+        return recibidos > 0;
+    }
+
+    /**
+     * Lee un datagrama del canal sin bloquear.
+     *
+     * @return true si se recibió un datagrama.
+     */
+    private static boolean leer(DatagramChannel canal, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            try {
+                return canal.isConnected() ? canal.read(buffer) > 0 : canal.receive(buffer) != null;
+            } catch (PortUnreachableException e) {
+                // El servidor todavía no escucha; se trata como un datagrama perdido
+            }
+        }
+    }
+
+    /**
+     * @return Datagramas recibidos por cada vez que se vació el canal, en promedio.
+     */
+    public double getDatagramasPorLote() {
+        return lotes == 0 ? 0 : (double) datagramas / lotes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        for (DatagramChannel canal : agregados) {
+            canal.close();
+        }
+    }
+}
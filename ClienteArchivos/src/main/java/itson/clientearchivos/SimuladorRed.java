@@ -0,0 +1,194 @@
+package itson.clientearchivos;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulador de red para pruebas, al estilo de {@code tc netem}: se coloca entre los clientes y
+ * el servidor y reenvía los datagramas en ambos sentidos agregando pérdida aleatoria, latencia
+ * y, opcionalmente, un enlace de ancho de banda limitado con una cola finita que descarta lo que
+ * no cabe, como un enrutador congestionado. También puede corromper datagramas cambiando un byte
+ * al azar, para probar la verificación de integridad.
+ *
+ * Uso: {@code java itson.clientearchivos.SimuladorRed <puerto local> <servidor> <puerto del servidor>
+ * [pérdida] [latencia en ms] [ancho de banda en bytes/s] [cola en bytes] [corrupción]}; después se
+ * ejecuta el cliente con {@code -Dcliente.puerto=<puerto local>}.
+ * @author asielapodaca
+ */
+public class SimuladorRed {
+    private static final int TAMANO_MAXIMO_DATAGRAMA = 65507;
+    private static final int TAMANO_BUFFER_SOCKET = 4 * 1024 * 1024;
+    private static final long PERIODO_REPORTE = 5; // Segundos entre reportes de estadísticas
+
+    private final DatagramSocket frontal;
+    private final InetSocketAddress servidor;
+    private final Enlace subida;
+    private final Enlace bajada;
+    private final Map<SocketAddress, DatagramSocket> traseros = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService programador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread hilo = new Thread(r, "simulador-entregas");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    /**
+     * @param puertoLocal Puerto donde el simulador recibe a los clientes.
+     * @param servidor Dirección del servidor real.
+     * @param perdida Probabilidad de perder cada datagrama, entre 0 y 1.
+     * @param latencia Retardo de ida en cada sentido, en milisegundos.
+     * @param anchoBanda Bytes por segundo del enlace en cada sentido (0 = sin límite).
+     * @param cola Bytes que caben en la cola del enlace antes de descartar.
+     * @param corrupcion Probabilidad de cambiar un byte de cada datagrama, entre 0 y 1.
+     */
+    public SimuladorRed(int puertoLocal, InetSocketAddress servidor, double perdida, long latencia,
+            long anchoBanda, long cola, double corrupcion) throws IOException {
+        this.frontal = new DatagramSocket(puertoLocal);
+        this.frontal.setReceiveBufferSize(TAMANO_BUFFER_SOCKET);
+        this.servidor = servidor;
+        this.subida = new Enlace(perdida, latencia, anchoBanda, cola, corrupcion, 1);
+        this.bajada = new Enlace(perdida, latencia, anchoBanda, cola, corrupcion, 2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Uso: SimuladorRed <puerto local> <servidor> <puerto del servidor>"
+                    + " [pérdida] [latencia ms] [ancho de banda bytes/s] [cola bytes] [corrupción]");
+            return;
+        }
+        int puertoLocal = Integer.parseInt(args[0]);
+        InetSocketAddress servidor = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+        double perdida = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        long latencia = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        long anchoBanda = args.length > 5 ? Long.parseLong(args[5]) : 0;
+        long cola = args.length > 6 ? Long.parseLong(args[6]) : 256 * 1024;
+        double corrupcion = args.length > 7 ? Double.parseDouble(args[7]) : 0;
+
+        System.out.printf("Simulador en el puerto %d hacia %s: pérdida %.1f%%, latencia %d ms, ancho de banda %s,"
+                + " cola %d bytes, corrupción %.1f%%%n", puertoLocal, servidor, perdida * 100, latencia,
+                anchoBanda > 0 ? anchoBanda + " bytes/s" : "sin límite", cola, corrupcion * 100);
+        new SimuladorRed(puertoLocal, servidor, perdida, latencia, anchoBanda, cola, corrupcion).ejecutar();
+    }
+
+    /**
+     * Reenvía al servidor lo que llega de los clientes. Cada cliente tiene su propio socket hacia
+     * el servidor, así el servidor ve un puerto distinto por cliente y las respuestas se pueden
+     * devolver a quien corresponde.
+     */
+    public void ejecutar() throws IOException {
+        programador.scheduleAtFixedRate(this::reportar, PERIODO_REPORTE, PERIODO_REPORTE, TimeUnit.SECONDS);
+        byte[] buffer = new byte[TAMANO_MAXIMO_DATAGRAMA];
+        DatagramPacket paquete = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            paquete.setLength(buffer.length);
+            frontal.receive(paquete);
+            SocketAddress cliente = paquete.getSocketAddress();
+            DatagramSocket trasero = traseros.get(cliente);
+            if (trasero == null) {
+                trasero = abrirTrasero(cliente);
+                traseros.put(cliente, trasero);
+            }
+            subida.transmitir(Arrays.copyOf(buffer, paquete.getLength()), trasero, servidor);
+        }
+    }
+
+    private DatagramSocket abrirTrasero(SocketAddress cliente) throws IOException {
+        DatagramSocket trasero = new DatagramSocket();
+        trasero.setReceiveBufferSize(TAMANO_BUFFER_SOCKET);
+        Thread hilo = new Thread(() -> {
+            byte[] buffer = new byte[TAMANO_MAXIMO_DATAGRAMA];
+            DatagramPacket paquete = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    paquete.setLength(buffer.length);
+                    trasero.receive(paquete);
+                    bajada.transmitir(Arrays.copyOf(buffer, paquete.getLength()), frontal, cliente);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "simulador-" + cliente);
+        hilo.setDaemon(true);
+        hilo.start();
+        return trasero;
+    }
+
+    private void reportar() {
+        System.out.println("Subida: " + subida.resumen() + " | Bajada: " + bajada.resumen());
+    }
+
+    /**
+     * Un sentido del enlace simulado. Los datagramas salen uno tras otro a la tasa del enlace;
+     * los que llegan cuando la cola ya tiene {@code cola} bytes pendientes se descartan. Después
+     * de salir tardan {@code latencia} en llegar.
+     */
+    private final class Enlace {
+        private final double perdida;
+        private final double corrupcion;
+        private final long latencia;
+        private final long anchoBanda;
+        private final long cola;
+        private final Random aleatorio;
+        private long libreDesde; // Momento en que el enlace termina de transmitir lo que tiene en cola
+        private final AtomicLong reenviados = new AtomicLong();
+        private final AtomicLong perdidos = new AtomicLong();
+        private final AtomicLong descartados = new AtomicLong();
+        private final AtomicLong corrompidos = new AtomicLong();
+
+        private Enlace(double perdida, long latencia, long anchoBanda, long cola, double corrupcion, long semilla) {
+            this.perdida = perdida;
+            this.corrupcion = corrupcion;
+            this.latencia = TimeUnit.MILLISECONDS.toNanos(latencia);
+            this.anchoBanda = anchoBanda;
+            this.cola = cola;
+            this.aleatorio = new Random(semilla);
+        }
+
+        private synchronized void transmitir(byte[] datos, DatagramSocket salida, SocketAddress destino) {
+            if (aleatorio.nextDouble() < perdida) {
+                perdidos.incrementAndGet();
+                return;
+            }
+            if (datos.length > 0 && aleatorio.nextDouble() < corrupcion) {
+                datos[aleatorio.nextInt(datos.length)] ^= (byte) (1 + aleatorio.nextInt(255));
+                corrompidos.incrementAndGet();
+            }
+
+            long ahora = System.nanoTime();
+            long llegada = ahora + latencia;
+            if (anchoBanda > 0) {
+                long inicio = Math.max(ahora, libreDesde);
+                if ((inicio - ahora) * anchoBanda / 1_000_000_000L > cola) {
+                    descartados.incrementAndGet();
+                    return;
+                }
+                libreDesde = inicio + datos.length * 1_000_000_000L / anchoBanda;
+                llegada = libreDesde + latencia;
+            }
+
+            reenviados.incrementAndGet();
+            programador.schedule(() -> {
+                try {
+                    salida.send(new DatagramPacket(datos, datos.length, destino));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, llegada - ahora, TimeUnit.NANOSECONDS);
+        }
+
+        private String resumen() {
+            return reenviados.get() + " reenviados, " + perdidos.get() + " perdidos, "
+                    + descartados.get() + " descartados por la cola, " + corrompidos.get() + " corrompidos";
+        }
+    }
+}
@@ -5,270 +5,1200 @@
 package itson.clientearchivos;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Implementa el patrón Proxy para la transferencia de archivos. Oculta la
  * complejidad de la comunicación UDP y manejo de paquetes perdidos.
  *
+ * Los datagramas se reciben por lotes con un {@link ReceptorLotes} y el trabajo por paquete
+ * se agrupa al final de cada lote: los paquetes consecutivos se escriben juntos con un
+ * {@link EscritorAgrupado} y se envía un solo acuse por lote.
+ *
+ * Si el servidor difunde el archivo por multicast a varios clientes, el cliente se une al grupo
+ * que indican los metadatos y recibe los paquetes por ambos canales; los acuses y las
+ * solicitudes de reenvío siguen yendo directo al servidor.
+ *
  * @author asielapodaca
  */
 public class TransferenciaProxy {
 
-    private final DatagramSocket socket;
+    private final DatagramChannel canal;
     private final String servidorHost;
     private final int servidorPuerto;
-    private static final int TAMANO_BUFFER = 1024;
-    private static final int TIEMPO_ESPERA = 2000; // 2 segundos
+    private static final int TAMANO_MAXIMO_DATAGRAMA = 65507; // Carga útil máxima de UDP sobre IPv4
+    private static final int TAMANO_MAXIMO_ACUSE = 1024; // Cada acuse selectivo cabe en un datagrama pequeño
+    private static final int TAMANO_FRAGMENTO_PREDETERMINADO = 1024; // Si no se conoce la MTU de la ruta
+    private static final int TAMANO_BUFFER_SOCKET = 4 * 1024 * 1024;
     private static final int MAX_INTENTOS = 5;
+    private static final int BYTES_POR_ACUSE = 8 * 1024; // Cada cuántos bytes se avanza la ventana del servidor
+    // Además del acuse al final de cada lote, dentro de un lote largo se confirma a lo más cada
+    // tantos paquetes para que la ventana del servidor siga avanzando
+    private static final int MAX_PAQUETES_POR_ACUSE = 16;
+    private static final byte VERSION_DESCONOCIDA = -1;
+    // Tiempo mínimo entre dos líneas de progreso; escribir en la consola por cada lote frena la recepción
+    private static final long INTERVALO_PROGRESO = TimeUnit.MILLISECONDS.toNanos(Long.getLong("cliente.intervaloProgreso", 500L));
+    // Corrección de errores hacia adelante: paquetes de datos y de paridad por bloque (0 = desactivada)
+    private static final int PAQUETES_POR_BLOQUE = Integer.getInteger("cliente.fecBloque", 0);
+    private static final int PAQUETES_PARIDAD = Integer.getInteger("cliente.fecParidad", 2);
+    // Códecs que se aceptan; el servidor solo comprime los archivos que lo valen
+    private static final int CODECS = Boolean.parseBoolean(System.getProperty("cliente.compresion", "true"))
+            ? Protocolo.CODEC_DEFLATE : Protocolo.CODEC_NINGUNO;
+    private static final int TAMANO_BUFFER_DESCOMPRESION = 64 * 1024;
+    // Aceptar que el servidor difunda el archivo por multicast si lo tiene configurado
+    private static final boolean MULTICAST = Boolean.getBoolean("cliente.multicast");
+    // Interfaz por la que se recibe el multicast (vacío = la que lleva al servidor)
+    private static final String INTERFAZ_MULTICAST = System.getProperty("cliente.interfazMulticast", "");
+    private int idTransferencia; // Distingue las transferencias que salen del mismo puerto
+    private int idGrupo;         // Id de los paquetes que llegan por el grupo multicast, o 0
+    private String prefijo = ""; // Identifica los mensajes de cada parte en una descarga en paralelo
+    private EstimadorRtt rtt;    // Da los tiempos de espera según el RTT medido con el servidor
+    private ReceptorLotes receptor;
+    private final CRC32C crc = new CRC32C();
 
-    public TransferenciaProxy(DatagramSocket socket, String servidorHost, int servidorPuerto) {
-        this.socket = socket;
+    /**
+     * @param canal Canal por el que se habla con el servidor; se conecta a él en la primera solicitud.
+     */
+    public TransferenciaProxy(DatagramChannel canal, String servidorHost, int servidorPuerto) {
+        this.canal = canal;
         this.servidorHost = servidorHost;
         this.servidorPuerto = servidorPuerto;
     }
 
     /**
      * Solicita un archivo al servidor y maneja la recepción completa incluyendo
-     * la solicitud de retransmisión de paquetes perdidos.
+     * la solicitud de retransmisión de paquetes perdidos. Cada paquete se escribe en su
+     * posición del archivo de destino en cuanto llega, por lo que la memoria usada no
+     * depende del tamaño del archivo.
+     *
+     * Si una descarga anterior del mismo archivo se interrumpió, su diario permite pedir
+     * solo los paquetes que faltan, siempre que el archivo no haya cambiado en el servidor.
+     *
+     * Cada paquete se verifica con su CRC32C al llegar y el archivo completo con la huella
+     * que envía el servidor en los metadatos, o en el FIN si todavía no la conocía.
+     *
+     * Si el servidor envía el archivo comprimido, se recibe comprimido en el destino y se
+     * descomprime al terminar.
+     *
+     * @param nombreArchivo Nombre del archivo en el servidor.
+     * @param destino Ruta donde se guarda el archivo recibido.
+     * @return true si el archivo se recibió completo e íntegro.
      */
-    public byte[] solicitarArchivo(String nombreArchivo) throws IOException {
+    public boolean solicitarArchivo(String nombreArchivo, Path destino) throws IOException {
+        DiarioDescarga diario = DiarioDescarga.abrir(destino);
+        boolean completo;
+        try (RandomAccessFile archivo = abrirDestino(destino, diario)) {
+            completo = solicitarParte(nombreArchivo, 0, 1, archivo, diario);
+        }
+        return terminarDescarga(destino, diario, completo);
+    }
+
+    /**
+     * Solicita una parte de un archivo: el servidor divide el archivo en {@code partes}
+     * rangos de paquetes consecutivos y envía solo el rango {@code parte}. Varias partes
+     * pueden recibirse a la vez en distintos sockets sobre el mismo archivo de destino.
+     *
+     * @param nombreArchivo Nombre del archivo en el servidor.
+     * @param parte Parte a solicitar, desde 0.
+     * @param partes Cantidad de partes en que se divide el archivo.
+     * @param destino Archivo de destino compartido por todas las partes.
+     * @param diario Diario de progreso compartido por todas las partes.
+     * @return true si la parte se recibió completa.
+     */
+    public boolean solicitarParte(String nombreArchivo, int parte, int partes, RandomAccessFile destino,
+            DiarioDescarga diario) throws IOException {
+        prefijo = partes > 1 ? "[Parte " + (parte + 1) + "/" + partes + "] " : "";
         InetAddress direccionServidor = InetAddress.getByName(servidorHost);
+        idTransferencia = ThreadLocalRandom.current().nextInt();
+        idGrupo = 0;
+        rtt = new EstimadorRtt();
+        // Al reanudar se pide el mismo fragmento para que los números de paquete del diario sigan valiendo
+        long versionReanudar = diario.getVersionArchivo();
+        int fragmentoSolicitado = versionReanudar != 0 ? diario.getTamanoFragmento() : calcularTamanoFragmento(direccionServidor);
+        canal.setOption(StandardSocketOptions.SO_RCVBUF, TAMANO_BUFFER_SOCKET);
+        if (!canal.isConnected()) {
+            // Conectado, el canal solo recibe datagramas del servidor y no resuelve el remitente de cada uno
+            canal.connect(new InetSocketAddress(direccionServidor, servidorPuerto));
+        }
+
+        // Hasta conocer el tamaño de fragmento acordado cualquier datagrama puede ser el más grande
+        try (ReceptorLotes lotes = new ReceptorLotes(canal, TAMANO_MAXIMO_DATAGRAMA)) {
+            receptor = lotes;
+
+            // Enviar solicitud: [tipo][id de transferencia (4 bytes)][versión][tamaño de fragmento (4 bytes)]
+            //                  [parte (2 bytes)][partes (2 bytes)][versión a reanudar (8 bytes)]
+            //                  [paquetes por bloque][paquetes de paridad][códecs][opciones]
+            //                  [nombre del archivo][CRC32C]
+            byte[] nombre = nombreArchivo.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer mensajeSolicitud = ByteBuffer.allocate(30 + nombre.length)
+                    .put(Protocolo.SOLICITUD)
+                    .putInt(idTransferencia)
+                    .put(Protocolo.VERSION)
+                    .putInt(fragmentoSolicitado)
+                    .putShort((short) parte)
+                    .putShort((short) partes)
+                    .putLong(versionReanudar)
+                    .put((byte) PAQUETES_POR_BLOQUE)
+                    .put((byte) (PAQUETES_POR_BLOQUE > 0 ? PAQUETES_PARIDAD : 0))
+                    .put((byte) CODECS)
+                    .put(MULTICAST ? Protocolo.OPCION_MULTICAST : 0)
+                    .put(nombre);
+            Protocolo.sellar(crc, mensajeSolicitud);
+            mensajeSolicitud.flip();
+
+            // Metadatos del archivo (total de paquetes, tamaño, tamaño de fragmento, rango de paquetes de
+            // esta parte, versión del archivo, paridad acordada, huella y códec)
+            ByteBuffer metadatos = esperarMetadatos(mensajeSolicitud);
+            if (metadatos == null) {
+                return false;
+            }
+            int totalPaquetes = metadatos.getInt();
+            long tamanoArchivo = metadatos.getLong();
+            int tamanoFragmento = metadatos.getInt();
+            int primerPaquete = metadatos.getInt();
+            int finPaquete = metadatos.getInt();
+            long versionArchivo = metadatos.getLong();
+            int paquetesPorBloque = Byte.toUnsignedInt(metadatos.get());
+            int paquetesParidad = Byte.toUnsignedInt(metadatos.get());
+            long huellaRango = metadatos.getLong();
+            byte codec = metadatos.get();
+            long tamanoOriginal = metadatos.getLong();
+            int grupo = metadatos.getInt();
+            int puertoGrupo = Short.toUnsignedInt(metadatos.getShort());
+            byte[] direccionGrupo = new byte[4];
+            metadatos.get(direccionGrupo);
+
+            System.out.println(prefijo + "Archivo encontrado. Total de paquetes: " + totalPaquetes);
+            System.out.println(prefijo + "Tamaño del archivo: " + tamanoOriginal + " bytes");
+            if (codec == Protocolo.CODEC_DEFLATE) {
+                System.out.printf("%sComprimido con Deflate: %d bytes (%.1f%%)%n", prefijo, tamanoArchivo,
+                        100.0 * tamanoArchivo / tamanoOriginal);
+            } else if (codec != Protocolo.CODEC_NINGUNO) {
+                System.out.println(prefijo + "El servidor usó un códec desconocido: " + codec);
+                return false;
+            }
+            System.out.println(prefijo + "Tamaño de fragmento: " + tamanoFragmento + " bytes");
+            if (partes > 1) {
+                System.out.println(prefijo + "Paquetes " + primerPaquete + " a " + (finPaquete - 1));
+            }
+            if (paquetesParidad > 0) {
+                System.out.println(prefijo + "Paridad: " + paquetesParidad + " paquetes por cada " + paquetesPorBloque);
+            }
+            if (grupo != 0 && idGrupo == 0) {
+                InetSocketAddress direccion = new InetSocketAddress(InetAddress.getByAddress(direccionGrupo), puertoGrupo);
+                if (!unirseGrupo(direccion)) {
+                    return false;
+                }
+                idGrupo = grupo;
+                System.out.println(prefijo + "Recibiendo por el grupo multicast " + direccion);
+            }
+
+            // Si el diario es de otra versión del archivo se descarta lo recibido y se empieza de cero.
+            // Después se da al archivo su tamaño final; setLength no sobrescribe lo que otras partes
+            // ya escribieron
+            synchronized (diario) {
+                if (!diario.preparar(versionArchivo, tamanoArchivo, tamanoFragmento, totalPaquetes, codec, tamanoOriginal)) {
+                    destino.setLength(0);
+                }
+                if (destino.length() < tamanoArchivo) {
+                    destino.setLength(tamanoArchivo);
+                }
+            }
+
+            // Iniciar recepción de paquetes; los datagramas que ya estén en el lote se conservan
+            receptor.ajustarTamanoDatagrama(Protocolo.TAMANO_ENCABEZADO_DATOS + tamanoFragmento);
+            Recepcion recepcion = new Recepcion(primerPaquete, finPaquete, tamanoArchivo, tamanoFragmento,
+                    paquetesPorBloque, paquetesParidad, destino.getChannel(), diario);
+            // Con 0 el servidor todavía no conoce la huella del rango y la envía en el FIN
+            if (huellaRango != 0 || primerPaquete == finPaquete) {
+                recepcion.huellaRango = huellaRango;
+                recepcion.huellaConocida = true;
+            }
+            if (recepcion.cantidadRecibidos > 0) {
+                System.out.println(prefijo + "Reanudando: " + recepcion.cantidadRecibidos + " de "
+                        + recepcion.totalPaquetes + " paquetes ya recibidos.");
+            }
+            if (!recibirPaquetes(recepcion)) {
+                return false;
+            }
+            if (!recepcion.huellaConocida && !esperarFin(recepcion)) {
+                return false;
+            }
+            diario.sumarHuellaServidor(recepcion.huellaRango);
 
-        // Enviar solicitud inicial y reintentar si es necesario
-        boolean solicitudEnviada = false;
-        int intentos = 0;
+            // Notificar al servidor que la transferencia está completa
+            enviarConfirmacion();
 
-        while (!solicitudEnviada && intentos < MAX_INTENTOS) {
+            return true;
+        }
+    }
+
+    /**
+     * Solicita varios archivos en una sola sesión. El servidor envía un lote con un manifiesto
+     * seguido de los archivos, todos en el mismo rango de paquetes, así que la ventana, los acuses
+     * y la paridad se comparten y los archivos pequeños no esperan cada uno su propia solicitud.
+     * Cada archivo se guarda con su nombre después de {@code prefijoDestino} y se verifica y
+     * descomprime en cuanto llega completo, mientras se reciben los demás. Los lotes no se
+     * reanudan: los archivos incompletos al terminar se borran.
+     *
+     * @param patrones Nombres de archivos o patrones glob, como {@code *.txt}.
+     * @param prefijoDestino Ruta a la que se agrega el nombre de cada archivo para guardarlo.
+     * @return Bytes de los archivos recibidos completos e íntegros, o -1 si el servidor no
+     *         envió el lote.
+     */
+    public long solicitarLote(List<String> patrones, String prefijoDestino) throws IOException {
+        prefijo = "";
+        InetAddress direccionServidor = InetAddress.getByName(servidorHost);
+        idTransferencia = ThreadLocalRandom.current().nextInt();
+        idGrupo = 0;
+        rtt = new EstimadorRtt();
+        int fragmentoSolicitado = calcularTamanoFragmento(direccionServidor);
+        canal.setOption(StandardSocketOptions.SO_RCVBUF, TAMANO_BUFFER_SOCKET);
+        if (!canal.isConnected()) {
+            canal.connect(new InetSocketAddress(direccionServidor, servidorPuerto));
+        }
+
+        // Solicitud: [tipo][id de transferencia (4 bytes)][versión][tamaño de fragmento (4 bytes)]
+        //            [paquetes por bloque][paquetes de paridad][códecs][patrones separados por '\n'][CRC32C]
+        byte[] nombres = String.join("\n", patrones).getBytes(StandardCharsets.UTF_8);
+        if (17 + nombres.length > TAMANO_MAXIMO_DATAGRAMA) {
+            System.out.println("La lista de archivos no cabe en una solicitud; use patrones como *.txt.");
+            return -1;
+        }
+        ByteBuffer mensajeSolicitud = ByteBuffer.allocate(17 + nombres.length)
+                .put(Protocolo.SOLICITUD_LOTE)
+                .putInt(idTransferencia)
+                .put(Protocolo.VERSION)
+                .putInt(fragmentoSolicitado)
+                .put((byte) PAQUETES_POR_BLOQUE)
+                .put((byte) (PAQUETES_POR_BLOQUE > 0 ? PAQUETES_PARIDAD : 0))
+                .put((byte) CODECS)
+                .put(nombres);
+        Protocolo.sellar(crc, mensajeSolicitud);
+        mensajeSolicitud.flip();
+
+        try (ReceptorLotes lotes = new ReceptorLotes(canal, TAMANO_MAXIMO_DATAGRAMA)) {
+            receptor = lotes;
+            // Los metadatos de un lote describen su manifiesto; la versión, el códec y el grupo no se usan
+            ByteBuffer metadatos = esperarMetadatos(mensajeSolicitud);
+            if (metadatos == null) {
+                return -1;
+            }
+            int totalPaquetes = metadatos.getInt();
+            long tamanoManifiesto = metadatos.getLong();
+            int tamanoFragmento = metadatos.getInt();
+            metadatos.position(metadatos.position() + 2 * Integer.BYTES + Long.BYTES);
+            int paquetesPorBloque = Byte.toUnsignedInt(metadatos.get());
+            int paquetesParidad = Byte.toUnsignedInt(metadatos.get());
+            long huellaManifiesto = metadatos.getLong();
+            metadatos.get();
+            long tamanoArchivos = metadatos.getLong();
+
+            System.out.println("Lote encontrado. Total de paquetes: " + totalPaquetes);
+            System.out.println("Tamaño de los archivos: " + tamanoArchivos + " bytes");
+            System.out.println("Tamaño de fragmento: " + tamanoFragmento + " bytes");
+            if (paquetesParidad > 0) {
+                System.out.println("Paridad: " + paquetesParidad + " paquetes por cada " + paquetesPorBloque);
+            }
+
+            receptor.ajustarTamanoDatagrama(Protocolo.TAMANO_ENCABEZADO_DATOS + tamanoFragmento);
+            DestinoLote lote = new DestinoLote(prefijoDestino, totalPaquetes, tamanoFragmento, tamanoManifiesto,
+                    huellaManifiesto, paquetesPorBloque);
+            Recepcion recepcion = new Recepcion(totalPaquetes, tamanoFragmento, paquetesPorBloque, paquetesParidad, lote);
+            int recibidos;
             try {
-                // Enviar solicitud
-                byte[] datosSolicitud = nombreArchivo.getBytes();
-                DatagramPacket solicitud = new DatagramPacket(
-                        datosSolicitud,
-                        datosSolicitud.length,
-                        direccionServidor,
-                        servidorPuerto
-                );
-                socket.send(solicitud);
-                socket.setSoTimeout(TIEMPO_ESPERA);
-
-                // Esperar metadatos del archivo (total de paquetes y tamaño)
-                byte[] metadataBuffer = new byte[8]; // 4 bytes para totalPaquetes + 4 bytes para tamaño
-                DatagramPacket metadataPacket = new DatagramPacket(metadataBuffer, metadataBuffer.length);
-                socket.receive(metadataPacket);
-
-                ByteBuffer metadataByteBuffer = ByteBuffer.wrap(metadataPacket.getData());
-                int totalPaquetes = metadataByteBuffer.getInt();
-                int tamanoArchivo = metadataByteBuffer.getInt();
-
-                System.out.println("Archivo encontrado. Total de paquetes: " + totalPaquetes);
-                System.out.println("Tamaño del archivo: " + tamanoArchivo + " bytes");
-
-                // Iniciar recepción de paquetes
-                byte[] archivoCompleto = recibirPaquetes(totalPaquetes, tamanoArchivo);
-
-                // Notificar al servidor que la transferencia está completa
-                enviarConfirmacion();
-
-                return archivoCompleto;
+                if (recibirPaquetes(recepcion)) {
+                    enviarConfirmacion();
+                }
+            } finally {
+                recibidos = lote.terminar();
+            }
+            System.out.println("Archivos recibidos: " + recibidos + " de " + Math.max(0, lote.getCantidadArchivos()));
+            return lote.getBytesRecibidos();
+        }
+    }
+
+    /**
+     * Envía una solicitud y espera la respuesta con los metadatos, repitiendo la solicitud si
+     * no llega a tiempo. La respuesta a la primera solicitud es la primera muestra del RTT.
+     *
+     * @param solicitud Solicitud sellada, lista para enviarse.
+     * @return Los metadatos, posicionados después del encabezado, o null si el servidor respondió
+     *         con un error, usa otra versión del protocolo o no respondió.
+     */
+    private ByteBuffer esperarMetadatos(ByteBuffer solicitud) throws IOException {
+        for (int intentos = 0; intentos < MAX_INTENTOS; intentos++) {
+            try {
+                long envioSolicitud = System.nanoTime();
+                canal.write(solicitud.rewind());
+
+                ByteBuffer metadatos;
+                byte tipo;
+                do {
+                    metadatos = receptor.recibir(rtt.getRtoMilisegundos());
+                    tipo = leerEncabezado(metadatos, metadatos.limit());
+                } while (tipo != Protocolo.METADATOS && tipo != Protocolo.ERROR && tipo != VERSION_DESCONOCIDA);
+
+                if (intentos == 0) {
+                    rtt.registrarMuestra(System.nanoTime() - envioSolicitud);
+                }
+
+                if (tipo == VERSION_DESCONOCIDA) {
+                    System.out.println(prefijo + "El servidor usa la versión " + metadatos.get(0)
+                            + " del protocolo y este cliente la versión " + Protocolo.VERSION + ".");
+                    return null;
+                }
+                if (tipo == Protocolo.ERROR) {
+                    System.out.println(prefijo + "El servidor respondió: " + leerError(metadatos));
+                    return null;
+                }
+                return metadatos;
             } catch (SocketTimeoutException e) {
-                System.out.println("Tiempo de espera agotado. Reintentando solicitud... (" + (intentos + 1) + "/" + MAX_INTENTOS + ")");
-                intentos++;
+                System.out.println(prefijo + "Tiempo de espera agotado. Reintentando solicitud... (" + (intentos + 1) + "/" + MAX_INTENTOS + ")");
+                rtt.retroceder();
             }
         }
+        System.out.println(prefijo + "No se pudo establecer conexión con el servidor después de " + MAX_INTENTOS + " intentos.");
+        return null;
+    }
 
-        if (intentos >= MAX_INTENTOS) {
-            System.out.println("No se pudo establecer conexión con el servidor después de " + MAX_INTENTOS + " intentos.");
+    /**
+     * Pide al servidor el listado de los archivos que ofrece. El listado llega en páginas de un
+     * datagrama cada una; una página que no llega a tiempo se pide de nuevo. Si los archivos del
+     * servidor cambian mientras se pide, el listado puede omitir o repetir alguno.
+     *
+     * @return Los archivos ordenados por nombre, o null si el servidor no respondió o respondió
+     *         con un error.
+     */
+    public List<ArchivoRemoto> listarArchivos() throws IOException {
+        InetAddress direccionServidor = InetAddress.getByName(servidorHost);
+        idTransferencia = ThreadLocalRandom.current().nextInt();
+        idGrupo = 0;
+        rtt = new EstimadorRtt();
+        if (!canal.isConnected()) {
+            canal.connect(new InetSocketAddress(direccionServidor, servidorPuerto));
         }
 
-        return null;
+        List<ArchivoRemoto> archivos = new ArrayList<>();
+        try (ReceptorLotes lotes = new ReceptorLotes(canal, TAMANO_MAXIMO_DATAGRAMA)) {
+            receptor = lotes;
+            int total = -1;
+            int intentos = 0;
+            while (archivos.size() != total) {
+                // Formato: [tipo][id][versión][primer archivo (4 bytes)][CRC32C]
+                ByteBuffer solicitud = ByteBuffer.allocate(14)
+                        .put(Protocolo.LISTA)
+                        .putInt(idTransferencia)
+                        .put(Protocolo.VERSION)
+                        .putInt(archivos.size());
+                Protocolo.sellar(crc, solicitud);
+                solicitud.flip();
+                canal.write(solicitud);
+
+                ByteBuffer listado;
+                byte tipo;
+                try {
+                    do {
+                        listado = receptor.recibir(rtt.getRtoMilisegundos());
+                        tipo = leerEncabezado(listado, listado.limit());
+                    } while (tipo != Protocolo.LISTADO && tipo != Protocolo.ERROR && tipo != VERSION_DESCONOCIDA);
+                } catch (SocketTimeoutException e) {
+                    if (++intentos >= MAX_INTENTOS) {
+                        System.out.println("No se pudo obtener el listado del servidor después de " + MAX_INTENTOS + " intentos.");
+                        return null;
+                    }
+                    rtt.retroceder();
+                    continue;
+                }
+
+                if (tipo == VERSION_DESCONOCIDA) {
+                    System.out.println("El servidor usa la versión " + listado.get(0)
+                            + " del protocolo y este cliente la versión " + Protocolo.VERSION + ".");
+                    return null;
+                }
+                if (tipo == Protocolo.ERROR) {
+                    System.out.println("El servidor respondió: " + leerError(listado));
+                    return null;
+                }
+
+                total = listado.getInt();
+                int primero = listado.getInt();
+                int cantidad = Short.toUnsignedInt(listado.getShort());
+                if (primero != archivos.size()) {
+                    continue; // Respuesta retrasada de una página anterior
+                }
+                for (int i = 0; i < cantidad; i++) {
+                    byte[] nombre = new byte[Short.toUnsignedInt(listado.getShort())];
+                    listado.get(nombre);
+                    archivos.add(new ArchivoRemoto(new String(nombre, StandardCharsets.UTF_8), listado.getLong(),
+                            listado.getLong()));
+                }
+                if (cantidad == 0) {
+                    break; // El listado se acortó mientras se pedía
+                }
+            }
+        }
+        return archivos;
     }
 
-    private byte[] recibirPaquetes(int totalPaquetes, int tamanoArchivo) throws IOException {
-        TreeMap<Integer, byte[]> paquetesRecibidos = new TreeMap<>();
+    /**
+     * Abre el archivo de destino; se vacía salvo que su diario traiga el progreso de una
+     * descarga interrumpida. Al llegar los metadatos se le da su tamaño final para que cada
+     * paquete pueda escribirse directamente en su posición.
+     *
+     * @param destino Ruta del archivo de destino.
+     * @param diario Diario de progreso de la descarga.
+     * @return El archivo abierto para escritura.
+     */
+    public static RandomAccessFile abrirDestino(Path destino, DiarioDescarga diario) throws IOException {
+        RandomAccessFile archivo = new RandomAccessFile(destino.toFile(), "rw");
+        if (!diario.tieneProgreso()) {
+            archivo.setLength(0);
+        }
+        return archivo;
+    }
+
+    /**
+     * Cierra una descarga: si terminó se compara la huella acumulada con la del servidor, se
+     * descomprime el archivo si llegó comprimido y se borra el diario; si la huella no coincide
+     * el archivo está corrupto y se borra también. Si la descarga no terminó se conserva el
+     * archivo parcial junto con el diario para reanudarla en el siguiente intento.
+     *
+     * @param destino Ruta del archivo de destino.
+     * @param diario Diario de progreso de la descarga.
+     * @param completo Si el archivo se recibió completo.
+     * @return true si el archivo se recibió completo e íntegro.
+     */
+    public static boolean terminarDescarga(Path destino, DiarioDescarga diario, boolean completo) throws IOException {
+        if (completo) {
+            boolean integro = diario.huellaCoincide();
+            if (!integro) {
+                System.out.println("El archivo recibido no coincide con la huella del servidor; se descarta.");
+            }
+            Path descomprimido = null;
+            if (integro && diario.getCodec() == Protocolo.CODEC_DEFLATE) {
+                descomprimido = descomprimir(destino, diario.getTamanoOriginal());
+                integro = descomprimido != null;
+            }
+            // El diario se borra antes de reemplazar el archivo comprimido: si el proceso termina
+            // entre ambos pasos, la descarga empieza de cero en lugar de descomprimir dos veces
+            diario.eliminar();
+            if (!integro) {
+                Files.deleteIfExists(destino);
+            } else if (descomprimido != null) {
+                Files.move(descomprimido, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return integro;
+        } else if (diario.tieneProgreso()) {
+            diario.guardar();
+            System.out.println("Descarga incompleta; se reanudará en el siguiente intento.");
+        } else {
+            Files.deleteIfExists(destino);
+        }
+        return false;
+    }
+
+    /**
+     * Elige el tamaño de fragmento a pedir según la MTU de la interfaz por la que sale el
+     * tráfico hacia el servidor, para que cada paquete quepa en una trama sin fragmentarse en IP.
+     * En loopback la MTU es de 64 KB, así que se pide el máximo que admite UDP. La propiedad
+     * {@code cliente.fragmento} permite fijarlo a mano.
+     */
+    private int calcularTamanoFragmento(InetAddress direccionServidor) {
+        Integer configurado = Integer.getInteger("cliente.fragmento");
+        if (configurado != null) {
+            return configurado;
+        }
+        try (DatagramSocket sonda = new DatagramSocket()) {
+            // Conectar un socket UDP no envía nada, solo resuelve la interfaz de salida
+            sonda.connect(direccionServidor, servidorPuerto);
+            NetworkInterface interfaz = NetworkInterface.getByInetAddress(sonda.getLocalAddress());
+            if (interfaz == null) {
+                return TAMANO_FRAGMENTO_PREDETERMINADO;
+            }
+            // Restar los encabezados IP y UDP, y el encabezado de nuestros paquetes
+            int encabezadosIp = direccionServidor instanceof Inet6Address ? 48 : 28;
+            int fragmento = interfaz.getMTU() - encabezadosIp - Protocolo.TAMANO_ENCABEZADO_DATOS;
+            return Math.min(fragmento, TAMANO_MAXIMO_DATAGRAMA - Protocolo.TAMANO_ENCABEZADO_DATOS);
+        } catch (IOException e) {
+            return TAMANO_FRAGMENTO_PREDETERMINADO;
+        }
+    }
+
+    private boolean recibirPaquetes(Recepcion recepcion) throws IOException {
+        int totalPaquetes = recepcion.totalPaquetes;
+        if (recepcion.cantidadRecibidos == totalPaquetes) {
+            return true;  // Parte vacía o que ya se había recibido completa en un intento anterior
+        }
         boolean recepcionCompleta = false;
-        int tiempoEsperaActual = TIEMPO_ESPERA;
+        int esperasSinProgreso = 0;
+        int recibidosAntes = recepcion.cantidadRecibidos;
 
-        // Configurar tiempo de espera inicial
-        socket.setSoTimeout(tiempoEsperaActual);
+        // El tiempo de espera es el RTO: si en ese tiempo no llega nada, lo que falta se perdió
 
-        System.out.println("Recibiendo paquetes...");
+        System.out.println(prefijo + "Recibiendo paquetes...");
 
         while (!recepcionCompleta) {
             try {
                 // Recibir paquetes hasta que se agote el tiempo de espera
-                recibirPaquetesPendientes(paquetesRecibidos, totalPaquetes);
+                recibirPaquetesPendientes(recepcion);
 
                 // Verificar si se han recibido todos los paquetes
-                if (paquetesRecibidos.size() == totalPaquetes) {
+                if (recepcion.cantidadRecibidos == totalPaquetes) {
                     recepcionCompleta = true;
-                    System.out.println("Todos los paquetes recibidos correctamente.");
+                    System.out.println(prefijo + "Todos los paquetes recibidos correctamente.");
+                    if (recepcion.paquetesReconstruidos > 0) {
+                        System.out.println(prefijo + "Paquetes reconstruidos con paridad: " + recepcion.paquetesReconstruidos);
+                    }
+                    if (recepcion.paquetesCorruptos > 0) {
+                        System.out.println(prefijo + "Paquetes descartados por CRC: " + recepcion.paquetesCorruptos);
+                    }
                 } else {
                     // Solicitar paquetes faltantes
-                    Set<Integer> paquetesFaltantes = IntStream.range(0, totalPaquetes)
-                            .boxed()
-                            .filter(i -> !paquetesRecibidos.containsKey(i))
-                            .collect(Collectors.toSet());
+                    System.out.println(prefijo + "Paquetes faltantes: " + (totalPaquetes - recepcion.cantidadRecibidos) + " de " + totalPaquetes);
 
-                    System.out.println("Paquetes faltantes: " + paquetesFaltantes.size() + " de " + totalPaquetes);
+                    solicitarPaquetesFaltantes(recepcion);
 
-                    if (!paquetesFaltantes.isEmpty()) {
-                        solicitarPaquetesFaltantes(paquetesFaltantes);
-
-                        // Incrementar tiempo de espera para dar más tiempo a los paquetes rezagados
-                        tiempoEsperaActual = Math.min(tiempoEsperaActual * 2, 8000); // Máximo 8 segundos
-                        socket.setSoTimeout(tiempoEsperaActual);
-                    }
+                    // El primer paquete reenviado dará una muestra del RTT
+                    recepcion.envioSolicitud = System.nanoTime();
                 }
             } catch (SocketTimeoutException e) {
-                // Verificar si tenemos suficientes paquetes para terminar
-                if (paquetesRecibidos.size() > totalPaquetes * 0.98) { // Si tenemos más del 98%
-                    System.out.println("Tiempo de espera agotado, pero tenemos suficientes paquetes para reconstruir el archivo.");
-                    recepcionCompleta = true;
-                } else if (paquetesRecibidos.isEmpty()) {
-                    System.out.println("No se recibió ningún paquete. Abortando.");
-                    return null;
+                int recibidos = recepcion.cantidadRecibidos;
+                // Un archivo solo se acepta completo: mientras lleguen paquetes se siguen pidiendo los faltantes
+                esperasSinProgreso = recibidos > recibidosAntes ? 1 : esperasSinProgreso + 1;
+                recibidosAntes = recibidos;
+                // Por multicast los primeros paquetes pueden llegar antes de que el cliente se una al
+                // grupo; se piden de nuevo como cualquier paquete perdido
+                if (recibidos == 0 && idGrupo == 0) {
+                    System.out.println(prefijo + "No se recibió ningún paquete. Abortando.");
+                    return false;
+                } else if (esperasSinProgreso >= MAX_INTENTOS) {
+                    System.out.println(prefijo + "El servidor dejó de responder con " + (totalPaquetes - recibidos)
+                            + " paquetes faltantes. Abortando.");
+                    return false;
                 } else {
-                    // Solicitar paquetes faltantes nuevamente
-                    Set<Integer> paquetesFaltantes = IntStream.range(0, totalPaquetes)
-                            .boxed()
-                            .filter(i -> !paquetesRecibidos.containsKey(i))
-                            .collect(Collectors.toSet());
-
-                    System.out.println("Tiempo de espera agotado. Solicitando " + paquetesFaltantes.size() + " paquetes faltantes.");
-                    solicitarPaquetesFaltantes(paquetesFaltantes);
-
-                    // Incrementar tiempo de espera
-                    tiempoEsperaActual = Math.min(tiempoEsperaActual * 2, 8000);
-                    socket.setSoTimeout(tiempoEsperaActual);
+                    // Solicitar paquetes faltantes nuevamente. El acuse saca al servidor de la espera
+                    // si la ventana se llenó y se perdió el último acuse
+                    System.out.println(prefijo + "Tiempo de espera agotado. Solicitando " + (totalPaquetes - recibidos) + " paquetes faltantes.");
+                    enviarAcuse(recepcion.paquetesRecibidos.length(), 0);
+                    recepcion.paquetesSinAcuse = 0;
+                    solicitarPaquetesFaltantes(recepcion);
+
+                    // Duplicar el tiempo de espera; la respuesta a una solicitud repetida no da muestra del RTT
+                    rtt.retroceder();
+                    recepcion.envioSolicitud = 0;
                 }
             }
         }
 
-        // Construir el archivo completo a partir de los paquetes recibidos
-        return construirArchivo(paquetesRecibidos, tamanoArchivo);
+        return true;
     }
 
-    private void recibirPaquetesPendientes(TreeMap<Integer, byte[]> paquetesRecibidos, int totalPaquetes) throws IOException {
-        while (true) {
-            byte[] buffer = new byte[TAMANO_BUFFER + 8]; // 4 bytes para numPaquete + 4 bytes para totalPaquetes + datos
-            DatagramPacket paqueteRecibido = new DatagramPacket(buffer, buffer.length);
+    /**
+     * Recibe paquetes hasta que llega "FIN", la recepción se completa o se agota el tiempo de
+     * espera. Al final de cada lote se escriben los paquetes agrupados, se envía un acuse y se
+     * muestra el progreso.
+     */
+    private void recibirPaquetesPendientes(Recepcion recepcion) throws IOException {
+        BitSet paquetesRecibidos = recepcion.paquetesRecibidos;
+        int totalPaquetes = recepcion.totalPaquetes;
+        try {
+            while (true) {
+                ByteBuffer vista = receptor.recibir(rtt.getRtoMilisegundos());
+
+                // Comprobar si es un mensaje especial
+                byte tipo = leerEncabezado(vista, vista.limit());
+                if (tipo == Protocolo.ERROR) {
+                    String mensaje = leerError(vista);
+                    System.out.println(prefijo + "El servidor respondió: " + mensaje);
+                    throw new IOException(mensaje);
+                }
+
+                if (tipo == Protocolo.FIN) {
+                    System.out.println(prefijo + "Servidor indica fin de transmisión.");
+                    leerFin(recepcion, vista);
+                    return;
+                }
+
+                int numPaquete = -1;
+                if (tipo == Protocolo.DATOS) {
+                    numPaquete = escribirPaquete(recepcion, vista);
+                    if (numPaquete >= 0 && recepcion.envioSolicitud != 0) {
+                        rtt.registrarMuestra(System.nanoTime() - recepcion.envioSolicitud);
+                        recepcion.envioSolicitud = 0;
+                    }
+                    if (numPaquete >= recepcion.siguienteEsperado) {
+                        // Los paquetes nuevos llegan en orden: un salto indica que los intermedios se
+                        // perdieron. Pedirlos ya avisa al servidor de la congestión sin esperar al final
+                        if (numPaquete > recepcion.siguienteEsperado) {
+                            solicitarRango(recepcion.siguienteEsperado, numPaquete);
+                        }
+                        recepcion.siguienteEsperado = numPaquete + 1;
+                    }
+                } else if (tipo == Protocolo.PARIDAD) {
+                    // La reconstrucción lee del archivo los demás paquetes del grupo
+                    recepcion.escritor.vaciar();
+                    numPaquete = reconstruirConParidad(recepcion, vista);
+                }
+
+                if (numPaquete >= 0) {
+                    paquetesRecibidos.set(numPaquete);
+                    recepcion.cantidadRecibidos++;
 
-            socket.receive(paqueteRecibido);
+                    // Confirmar periódicamente para que el servidor avance su ventana de envío
+                    if (++recepcion.paquetesSinAcuse >= recepcion.paquetesPorAcuse) {
+                        enviarAcuse(paquetesRecibidos.length(), recepcion.ultimaMarca);
+                        recepcion.paquetesSinAcuse = 0;
+                    }
 
-            byte[] datos = paqueteRecibido.getData();
-            int length = paqueteRecibido.getLength();
+                    // Los paquetes reenviados no van seguidos de "FIN": terminar en cuanto esté completo
+                    if (recepcion.cantidadRecibidos == totalPaquetes) {
+                        mostrarProgreso(recepcion);
+                        return;
+                    }
+                }
 
-            // Comprobar si es un mensaje especial
-            String mensaje = new String(datos, 0, Math.min(length, 50)).trim();
-            if (mensaje.equals("ERROR: Archivo no encontrado")) {
-                System.out.println("El archivo solicitado no existe en el servidor.");
-                throw new IOException("Archivo no encontrado");
+                if (!receptor.hayPendientes()) {
+                    // Fin del lote: escribir lo agrupado y confirmar lo recibido antes de volver a esperar
+                    recepcion.vaciar();
+                    if (recepcion.paquetesSinAcuse > 0) {
+                        enviarAcuse(paquetesRecibidos.length(), recepcion.ultimaMarca);
+                        recepcion.paquetesSinAcuse = 0;
+                    }
+                    mostrarProgreso(recepcion);
+                }
             }
+        } finally {
+            recepcion.escritor.vaciar();
+        }
+    }
 
-            if (mensaje.equals("FIN")) {
-                System.out.println("Servidor indica fin de transmisión.");
-                return;
+    /**
+     * Espera el FIN con la huella del rango cuando los paquetes se completaron antes de que
+     * llegara, que es lo normal: el FIN sale después del último paquete, o se perdió. Si no llega
+     * a tiempo se pide con PEDIR_FIN; al reanudar el servidor puede tardar en calcular la huella.
+     *
+     * @return false si el servidor no envió la huella.
+     */
+    private boolean esperarFin(Recepcion recepcion) throws IOException {
+        for (int intentos = 0; intentos < MAX_INTENTOS; intentos++) {
+            try {
+                while (!recepcion.huellaConocida) {
+                    ByteBuffer vista = receptor.recibir(rtt.getRtoMilisegundos());
+                    byte tipo = leerEncabezado(vista, vista.limit());
+                    if (tipo == Protocolo.ERROR) {
+                        String mensaje = leerError(vista);
+                        System.out.println(prefijo + "El servidor respondió: " + mensaje);
+                        throw new IOException(mensaje);
+                    }
+                    if (tipo == Protocolo.FIN) {
+                        leerFin(recepcion, vista);
+                    }
+                }
+                return true;
+            } catch (SocketTimeoutException e) {
+                pedirFin();
+                rtt.retroceder();
             }
+        }
+        System.out.println(prefijo + "El servidor no envió la huella del archivo. Abortando.");
+        return false;
+    }
 
-            // Extraer número de paquete y datos
-            ByteBuffer byteBuffer = ByteBuffer.wrap(datos);
-            int numPaquete = byteBuffer.getInt();
-            int totalPaquetesRecibido = byteBuffer.getInt(); // no usado, pero necesario para avanzar en el buffer
+    /**
+     * Toma la huella del rango que trae un FIN; en un lote no se usa, cada archivo trae la suya.
+     *
+     * @param vista FIN recibido, posicionado después del encabezado [versión][tipo][id].
+     */
+    private static void leerFin(Recepcion recepcion, ByteBuffer vista) {
+        if (recepcion.lote == null && vista.remaining() >= Long.BYTES) {
+            recepcion.huellaRango = vista.getLong();
+            recepcion.huellaConocida = true;
+        }
+    }
 
-            // Datos del paquete (saltando los 8 bytes del encabezado)
-            byte[] datosPaquete = Arrays.copyOfRange(datos, 8, length);
+    /**
+     * Muestra el progreso a lo más una vez cada {@link #INTERVALO_PROGRESO}, solo si llegaron
+     * paquetes nuevos, y al completar.
+     */
+    private void mostrarProgreso(Recepcion recepcion) {
+        int cantidadRecibidos = recepcion.cantidadRecibidos;
+        int totalPaquetes = recepcion.totalPaquetes;
+        long ahora = System.nanoTime();
+        if ((cantidadRecibidos != recepcion.progresoMostrado && ahora - recepcion.progresoMostradoEn >= INTERVALO_PROGRESO)
+                || (cantidadRecibidos == totalPaquetes && recepcion.progresoMostrado != totalPaquetes)) {
+            System.out.printf("%sProgreso: %d/%d paquetes recibidos (%.1f%%)\n", prefijo,
+                    cantidadRecibidos, totalPaquetes,
+                    ((double) cantidadRecibidos / totalPaquetes) * 100);
+            recepcion.progresoMostrado = cantidadRecibidos;
+            recepcion.progresoMostradoEn = ahora;
+        }
+    }
 
-            // Almacenar el paquete
-            paquetesRecibidos.put(numPaquete, datosPaquete);
+    /**
+     * Verifica el CRC de un paquete y agrega sus datos (saltando el encabezado) a la escritura
+     * agrupada en su posición del archivo. Un paquete corrupto se descarta y se pedirá de nuevo
+     * como uno perdido.
+     *
+     * @param recepcion Estado de la recepción.
+     * @param vista Paquete recibido, posicionado después del encabezado [versión][tipo][id].
+     * @return El número del paquete, o -1 si no es válido o ya se había recibido.
+     */
+    private int escribirPaquete(Recepcion recepcion, ByteBuffer vista) throws IOException {
+        if (vista.remaining() < Long.BYTES + 2 * Integer.BYTES) {
+            return -1;
+        }
 
-            // Mostrar progreso
-            if (paquetesRecibidos.size() % 10 == 0 || paquetesRecibidos.size() == totalPaquetes) {
-                System.out.printf("Progreso: %d/%d paquetes recibidos (%.1f%%)\n",
-                        paquetesRecibidos.size(), totalPaquetes,
-                        ((double) paquetesRecibidos.size() / totalPaquetes) * 100);
-            }
+        // Extraer número de paquete, marca de tiempo, CRC y datos
+        long posicion = vista.getLong();
+        recepcion.ultimaMarca = vista.getInt();
+        int crcPaquete = vista.getInt();
+        long numero = posicion / recepcion.tamanoFragmento;
+        if (posicion % recepcion.tamanoFragmento != 0 || numero < recepcion.primerPaquete
+                || numero >= recepcion.finPaquete || recepcion.paquetesRecibidos.get((int) numero)) {
+            return -1;
+        }
+        int longitud = recepcion.getTamanoPaquete((int) numero);
+        if (longitud < 0) {
+            return -1; // Archivo de un lote cuyo manifiesto no ha llegado completo: se pedirá de nuevo
         }
+        if (Protocolo.calcularCrc(crc, recepcion.getPosicionArchivo((int) numero), vista, vista.position()) != crcPaquete
+                || vista.remaining() != longitud) {
+            recepcion.paquetesCorruptos++;
+            return -1;
+        }
+        if (recepcion.lote != null) {
+            recepcion.lote.escribir((int) numero, vista, crcPaquete);
+        } else {
+            recepcion.escritor.agregar((int) numero, posicion, vista, Protocolo.terminoHuella((int) numero, crcPaquete));
+        }
+        return (int) numero;
     }
 
-    private void solicitarPaquetesFaltantes(Set<Integer> paquetesFaltantes) throws IOException {
-        // Limitar la cantidad de paquetes solicitados en cada solicitud para no exceder el tamaño máximo de un datagrama
-        int maxPaquetesPorSolicitud = 50;
-
-        // Dividir en lotes si hay muchos paquetes faltantes
-        for (int i = 0; i < paquetesFaltantes.size(); i += maxPaquetesPorSolicitud) {
-            Set<Integer> lote = paquetesFaltantes.stream()
-                    .skip(i)
-                    .limit(maxPaquetesPorSolicitud)
-                    .collect(Collectors.toSet());
-
-            // Formato: "RESEND:1,2,3,4,5"
-            String solicitud = "RESEND:" + lote.stream()
-                    .map(String::valueOf)
-                    .collect(Collectors.joining(","));
-
-            byte[] datosSolicitud = solicitud.getBytes();
-            DatagramPacket paqueteSolicitud = new DatagramPacket(
-                    datosSolicitud,
-                    datosSolicitud.length,
-                    InetAddress.getByName(servidorHost),
-                    servidorPuerto
-            );
-            socket.send(paqueteSolicitud);
-
-            // Pequeña pausa para no saturar
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    /**
+     * Reconstruye el paquete perdido de un grupo a partir de su paridad: el XOR de la paridad
+     * con los demás paquetes del grupo, que se leen del archivo de destino, es el paquete que
+     * falta. Si al grupo le falta más de un paquete se deja para el acuse selectivo. La paridad
+     * trae su propio CRC; el paquete reconstruido queda cubierto por la huella del archivo.
+     *
+     * @param recepcion Estado de la recepción.
+     * @param vista Paquete de paridad, posicionado después del encabezado [versión][tipo][id].
+     * @return El número del paquete reconstruido, o -1 si no se reconstruyó ninguno.
+     */
+    private int reconstruirConParidad(Recepcion recepcion, ByteBuffer vista) throws IOException {
+        int paquetesPorBloque = recepcion.paquetesPorBloque;
+        int paquetesParidad = recepcion.paquetesParidad;
+        if (paquetesParidad == 0 || vista.remaining() < 9) {
+            return -1;
+        }
+        int bloque = vista.getInt();
+        int grupo = Byte.toUnsignedInt(vista.get());
+        int crcParidad = vista.getInt();
+        long inicioBloque = recepcion.primerPaquete + (long) bloque * paquetesPorBloque;
+        if (grupo >= paquetesParidad || bloque < 0 || inicioBloque >= recepcion.finPaquete
+                || vista.remaining() > recepcion.tamanoFragmento) {
+            return -1;
+        }
+        int finBloque = (int) Math.min(inicioBloque + paquetesPorBloque, recepcion.finPaquete);
+
+        // Buscar el único paquete del grupo que falta
+        int perdido = -1;
+        for (int i = (int) inicioBloque + grupo; i < finBloque; i += paquetesParidad) {
+            if (!recepcion.paquetesRecibidos.get(i)) {
+                if (perdido >= 0) {
+                    return -1;
+                }
+                perdido = i;
+            }
+        }
+        if (perdido < 0 || recepcion.getTamanoPaquete(perdido) < 0) {
+            return -1;
+        }
+        if (Protocolo.calcularCrc(crc, (long) bloque << 8 | grupo, vista, vista.position()) != crcParidad) {
+            recepcion.paquetesCorruptos++;
+            return -1;
+        }
+
+        ByteBuffer reconstruido = recepcion.reconstruido;
+        reconstruido.clear();
+        reconstruido.put(vista);
+        ByteBuffer auxiliar = recepcion.auxiliar;
+        for (int i = (int) inicioBloque + grupo; i < finBloque; i += paquetesParidad) {
+            if (i == perdido) {
+                continue;
+            }
+            int longitud = recepcion.getTamanoPaquete(i);
+            auxiliar.clear().limit(longitud);
+            if (!recepcion.leerPaquete(i, auxiliar)) {
+                return -1;
+            }
+            int j = 0;
+            for (; j + Long.BYTES <= longitud; j += Long.BYTES) {
+                reconstruido.putLong(j, reconstruido.getLong(j) ^ auxiliar.getLong(j));
+            }
+            for (; j < longitud; j++) {
+                reconstruido.put(j, (byte) (reconstruido.get(j) ^ auxiliar.get(j)));
             }
         }
+
+        reconstruido.position(0).limit(recepcion.getTamanoPaquete(perdido));
+        int crcReconstruido = Protocolo.calcularCrc(crc, recepcion.getPosicionArchivo(perdido), reconstruido, 0);
+        if (recepcion.lote != null) {
+            recepcion.lote.escribir(perdido, reconstruido, crcReconstruido);
+        } else {
+            long posicion = (long) perdido * recepcion.tamanoFragmento;
+            while (reconstruido.hasRemaining()) {
+                recepcion.destino.write(reconstruido, posicion + reconstruido.position());
+            }
+            recepcion.diario.marcar(perdido, Protocolo.terminoHuella(perdido, crcReconstruido));
+        }
+        recepcion.paquetesReconstruidos++;
+        return perdido;
     }
 
-    private byte[] construirArchivo(TreeMap<Integer, byte[]> paquetesRecibidos, int tamanoArchivo) {
-        // Calcular el tamaño real basado en los paquetes recibidos
-        int tamanoReal = paquetesRecibidos.values().stream()
-                .mapToInt(bytes -> bytes.length)
-                .sum();
-
-        // Usar el menor de los dos tamaños para evitar exceder el tamaño real del archivo
-        int tamanoFinal = Math.min(tamanoReal, tamanoArchivo);
-
-        // Crear buffer para el archivo completo
-        ByteBuffer archivoBuffer = ByteBuffer.allocate(tamanoFinal);
-
-        // Agregar cada paquete en orden
-        for (byte[] datosPaquete : paquetesRecibidos.values()) {
-            // Si agregar este paquete excedería el tamaño del archivo, solo agregar lo que queda
-            if (archivoBuffer.position() + datosPaquete.length > tamanoFinal) {
-                int bytesRestantes = tamanoFinal - archivoBuffer.position();
-                archivoBuffer.put(datosPaquete, 0, bytesRestantes);
-                break;
-            } else {
-                archivoBuffer.put(datosPaquete);
+    /**
+     * Descomprime un archivo recibido en formato zlib en un archivo temporal junto a él.
+     *
+     * @param comprimido Archivo recibido.
+     * @param tamanoOriginal Tamaño que debe tener el archivo descomprimido.
+     * @return El archivo descomprimido, o null si el contenido no es válido.
+     */
+    private static Path descomprimir(Path comprimido, long tamanoOriginal) throws IOException {
+        Path temporal = comprimido.resolveSibling(comprimido.getFileName() + ".descomprimiendo");
+        Inflater inflater = new Inflater();
+        long escritos;
+        try (InputStream entrada = new InflaterInputStream(Files.newInputStream(comprimido), inflater, TAMANO_BUFFER_DESCOMPRESION);
+                OutputStream salida = Files.newOutputStream(temporal)) {
+            escritos = entrada.transferTo(salida);
+        } catch (IOException e) {
+            e.printStackTrace();
+            escritos = -1;
+        } finally {
+            inflater.end();
+        }
+        if (escritos != tamanoOriginal) {
+            System.out.println("El archivo recibido no se pudo descomprimir; se descarta.");
+            Files.deleteIfExists(temporal);
+            return null;
+        }
+        return temporal;
+    }
+
+    /**
+     * Valida el encabezado [versión][tipo][id] de un mensaje del servidor y deja el buffer
+     * posicionado al inicio de su contenido. Los paquetes del grupo multicast traen el id del
+     * grupo en lugar del de la transferencia. Los mensajes que terminan con CRC se verifican y
+     * el CRC queda fuera del límite del buffer; los corruptos se ignoran como si no fueran de
+     * esta transferencia.
+     *
+     * @param buffer Buffer que envuelve el datagrama recibido.
+     * @param longitud Bytes recibidos.
+     * @return El tipo del mensaje, {@link #VERSION_DESCONOCIDA} si el servidor usa otra versión
+     *         del protocolo, o 0 si el mensaje no pertenece a esta transferencia.
+     */
+    private byte leerEncabezado(ByteBuffer buffer, int longitud) {
+        buffer.clear();
+        if (longitud < Protocolo.TAMANO_ENCABEZADO) {
+            return 0;
+        }
+        buffer.limit(longitud);
+        if (buffer.get() != Protocolo.VERSION) {
+            return VERSION_DESCONOCIDA;
+        }
+        byte tipo = buffer.get();
+        int id = buffer.getInt();
+        if (id != idTransferencia && (idGrupo == 0 || id != idGrupo
+                || (tipo != Protocolo.DATOS && tipo != Protocolo.PARIDAD && tipo != Protocolo.FIN))) {
+            return 0;
+        }
+        if (tipo != Protocolo.DATOS && tipo != Protocolo.PARIDAD && !Protocolo.verificarSello(crc, buffer)) {
+            return 0;
+        }
+        return tipo;
+    }
+
+    /**
+     * Se une al grupo multicast por el que el servidor difunde el archivo. El canal del grupo se
+     * agrega al receptor, que lo cierra al terminar la parte. Varios clientes del mismo equipo
+     * pueden escuchar el mismo puerto.
+     *
+     * @param grupo Dirección y puerto del grupo.
+     * @return false si no se encontró la interfaz o no se pudo unir al grupo.
+     */
+    private boolean unirseGrupo(InetSocketAddress grupo) throws IOException {
+        NetworkInterface interfaz = INTERFAZ_MULTICAST.isEmpty()
+                ? NetworkInterface.getByInetAddress(((InetSocketAddress) canal.getLocalAddress()).getAddress())
+                : NetworkInterface.getByName(INTERFAZ_MULTICAST);
+        if (interfaz == null) {
+            System.out.println(prefijo + "No se encontró la interfaz para recibir multicast; indíquela con "
+                    + "-Dcliente.interfazMulticast o desactive -Dcliente.multicast.");
+            return false;
+        }
+        DatagramChannel canalGrupo = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            canalGrupo.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            canalGrupo.setOption(StandardSocketOptions.SO_RCVBUF, TAMANO_BUFFER_SOCKET);
+            canalGrupo.bind(new InetSocketAddress(grupo.getPort()));
+            canalGrupo.join(grupo.getAddress(), interfaz);
+            receptor.agregarCanal(canalGrupo);
+        } catch (IOException e) {
+            canalGrupo.close();
+            System.out.println(prefijo + "No se pudo unir al grupo multicast " + grupo + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static String leerError(ByteBuffer buffer) {
+        byte[] texto = new byte[buffer.remaining()];
+        buffer.get(texto);
+        return new String(texto, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Pide de inmediato los paquetes de un hueco recién detectado con un acuse selectivo de un rango.
+     */
+    private void solicitarRango(int desde, int hasta) throws IOException {
+        // Formato: [tipo][id][base (4 bytes)][cantidad de rangos (2 bytes)][salto][longitud][CRC32C]
+        ByteBuffer solicitud = ByteBuffer.allocate(15 + Protocolo.TAMANO_MAXIMO_RANGO);
+        solicitud.put(Protocolo.ACUSE_SELECTIVO);
+        solicitud.putInt(idTransferencia);
+        solicitud.putInt(desde);
+        solicitud.putShort((short) 1);
+        Protocolo.escribirVarint(solicitud, 0);
+        Protocolo.escribirVarint(solicitud, hasta - desde);
+        Protocolo.sellar(crc, solicitud);
+        solicitud.flip();
+        canal.write(solicitud);
+    }
+
+    private void solicitarPaquetesFaltantes(Recepcion recepcion) throws IOException {
+        BitSet paquetesRecibidos = recepcion.paquetesRecibidos;
+        int finPaquete = recepcion.finPaquete;
+        // Cada solicitud debe caber en el buffer de recepción del servidor
+        ByteBuffer solicitud = ByteBuffer.allocate(TAMANO_MAXIMO_ACUSE);
+        int inicioFaltante = paquetesRecibidos.nextClearBit(recepcion.primerPaquete);
+
+        // Dividir en varios datagramas solo si los rangos no caben en uno
+        while (inicioFaltante < finPaquete) {
+            // Formato: [tipo][id][base (4 bytes)][cantidad de rangos (2 bytes)]{[salto][longitud]}...[CRC32C]
+            solicitud.clear();
+            solicitud.put(Protocolo.ACUSE_SELECTIVO);
+            solicitud.putInt(idTransferencia);
+            solicitud.putInt(inicioFaltante);
+            solicitud.putShort((short) 0);
+
+            int finAnterior = inicioFaltante;
+            int cantidadRangos = 0;
+            while (inicioFaltante < finPaquete
+                    && solicitud.remaining() >= Protocolo.TAMANO_MAXIMO_RANGO + Integer.BYTES
+                    && cantidadRangos < 0xFFFF) {
+                int finFaltante = paquetesRecibidos.nextSetBit(inicioFaltante);
+                if (finFaltante < 0 || finFaltante > finPaquete) {
+                    finFaltante = finPaquete;
+                }
+
+                Protocolo.escribirVarint(solicitud, inicioFaltante - finAnterior);
+                Protocolo.escribirVarint(solicitud, finFaltante - inicioFaltante);
+                cantidadRangos++;
+
+                finAnterior = finFaltante;
+                inicioFaltante = paquetesRecibidos.nextClearBit(finFaltante);
             }
+            solicitud.putShort(9, (short) cantidadRangos);
+            Protocolo.sellar(crc, solicitud);
+            solicitud.flip();
+            canal.write(solicitud);
         }
+    }
 
-        return archivoBuffer.array();
+    private void enviarAcuse(int siguientePaquete, int eco) throws IOException {
+        // Formato: [tipo][id][número del paquete más alto recibido + 1 (4 bytes)]
+        //          [marca de tiempo del último paquete recibido (4 bytes)], con la que el servidor mide el RTT
+        //          [CRC32C (4 bytes)]
+        ByteBuffer acuse = ByteBuffer.allocate(17)
+                .put(Protocolo.ACUSE)
+                .putInt(idTransferencia)
+                .putInt(siguientePaquete)
+                .putInt(eco);
+        Protocolo.sellar(crc, acuse);
+        acuse.flip();
+        canal.write(acuse);
+    }
+
+    private void pedirFin() throws IOException {
+        ByteBuffer solicitud = ByteBuffer.allocate(9)
+                .put(Protocolo.PEDIR_FIN)
+                .putInt(idTransferencia);
+        Protocolo.sellar(crc, solicitud);
+        solicitud.flip();
+        canal.write(solicitud);
     }
 
     private void enviarConfirmacion() throws IOException {
-        byte[] datosConfirmacion = "COMPLETE".getBytes();
-        DatagramPacket paqueteConfirmacion = new DatagramPacket(
-                datosConfirmacion,
-                datosConfirmacion.length,
-                InetAddress.getByName(servidorHost),
-                servidorPuerto
-        );
-        socket.send(paqueteConfirmacion);
+        ByteBuffer confirmacion = ByteBuffer.allocate(9)
+                .put(Protocolo.COMPLETADO)
+                .putInt(idTransferencia);
+        Protocolo.sellar(crc, confirmacion);
+        confirmacion.flip();
+        canal.write(confirmacion);
+    }
+
+    /**
+     * Estado de la recepción de un archivo o de una parte de él: los datos se escriben
+     * directamente en su posición del archivo de destino y los paquetes recibidos se
+     * registran en un mapa de bits indexado por número de paquete, copiado en el diario.
+     * En un lote los datos pasan por su {@link DestinoLote}, que los reparte entre los archivos.
+     */
+    private static final class Recepcion {
+        private final int primerPaquete;
+        private final int finPaquete;
+        private final int totalPaquetes;  // Paquetes esperados en esta recepción
+        private final long tamanoArchivo;
+        private final int tamanoFragmento;
+        private final int paquetesPorAcuse;
+        private final int paquetesPorBloque;
+        private final int paquetesParidad;
+        private final FileChannel destino;
+        private final DiarioDescarga diario;
+        private final DestinoLote lote;   // null si se recibe un solo archivo
+        private final EscritorAgrupado escritor;
+        private final BitSet paquetesRecibidos;
+        private int cantidadRecibidos;
+        private int paquetesReconstruidos;
+        private int paquetesCorruptos;
+        private int progresoMostrado; // Paquetes recibidos la última vez que se mostró el progreso
+        private long progresoMostradoEn; // Momento en que se mostró, según System.nanoTime()
+        private int ultimaMarca; // Marca de tiempo del último paquete de datos, para el eco del acuse
+        private long envioSolicitud; // Envío del último acuse selectivo que puede dar una muestra del RTT
+        private int siguienteEsperado; // Siguiente paquete nuevo que debería llegar si no hay pérdidas
+        private int paquetesSinAcuse;
+        private long huellaRango;       // Huella del rango según el servidor, si huellaConocida
+        private boolean huellaConocida;
+        private ByteBuffer reconstruido; // Buffers para reconstruir paquetes con paridad
+        private ByteBuffer auxiliar;
+
+        private Recepcion(int primerPaquete, int finPaquete, long tamanoArchivo, int tamanoFragmento,
+                int paquetesPorBloque, int paquetesParidad, FileChannel destino, DiarioDescarga diario) {
+            this.primerPaquete = primerPaquete;
+            this.finPaquete = finPaquete;
+            this.totalPaquetes = finPaquete - primerPaquete;
+            this.tamanoArchivo = tamanoArchivo;
+            this.tamanoFragmento = tamanoFragmento;
+            this.paquetesPorAcuse = Math.max(1, Math.min(MAX_PAQUETES_POR_ACUSE, BYTES_POR_ACUSE / tamanoFragmento));
+            this.paquetesPorBloque = paquetesPorBloque;
+            this.paquetesParidad = paquetesParidad;
+            if (paquetesParidad > 0) {
+                this.reconstruido = ByteBuffer.allocate(tamanoFragmento);
+                this.auxiliar = ByteBuffer.allocate(tamanoFragmento);
+            }
+            this.destino = destino;
+            this.diario = diario;
+            this.lote = null;
+            this.escritor = new EscritorAgrupado(destino, diario, tamanoFragmento);
+            this.paquetesRecibidos = new BitSet(finPaquete);
+            // Partir de lo que ya se recibió en intentos anteriores
+            for (int i = primerPaquete; i < finPaquete; i++) {
+                if (diario.recibido(i)) {
+                    paquetesRecibidos.set(i);
+                    cantidadRecibidos++;
+                }
+            }
+            // Al reanudar solo llegan reenvíos, que no siguen un orden
+            this.siguienteEsperado = cantidadRecibidos > 0 ? finPaquete : primerPaquete;
+        }
+
+        private Recepcion(int totalPaquetes, int tamanoFragmento, int paquetesPorBloque, int paquetesParidad,
+                DestinoLote lote) {
+            this.primerPaquete = 0;
+            this.finPaquete = totalPaquetes;
+            this.totalPaquetes = totalPaquetes;
+            this.tamanoArchivo = 0;
+            this.tamanoFragmento = tamanoFragmento;
+            this.paquetesPorAcuse = Math.max(1, Math.min(MAX_PAQUETES_POR_ACUSE, BYTES_POR_ACUSE / tamanoFragmento));
+            this.paquetesPorBloque = paquetesPorBloque;
+            this.paquetesParidad = paquetesParidad;
+            if (paquetesParidad > 0) {
+                this.reconstruido = ByteBuffer.allocate(tamanoFragmento);
+                this.auxiliar = ByteBuffer.allocate(tamanoFragmento);
+            }
+            this.destino = null;
+            this.diario = null;
+            this.lote = lote;
+            this.escritor = lote.getEscritor();
+            this.paquetesRecibidos = lote.getPaquetesRecibidos();
+        }
+
+        /**
+         * @return Los bytes de datos del paquete, o -1 si todavía no se conocen.
+         */
+        private int getTamanoPaquete(int numPaquete) {
+            if (lote != null) {
+                return lote.getTamanoPaquete(numPaquete);
+            }
+            return (int) Math.min(tamanoFragmento, tamanoArchivo - (long) numPaquete * tamanoFragmento);
+        }
+
+        /**
+         * @return La posición del paquete en su archivo, que cubre su CRC; en un lote no coincide
+         *         con la posición en el rango del lote.
+         */
+        private long getPosicionArchivo(int numPaquete) {
+            return lote != null ? lote.getPosicion(numPaquete) : (long) numPaquete * tamanoFragmento;
+        }
+
+        /**
+         * Lee un paquete ya escrito hasta el límite del buffer; lo agrupado debe haberse escrito.
+         *
+         * @return false si el paquete no se pudo leer.
+         */
+        private boolean leerPaquete(int numPaquete, ByteBuffer buffer) throws IOException {
+            if (lote != null) {
+                return lote.leer(numPaquete, buffer);
+            }
+            long posicion = (long) numPaquete * tamanoFragmento;
+            while (buffer.hasRemaining()) {
+                if (destino.read(buffer, posicion + buffer.position()) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Escribe lo agrupado; en un lote además termina los archivos que ya se completaron.
+         */
+        private void vaciar() throws IOException {
+            if (lote != null) {
+                lote.vaciar();
+            } else {
+                escritor.vaciar();
+            }
+        }
     }
 }
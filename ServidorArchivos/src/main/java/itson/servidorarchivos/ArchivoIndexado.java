@@ -0,0 +1,115 @@
+package itson.servidorarchivos;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Una versión de un archivo del {@link IndiceArchivos}: su nombre, su identidad (ruta, fecha
+ * de modificación y tamaño) y un {@link FileChannel} compartido por todas las transmisiones que
+ * lo envían. El canal se abre con la primera transmisión y se cierra cuando la última lo
+ * libera, así que el servidor solo tiene abiertos los archivos que está enviando, aunque el
+ * directorio tenga miles.
+ *
+ * Cuando el archivo cambia en disco el índice retira esta versión y registra una nueva: las
+ * transmisiones que ya la usan terminan con su canal, y las siguientes abren el de la nueva.
+ * @author asielapodaca
+ */
+public final class ArchivoIndexado {
+    private final String nombre;
+    private final byte[] nombreBytes;   // Nombre en UTF-8, como se escribe en el listado
+    private final IdentidadArchivo identidad;
+    private FileChannel canal;
+    private int usuarios;               // Transmisiones que tienen el canal
+    private boolean retirado;           // El archivo cambió o se borró después de indexarlo
+    
+    public ArchivoIndexado(String nombre, IdentidadArchivo identidad) {
+        this.nombre = nombre;
+        this.nombreBytes = nombre.getBytes(StandardCharsets.UTF_8);
+        this.identidad = identidad;
+    }
+    
+    public String getNombre() {
+        return nombre;
+    }
+    
+    public byte[] getNombreBytes() {
+        return nombreBytes;
+    }
+    
+    public IdentidadArchivo getIdentidad() {
+        return identidad;
+    }
+    
+    public long getTamano() {
+        return identidad.getTamano();
+    }
+    
+    public long getFechaModificacion() {
+        return identidad.getFechaModificacion();
+    }
+    
+    /**
+     * Calcula la cantidad de paquetes del archivo con un tamaño de fragmento.
+     *
+     * @param tamanoFragmento Bytes de datos por paquete.
+     * @return La cantidad de paquetes.
+     */
+    public long getTotalPaquetes(int tamanoFragmento) {
+        return (identidad.getTamano() + tamanoFragmento - 1) / tamanoFragmento;
+    }
+    
+    /**
+     * Obtiene el canal compartido del archivo, abriéndolo si nadie lo tiene. Cada llamada que
+     * devuelve un canal debe corresponderse con una llamada a {@link #liberar}.
+     *
+     * @return El canal, o null si esta versión ya se retiró del índice.
+     * @throws IOException Si no se pudo abrir el archivo.
+     */
+    public synchronized FileChannel adquirir() throws IOException {
+        if (retirado) {
+            return null;
+        }
+        if (canal == null) {
+            canal = FileChannel.open(Paths.get(identidad.getRuta()), StandardOpenOption.READ);
+        }
+        usuarios++;
+        return canal;
+    }
+    
+    /**
+     * Devuelve el canal obtenido con {@link #adquirir}; el último usuario lo cierra.
+     */
+    public synchronized void liberar() {
+        usuarios--;
+        cerrarSinUsuarios();
+    }
+    
+    /**
+     * Marca la versión como retirada del índice: ya no se entrega su canal, que se cierra en
+     * cuanto lo libere la última transmisión que lo usa.
+     */
+    synchronized void retirar() {
+        retirado = true;
+        cerrarSinUsuarios();
+    }
+    
+    private void cerrarSinUsuarios() {
+        if (usuarios > 0 || canal == null) {
+            return;
+        }
+        try {
+            canal.close();
+        } catch (IOException e) {
+            Bitacora.error(e);
+        }
+        canal = null;
+    }
+    
+    @Override
+    public String toString() {
+        return nombre + " (" + identidad.getTamano() + " bytes)";
+    }
+}
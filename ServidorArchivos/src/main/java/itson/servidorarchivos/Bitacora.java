@@ -0,0 +1,83 @@
+package itson.servidorarchivos;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bitácora asíncrona para los mensajes que se escriben desde los reactores. Escribir en la
+ * consola bloquea al hilo mientras la terminal consume el texto; aquí el reactor solo deja el
+ * mensaje en una cola y un hilo aparte lo escribe. Además se escriben a lo más
+ * {@link #MENSAJES_POR_SEGUNDO} mensajes por segundo: una ráfaga de errores, por ejemplo de
+ * datagramas malformados, no llena la consola ni la cola, y los mensajes omitidos se cuentan y
+ * se reportan juntos.
+ *
+ * Las excepciones se escriben con su traza completa, igual que con {@code printStackTrace}.
+ * @author asielapodaca
+ */
+public final class Bitacora {
+    private static final int MENSAJES_POR_SEGUNDO = Integer.getInteger("servidor.mensajesPorSegundo", 100);
+    private static final int CAPACIDAD = 1024;
+    private static final long PERIODO_OMITIDOS = TimeUnit.SECONDS.toMillis(1);
+    
+    private static final BlockingQueue<Object> cola = new ArrayBlockingQueue<>(CAPACIDAD);
+    private static final AtomicInteger enSegundo = new AtomicInteger(); // Mensajes aceptados en el segundo actual
+    private static final LongAdder omitidos = new LongAdder();
+    private static volatile long segundo;
+    
+    static {
+        Thread escritor = new Thread(Bitacora::escribir, "bitacora");
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+    
+    private Bitacora() {
+    }
+    
+    /**
+     * Deja un mensaje para escribirlo en la salida estándar; nunca bloquea.
+     */
+    public static void registrar(String mensaje) {
+        encolar(mensaje);
+    }
+    
+    /**
+     * Deja una excepción para escribir su traza en la salida de errores; nunca bloquea.
+     */
+    public static void error(Throwable error) {
+        encolar(error);
+    }
+    
+    private static void encolar(Object mensaje) {
+        long actual = System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+        if (actual != segundo) {
+            // Dos hilos pueden reiniciar la cuenta a la vez; el límite es aproximado
+            segundo = actual;
+            enSegundo.set(0);
+        }
+        if (enSegundo.incrementAndGet() > MENSAJES_POR_SEGUNDO || !cola.offer(mensaje)) {
+            omitidos.increment();
+        }
+    }
+    
+    private static void escribir() {
+        while (true) {
+            try {
+                Object mensaje = cola.poll(PERIODO_OMITIDOS, TimeUnit.MILLISECONDS);
+                long cantidad = omitidos.sumThenReset();
+                if (cantidad > 0) {
+                    System.out.println("(" + cantidad + " mensajes omitidos por el límite de la bitácora)");
+                }
+                if (mensaje instanceof Throwable) {
+                    ((Throwable) mensaje).printStackTrace();
+                } else if (mensaje != null) {
+                    System.out.println(mensaje);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
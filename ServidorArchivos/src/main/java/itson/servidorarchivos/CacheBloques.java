@@ -0,0 +1,299 @@
+package itson.servidorarchivos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caché de bloques de archivo compartida por todas las sesiones del servidor. Cuando muchos
+ * clientes descargan el mismo archivo, sus bloques se leen del disco una sola vez y cada
+ * sesión copia los paquetes desde la caché.
+ *
+ * Los bloques se guardan fuera del heap, en una sola región de memoria directa dividida en
+ * ranuras de {@link #TAMANO_BLOQUE} bytes, por lo que la caché no genera trabajo para el
+ * recolector de basura. Los bloques son independientes del tamaño de paquete: un paquete se
+ * arma copiando la parte que le corresponde de uno o más bloques. Cuando no quedan ranuras
+ * libres se expulsa el bloque usado hace más tiempo.
+ *
+ * Las ranuras se reparten en {@link #SEGMENTOS} segmentos, cada uno con su propio candado y su
+ * propio orden de uso, y cada bloque pertenece al segmento que indica su llave; así los
+ * reactores que leen bloques distintos casi nunca compiten por el mismo candado. Un fallo
+ * reserva la ranura dentro del candado pero lee el disco fuera de él: mientras la ranura se
+ * carga no está publicada, y quien pida ese mismo bloque en ese momento lo lee directamente
+ * del archivo en vez de esperar.
+ * @author asielapodaca
+ */
+public class CacheBloques {
+    public static final int TAMANO_BLOQUE = 64 * 1024;
+    public static final int SEGMENTOS = Integer.getInteger("servidor.cache.segmentos", 16);
+    
+    private final ByteBuffer memoria;
+    private final int[] longitudes;                 // Bytes válidos de cada ranura
+    private final Segmento[] segmentos;
+    private final LongAdder aciertos = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+    private final LongAdder bytesEntregados = new LongAdder();
+    private final LongAdder bytesDisco = new LongAdder();
+    
+    /**
+     * @param presupuesto Bytes máximos que ocupa la caché; se redondea a bloques completos.
+     */
+    public CacheBloques(long presupuesto) {
+        int cantidadRanuras = (int) Math.min(Math.max(presupuesto, 0) / TAMANO_BLOQUE, Integer.MAX_VALUE / TAMANO_BLOQUE);
+        this.memoria = ByteBuffer.allocateDirect(cantidadRanuras * TAMANO_BLOQUE);
+        this.longitudes = new int[cantidadRanuras];
+        
+        // Las ranuras se reparten por turnos entre los segmentos
+        int cantidadSegmentos = Math.max(1, Math.min(SEGMENTOS, cantidadRanuras));
+        this.segmentos = new Segmento[cantidadSegmentos];
+        for (int i = 0; i < cantidadSegmentos; i++) {
+            segmentos[i] = new Segmento();
+        }
+        for (int i = 0; i < cantidadRanuras; i++) {
+            segmentos[i % cantidadSegmentos].ranurasLibres.push(i);
+        }
+    }
+    
+    /**
+     * Copia en {@code destino}, desde su posición hasta su límite, los bytes del archivo que
+     * empiezan en {@code posicion}. Los bloques que no están en caché se leen del canal.
+     *
+     * @param identidad Identidad del archivo.
+     * @param canal Canal abierto del archivo.
+     * @param posicion Posición del archivo desde la que se copia.
+     * @param destino Buffer donde se copian los datos.
+     * @return La cantidad de bytes copiados.
+     * @throws IOException Si ocurre un error al leer el archivo.
+     */
+    public int leer(IdentidadArchivo identidad, FileChannel canal, long posicion, ByteBuffer destino) throws IOException {
+        if (longitudes.length == 0) {
+            return leerDirecto(canal, posicion, destino);
+        }
+        
+        int copiados = 0;
+        while (destino.hasRemaining()) {
+            long numeroBloque = posicion / TAMANO_BLOQUE;
+            int desplazamiento = (int) (posicion % TAMANO_BLOQUE);
+            int hash = Llave.hash(identidad, numeroBloque);
+            Segmento segmento = segmentos[Math.floorMod(hash ^ (hash >>> 16), segmentos.length)];
+            
+            int cantidad;
+            Integer reservada = null;
+            synchronized (segmento) {
+                segmento.consulta.apuntar(identidad, numeroBloque);
+                Integer ranura = segmento.ranuras.get(segmento.consulta);
+                if (ranura != null) {
+                    aciertos.increment();
+                    // La copia se hace dentro del candado para que nadie expulse la ranura a medias
+                    cantidad = copiar(ranura, desplazamiento, destino);
+                } else {
+                    fallos.increment();
+                    cantidad = -1;
+                    if (!segmento.cargando.contains(segmento.consulta)) {
+                        reservada = segmento.reservar();
+                        if (reservada != null) {
+                            segmento.cargando.add(new Llave(identidad, numeroBloque));
+                        }
+                    }
+                }
+            }
+            
+            if (cantidad < 0) {
+                cantidad = reservada != null
+                        ? cargarBloque(segmento, identidad, numeroBloque, reservada, canal, desplazamiento, destino)
+                        : leerParcial(canal, posicion, desplazamiento, destino);
+            }
+            if (cantidad <= 0) {
+                break;  // Fin del archivo
+            }
+            posicion += cantidad;
+            copiados += cantidad;
+        }
+        bytesEntregados.add(copiados);
+        return copiados;
+    }
+    
+    /**
+     * Lee del disco un bloque en la ranura reservada, fuera de cualquier candado, copia la parte
+     * pedida y publica la ranura en su segmento. Mientras se lee, la ranura sólo la conoce este
+     * hilo, así que nadie más la lee ni la expulsa.
+     *
+     * @return La cantidad de bytes copiados en {@code destino}; cero en el fin del archivo.
+     */
+    private int cargarBloque(Segmento segmento, IdentidadArchivo identidad, long numeroBloque, Integer ranura,
+            FileChannel canal, int desplazamiento, ByteBuffer destino) throws IOException {
+        Llave llave = new Llave(identidad, numeroBloque);
+        int cantidad;
+        try {
+            ByteBuffer bloque = memoria.slice(ranura * TAMANO_BLOQUE, TAMANO_BLOQUE);
+            int leidos = leerDirecto(canal, numeroBloque * TAMANO_BLOQUE, bloque);
+            bytesDisco.add(leidos);
+            longitudes[ranura] = leidos;
+            cantidad = copiar(ranura, desplazamiento, destino);
+        } catch (IOException | RuntimeException e) {
+            synchronized (segmento) {
+                segmento.cargando.remove(llave);
+                segmento.ranurasLibres.push(ranura);
+            }
+            throw e;
+        }
+        
+        synchronized (segmento) {
+            segmento.cargando.remove(llave);
+            segmento.ranuras.put(llave, ranura);
+        }
+        return cantidad;
+    }
+    
+    /**
+     * Copia en {@code destino} los bytes de la ranura desde {@code desplazamiento}.
+     *
+     * @return La cantidad de bytes copiados; cero si el desplazamiento queda después del fin del archivo.
+     */
+    private int copiar(int ranura, int desplazamiento, ByteBuffer destino) {
+        int disponibles = longitudes[ranura] - desplazamiento;
+        if (disponibles <= 0) {
+            return 0;
+        }
+        int cantidad = Math.min(disponibles, destino.remaining());
+        destino.put(destino.position(), memoria, ranura * TAMANO_BLOQUE + desplazamiento, cantidad);
+        destino.position(destino.position() + cantidad);
+        return cantidad;
+    }
+    
+    /**
+     * Lee del disco, sin pasar por la caché, la parte del bloque que le toca a {@code destino}.
+     * Se usa cuando otro hilo está cargando ese bloque o el segmento no tiene ranuras que ceder.
+     */
+    private int leerParcial(FileChannel canal, long posicion, int desplazamiento, ByteBuffer destino) throws IOException {
+        int limite = destino.limit();
+        destino.limit(destino.position() + Math.min(destino.remaining(), TAMANO_BLOQUE - desplazamiento));
+        try {
+            int leidos = leerDirecto(canal, posicion, destino);
+            bytesDisco.add(leidos);
+            return leidos;
+        } finally {
+            destino.limit(limite);
+        }
+    }
+    
+    private static int leerDirecto(FileChannel canal, long posicion, ByteBuffer destino) throws IOException {
+        int leidos = 0;
+        while (destino.hasRemaining()) {
+            int n = canal.read(destino, posicion + leidos);
+            if (n < 0) {
+                break;
+            }
+            leidos += n;
+        }
+        return leidos;
+    }
+    
+    public long getAciertos() {
+        return aciertos.sum();
+    }
+    
+    public long getFallos() {
+        return fallos.sum();
+    }
+    
+    /**
+     * @return Proporción de accesos a bloques que se resolvieron sin leer el disco.
+     */
+    public double getTasaAciertos() {
+        long a = aciertos.sum();
+        long total = a + fallos.sum();
+        return total == 0 ? 0 : (double) a / total;
+    }
+    
+    /**
+     * @return Bytes entregados a las sesiones menos bytes leídos del disco, es decir, lo que
+     *         las sesiones hubieran leído de más sin la caché.
+     */
+    public long getBytesAhorrados() {
+        return Math.max(0, bytesEntregados.sum() - bytesDisco.sum());
+    }
+    
+    public long getCapacidad() {
+        return memoria.capacity();
+    }
+    
+    /**
+     * @return Resumen de la actividad de la caché para la bitácora del servidor.
+     */
+    public String resumen() {
+        return String.format("Caché: %.1f%% aciertos (%d/%d), %d KB ahorrados de disco",
+                getTasaAciertos() * 100, getAciertos(), getAciertos() + getFallos(), getBytesAhorrados() / 1024);
+    }
+    
+    /**
+     * Ranuras de un segmento de la caché. Todos sus campos se protegen con el candado del
+     * propio segmento.
+     */
+    private static final class Segmento {
+        private final ArrayDeque<Integer> ranurasLibres = new ArrayDeque<>();
+        // Llave del bloque -> ranura; en orden de acceso para expulsar el menos reciente
+        private final LinkedHashMap<Llave, Integer> ranuras = new LinkedHashMap<>(16, 0.75f, true);
+        // Bloques cuya ranura se está leyendo del disco y todavía no se publica
+        private final HashSet<Llave> cargando = new HashSet<>();
+        // Llave reutilizada para buscar sin crear objetos en cada paquete
+        private final Llave consulta = new Llave(null, 0);
+        
+        /**
+         * @return Una ranura libre o la del bloque menos reciente, ya fuera del mapa; o
+         *         {@code null} si todas las ranuras del segmento se están cargando.
+         */
+        private Integer reservar() {
+            Integer ranura = ranurasLibres.poll();
+            if (ranura == null && !ranuras.isEmpty()) {
+                Iterator<Map.Entry<Llave, Integer>> masAntiguo = ranuras.entrySet().iterator();
+                ranura = masAntiguo.next().getValue();
+                masAntiguo.remove();
+            }
+            return ranura;
+        }
+    }
+    
+    /**
+     * Llave de un bloque: la identidad del archivo y el número de bloque dentro de él. Las llaves
+     * guardadas en los mapas no cambian; sólo la llave de consulta de cada segmento se reapunta.
+     */
+    private static final class Llave {
+        private IdentidadArchivo identidad;
+        private long numeroBloque;
+        
+        private Llave(IdentidadArchivo identidad, long numeroBloque) {
+            this.identidad = identidad;
+            this.numeroBloque = numeroBloque;
+        }
+        
+        private void apuntar(IdentidadArchivo identidad, long numeroBloque) {
+            this.identidad = identidad;
+            this.numeroBloque = numeroBloque;
+        }
+        
+        private static int hash(IdentidadArchivo identidad, long numeroBloque) {
+            return 31 * identidad.hashCode() + Long.hashCode(numeroBloque);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Llave)) {
+                return false;
+            }
+            Llave otra = (Llave) obj;
+            return numeroBloque == otra.numeroBloque && identidad.equals(otra.identidad);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash(identidad, numeroBloque);
+        }
+    }
+}
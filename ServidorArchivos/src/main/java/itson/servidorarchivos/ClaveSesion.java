@@ -0,0 +1,51 @@
+package itson.servidorarchivos;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Llave de una sesión de transferencia: el punto de origen del cliente (dirección y puerto)
+ * más el identificador de transferencia que el cliente eligió en su solicitud. Sustituye a
+ * la cadena "host:puerto" que se construía por cada mensaje recibido.
+ * @author asielapodaca
+ */
+public final class ClaveSesion {
+    private final InetSocketAddress cliente;
+    private final int idTransferencia;
+    private final int hash;
+    
+    public ClaveSesion(InetSocketAddress cliente, int idTransferencia) {
+        this.cliente = cliente;
+        this.idTransferencia = idTransferencia;
+        this.hash = 31 * cliente.hashCode() + idTransferencia;
+    }
+    
+    public InetSocketAddress getCliente() {
+        return cliente;
+    }
+    
+    public int getIdTransferencia() {
+        return idTransferencia;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ClaveSesion)) {
+            return false;
+        }
+        ClaveSesion otra = (ClaveSesion) obj;
+        return idTransferencia == otra.idTransferencia && cliente.equals(otra.cliente);
+    }
+    
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        return cliente.getAddress().getHostAddress() + ":" + cliente.getPort() + "#" + Integer.toHexString(idTransferencia);
+    }
+}
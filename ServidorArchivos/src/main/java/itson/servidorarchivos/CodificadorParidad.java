@@ -0,0 +1,129 @@
+package itson.servidorarchivos;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Genera los paquetes de paridad de una sesión con corrección de errores hacia adelante.
+ * Los paquetes de la sesión se agrupan en bloques de {@code paquetesPorBloque}; al terminar
+ * de enviar un bloque se envían {@code paquetesParidad} paquetes de paridad, donde la paridad
+ * {@code i} es el XOR de los paquetes del bloque cuyo índice dentro del bloque es congruente
+ * con {@code i} módulo {@code paquetesParidad}.
+ *
+ * Así el cliente puede reconstruir sin retransmisión hasta {@code paquetesParidad} paquetes
+ * perdidos por bloque, siempre que caigan en grupos distintos; en particular cualquier ráfaga
+ * de hasta {@code paquetesParidad} pérdidas consecutivas.
+ * @author asielapodaca
+ */
+public class CodificadorParidad {
+    private final int primerPaquete;
+    private final int finPaquete;
+    private final int paquetesPorBloque;
+    private final int paquetesParidad;
+    private final ByteBuffer[] acumulado; // XOR de los paquetes de cada grupo del bloque actual
+    private final int[] longitudes;       // Bytes del paquete más largo de cada grupo
+    private int bloque;                   // Bloque al que pertenece la paridad acumulada
+    private int siguienteParidad;         // Siguiente paridad por enviar; paquetesParidad si no hay pendientes
+    private final CRC32C crc = new CRC32C();
+    
+    /**
+     * @param primerPaquete Primer paquete del rango de la sesión; los bloques se cuentan desde él.
+     * @param finPaquete Paquete siguiente al último del rango.
+     * @param paquetesPorBloque Paquetes de datos por bloque.
+     * @param paquetesParidad Paquetes de paridad por bloque.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     */
+    public CodificadorParidad(int primerPaquete, int finPaquete, int paquetesPorBloque, int paquetesParidad, int tamanoFragmento) {
+        this.primerPaquete = primerPaquete;
+        this.finPaquete = finPaquete;
+        this.paquetesPorBloque = paquetesPorBloque;
+        this.paquetesParidad = paquetesParidad;
+        this.acumulado = new ByteBuffer[paquetesParidad];
+        for (int i = 0; i < paquetesParidad; i++) {
+            acumulado[i] = ByteBuffer.allocate(tamanoFragmento);
+        }
+        this.longitudes = new int[paquetesParidad];
+        this.siguienteParidad = paquetesParidad;
+    }
+    
+    /**
+     * Agrega un paquete enviado por primera vez a la paridad de su bloque. Los paquetes se
+     * agregan en orden; con el último de un bloque su paridad queda lista para enviarse.
+     *
+     * @param idPaquete Número del paquete.
+     * @param paquete Buffer con el paquete; los datos van de {@code desde} a su límite.
+     * @param desde Posición absoluta donde empiezan los datos.
+     */
+    public void agregar(int idPaquete, ByteBuffer paquete, int desde) {
+        int indice = (idPaquete - primerPaquete) % paquetesPorBloque;
+        int grupo = indice % paquetesParidad;
+        ByteBuffer destino = acumulado[grupo];
+        int longitud = paquete.limit() - desde;
+        // XOR de 8 bytes a la vez y el resto byte por byte
+        int i = 0;
+        for (; i + Long.BYTES <= longitud; i += Long.BYTES) {
+            destino.putLong(i, destino.getLong(i) ^ paquete.getLong(desde + i));
+        }
+        for (; i < longitud; i++) {
+            destino.put(i, (byte) (destino.get(i) ^ paquete.get(desde + i)));
+        }
+        longitudes[grupo] = Math.max(longitudes[grupo], longitud);
+        
+        if (indice == paquetesPorBloque - 1 || idPaquete == finPaquete - 1) {
+            bloque = (idPaquete - primerPaquete) / paquetesPorBloque;
+            // Un bloque final con menos paquetes que grupos no necesita las paridades vacías
+            siguienteParidad = 0;
+        }
+    }
+    
+    /**
+     * @return true si hay paquetes de paridad del último bloque por enviar.
+     */
+    public boolean hayPendiente() {
+        while (siguienteParidad < paquetesParidad && longitudes[siguienteParidad] == 0) {
+            siguienteParidad++;
+        }
+        return siguienteParidad < paquetesParidad;
+    }
+    
+    /**
+     * @return Los bytes de datos de la siguiente paridad por enviar.
+     */
+    public int getTamanoPendiente() {
+        return longitudes[siguienteParidad];
+    }
+    
+    /**
+     * Escribe en {@code buffer}, después del encabezado, la siguiente paridad pendiente:
+     * [bloque (4 bytes)][grupo (1 byte)][CRC32C (4 bytes)][datos].
+     *
+     * @param buffer Buffer de envío posicionado después del encabezado.
+     */
+    public void escribirPendiente(ByteBuffer buffer) {
+        buffer.putInt(bloque);
+        buffer.put((byte) siguienteParidad);
+        int posicionCrc = buffer.position();
+        buffer.putInt(0);
+        buffer.put(acumulado[siguienteParidad].array(), 0, longitudes[siguienteParidad]);
+        ByteBuffer datos = buffer.duplicate().flip();
+        buffer.putInt(posicionCrc, Protocolo.calcularCrc(crc, (long) bloque << 8 | siguienteParidad, datos, posicionCrc + 4));
+    }
+    
+    /**
+     * Confirma que la paridad escrita se envió y limpia su grupo para el siguiente bloque.
+     */
+    public void confirmarEnvio() {
+        Arrays.fill(acumulado[siguienteParidad].array(), 0, longitudes[siguienteParidad], (byte) 0);
+        longitudes[siguienteParidad] = 0;
+        siguienteParidad++;
+    }
+    
+    public int getPaquetesPorBloque() {
+        return paquetesPorBloque;
+    }
+    
+    public int getPaquetesParidad() {
+        return paquetesParidad;
+    }
+}
@@ -0,0 +1,225 @@
+package itson.servidorarchivos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Prepara y guarda en disco las versiones comprimidas de los archivos que se envían. Un archivo
+ * se comprime completo con Deflate una sola vez por versión; las sesiones envían la variante
+ * comprimida como si fuera el archivo, así que la caché de bloques, la huella, la paridad, las
+ * partes y la reanudación funcionan igual y el número de paquetes baja en la misma proporción
+ * que el tamaño.
+ *
+ * Las variantes se guardan con la fecha de modificación del original, de modo que su identidad
+ * (y con ella la versión que ve el cliente al reanudar) no cambia aunque se vuelvan a generar.
+ * Los formatos que ya vienen comprimidos se reconocen por su extensión y no se intentan; los
+ * demás se prueban primero con una muestra de su inicio y se descartan si la compresión no
+ * ahorra al menos {@link #AHORRO_MINIMO} del tamaño.
+ *
+ * La compresión se hace en un grupo acotado de hilos y nadie la espera: mientras la variante
+ * de una versión no está lista, sus solicitudes reciben el archivo original, y las que llegan
+ * después de que termina reciben la variante. Si la cola de compresiones está llena el archivo
+ * se envía sin comprimir y se intenta de nuevo con la siguiente solicitud.
+ * @author asielapodaca
+ */
+public class CompresionArchivos {
+    private static final int MAX_VARIANTES = 1024;
+    private static final double AHORRO_MINIMO = 0.1;
+    private static final int TAMANO_MINIMO = 4 * 1024; // Archivos más pequeños caben en pocos paquetes
+    private static final int TAMANO_BUFFER = 64 * 1024;
+    private static final int TAMANO_MUESTRA = 64 * 1024;
+    private static final String EXTENSION = ".deflate";
+    private static final int HILOS = Integer.getInteger("servidor.hilosCompresion", 2);
+    private static final int MAX_PENDIENTES = Integer.getInteger("servidor.compresionesPendientes", 64);
+    // Formatos que ya vienen comprimidos
+    private static final Set<String> EXTENSIONES_COMPRIMIDAS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "opus", "flac", "m4a",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm", "zip", "gz", "tgz", "bz2", "xz", "zst", "7z",
+            "rar", "jar", "docx", "xlsx", "pptx", "pdf");
+    
+    private final Path directorio;
+    private final ExecutorService compresor = new ThreadPoolExecutor(HILOS, HILOS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDIENTES), r -> {
+                Thread hilo = new Thread(r, "compresion");
+                hilo.setDaemon(true);
+                return hilo;
+            });
+    // En orden de acceso para olvidar la variante usada hace más tiempo
+    private final LinkedHashMap<IdentidadArchivo, CompletableFuture<IdentidadArchivo>> variantes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<IdentidadArchivo, CompletableFuture<IdentidadArchivo>> mayor) {
+            return size() > MAX_VARIANTES;
+        }
+    };
+    
+    /**
+     * @param directorio Carpeta donde se guardan las variantes comprimidas.
+     */
+    public CompresionArchivos(String directorio) {
+        this.directorio = Paths.get(directorio);
+    }
+    
+    /**
+     * Obtiene el archivo que conviene enviar con un códec: la variante comprimida si el cliente
+     * acepta Deflate, el archivo se comprime lo suficiente y la variante ya está lista, o el
+     * archivo original. Si la variante no se ha preparado, se empieza a preparar para las
+     * solicitudes siguientes sin esperarla.
+     *
+     * @param identidad Versión del archivo solicitado.
+     * @param codecs Códecs que acepta el cliente, como máscara de {@code Protocolo.CODEC_*}.
+     * @return La identidad del archivo a enviar; es la misma {@code identidad} si el archivo se
+     *         envía sin comprimir.
+     */
+    public synchronized IdentidadArchivo obtener(IdentidadArchivo identidad, int codecs) {
+        if ((codecs & Protocolo.CODEC_DEFLATE) == 0 || !esCompresible(identidad)) {
+            return identidad;
+        }
+        CompletableFuture<IdentidadArchivo> variante = variantes.get(identidad);
+        if (variante == null) {
+            try {
+                variante = CompletableFuture.supplyAsync(() -> comprimir(identidad), compresor);
+            } catch (RejectedExecutionException e) {
+                return identidad; // Demasiadas compresiones pendientes
+            }
+            variantes.put(identidad, variante);
+            // Un error no se guarda: la siguiente solicitud lo intenta de nuevo
+            variante.whenComplete((valor, error) -> {
+                if (error != null) {
+                    Bitacora.error(error);
+                    olvidar(identidad);
+                }
+            });
+        }
+        return variante.isDone() && !variante.isCompletedExceptionally() ? variante.join() : identidad;
+    }
+    
+    private synchronized void olvidar(IdentidadArchivo identidad) {
+        variantes.remove(identidad);
+    }
+    
+    /**
+     * @return Códec con que se envía un archivo, según el archivo que devolvió {@link #obtener}.
+     */
+    public static byte codecDe(IdentidadArchivo original, IdentidadArchivo enviado) {
+        return original.equals(enviado) ? Protocolo.CODEC_NINGUNO : Protocolo.CODEC_DEFLATE;
+    }
+    
+    private static boolean esCompresible(IdentidadArchivo identidad) {
+        if (identidad.getTamano() < TAMANO_MINIMO) {
+            return false;
+        }
+        String nombre = Paths.get(identidad.getRuta()).getFileName().toString();
+        int punto = nombre.lastIndexOf('.');
+        return punto < 0 || !EXTENSIONES_COMPRIMIDAS.contains(nombre.substring(punto + 1).toLowerCase(Locale.ROOT));
+    }
+    
+    /**
+     * Busca en disco la variante comprimida de una versión del archivo y, si no existe, la genera.
+     *
+     * @return La identidad de la variante, o la del original si no vale la pena comprimirlo.
+     * @throws IllegalStateException Si el archivo no se pudo leer o cambió durante la compresión.
+     */
+    private IdentidadArchivo comprimir(IdentidadArchivo identidad) {
+        Path original = Paths.get(identidad.getRuta());
+        // [nombre]-[ruta]-[versión].deflate: la ruta distingue archivos del mismo nombre en otras carpetas
+        String prefijo = original.getFileName() + "-" + Integer.toHexString(identidad.getRuta().hashCode()) + "-";
+        Path destino = directorio.resolve(prefijo + Long.toHexString(identidad.getVersion()) + EXTENSION);
+        try {
+            if (Files.isRegularFile(destino)) {
+                IdentidadArchivo guardada = IdentidadArchivo.de(destino.toFile());
+                if (guardada.getFechaModificacion() == identidad.getFechaModificacion()) {
+                    return guardada;
+                }
+            }
+            
+            if (!muestraCompresible(original)) {
+                Bitacora.registrar("No vale la pena comprimir " + identidad + "; se envía sin comprimir");
+                return identidad;
+            }
+            
+            Files.createDirectories(directorio);
+            Path temporal = Files.createTempFile(directorio, prefijo, ".tmp");
+            try {
+                Deflater deflater = new Deflater(ServidorArchivos.NIVEL_COMPRESION);
+                try (InputStream entrada = Files.newInputStream(original);
+                        OutputStream salida = new DeflaterOutputStream(Files.newOutputStream(temporal), deflater, TAMANO_BUFFER)) {
+                    entrada.transferTo(salida);
+                } finally {
+                    deflater.end();
+                }
+                if (!IdentidadArchivo.de(original.toFile()).equals(identidad)) {
+                    throw new IOException("El archivo cambió mientras se comprimía");
+                }
+                if (Files.size(temporal) > identidad.getTamano() * (1 - AHORRO_MINIMO)) {
+                    Bitacora.registrar("No vale la pena comprimir " + identidad + "; se envía sin comprimir");
+                    return identidad;
+                }
+                
+                // Las variantes de versiones anteriores ya no se enviarán
+                DirectoryStream.Filter<Path> esAnterior = ruta -> {
+                    String nombre = ruta.getFileName().toString();
+                    return nombre.startsWith(prefijo) && nombre.endsWith(EXTENSION)
+                            && nombre.substring(prefijo.length(), nombre.length() - EXTENSION.length()).matches("[0-9a-f]+");
+                };
+                try (DirectoryStream<Path> anteriores = Files.newDirectoryStream(directorio, esAnterior)) {
+                    for (Path anterior : anteriores) {
+                        Files.deleteIfExists(anterior);
+                    }
+                }
+                temporal.toFile().setLastModified(identidad.getFechaModificacion());
+                Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporal);
+            }
+            
+            IdentidadArchivo variante = IdentidadArchivo.de(destino.toFile());
+            Bitacora.registrar("Variante comprimida de " + identidad + ": " + variante.getTamano() + " bytes");
+            return variante;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Comprime una muestra del inicio del archivo, para no comprimir completo un archivo que no
+     * lo vale, como datos aleatorios o un formato comprimido de extensión desconocida.
+     */
+    private static boolean muestraCompresible(Path original) throws IOException {
+        byte[] muestra = new byte[TAMANO_MUESTRA];
+        int leidos;
+        try (InputStream entrada = Files.newInputStream(original)) {
+            leidos = entrada.readNBytes(muestra, 0, muestra.length);
+        }
+        Deflater deflater = new Deflater(ServidorArchivos.NIVEL_COMPRESION);
+        try {
+            deflater.setInput(muestra, 0, leidos);
+            deflater.finish();
+            byte[] salida = new byte[TAMANO_BUFFER];
+            long comprimidos = 0;
+            while (!deflater.finished()) {
+                comprimidos += deflater.deflate(salida);
+            }
+            return comprimidos <= leidos * (1 - AHORRO_MINIMO);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package itson.servidorarchivos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control de congestión de una sesión. Estima el tiempo de ida y vuelta (RTT) con las marcas
+ * de tiempo que el cliente devuelve en sus acuses, según el RFC 6298, y ajusta la ventana de
+ * envío con incremento aditivo y decremento multiplicativo (AIMD): la ventana crece al doble
+ * por RTT mientras está por debajo del umbral (arranque lento) y un paquete por RTT después;
+ * cada evento de pérdida la reduce y una espera de acuse agotada la lleva al mínimo.
+ *
+ * En enlaces con pérdida aleatoria reducir la ventana a la mitad con cada pérdida hunde el
+ * rendimiento (unos 1.2 / sqrt(p) paquetes por RTT), así que, como TCP Veno, se distingue la
+ * pérdida por congestión de la aleatoria con el retardo de cola: el RTT suavizado por encima
+ * del mínimo de los últimos {@link #VENTANA_RTT_MINIMO}, que se renueva para seguir los cambios
+ * de ruta. Con cola la pérdida reduce la ventana a la mitad y sin ella solo a 4/5, porque un
+ * enlace sin búfer o con tráfico vigilado también pierde sin formar cola; mientras hay cola la
+ * ventana deja de crecer para no llenar el búfer del enlace.
+ *
+ * La tasa de envío se reparte a lo largo del RTT (ventana / RTT) para no enviar la ventana
+ * completa en una sola ráfaga.
+ * @author asielapodaca
+ */
+public class ControlCongestion {
+    private static final int VENTANA_INICIAL = 10; // Paquetes, como en el RFC 6928
+    private static final long RTO_INICIAL = TimeUnit.SECONDS.toNanos(1);
+    private static final long RTO_MAXIMO = TimeUnit.SECONDS.toNanos(8);
+    private static final long RETARDO_COLA_MINIMO = TimeUnit.MILLISECONDS.toNanos(1); // Tolerancia al ruido del RTT
+    private static final long VENTANA_RTT_MINIMO = TimeUnit.SECONDS.toNanos(10);
+    private static final double REDUCCION_ALEATORIA = 0.8; // Ventana que queda tras una pérdida sin cola
+    
+    private final boolean adaptativo;
+    private final int ventanaMinima;
+    private final int ventanaMaxima;
+    private double ventana;            // Paquetes que pueden estar en vuelo
+    private double umbral;             // Umbral del arranque lento
+    private int recuperacionHasta;     // Las pérdidas de paquetes anteriores pertenecen al último evento
+    private long rttSuavizado;         // En nanosegundos; 0 mientras no haya muestras
+    private long rttMinimo;            // RTT sin cola en el enlace, el menor de la última VENTANA_RTT_MINIMO
+    private long rttMinimoEn;          // Momento de la muestra de rttMinimo
+    private long variacionRtt;
+    private long rto = RTO_INICIAL;
+    private int retrocesos;            // Esperas agotadas seguidas; cada una duplica el RTO
+    
+    /**
+     * @param ventanaMinima Paquetes en vuelo que siempre se permiten.
+     * @param ventanaMaxima Paquetes en vuelo como máximo, según la memoria asignada a la sesión.
+     */
+    public ControlCongestion(int ventanaMinima, int ventanaMaxima) {
+        this.adaptativo = ServidorArchivos.CONTROL_CONGESTION;
+        this.ventanaMinima = ventanaMinima;
+        this.ventanaMaxima = ventanaMaxima;
+        this.ventana = adaptativo ? Math.max(ventanaMinima, Math.min(VENTANA_INICIAL, ventanaMaxima)) : ventanaMaxima;
+        this.umbral = ventanaMaxima;
+    }
+    
+    /**
+     * Agrega una muestra del tiempo de ida y vuelta.
+     *
+     * @param muestra RTT medido, en nanosegundos.
+     * @param ahora Momento de la muestra según {@link System#nanoTime()}.
+     */
+    public void registrarRtt(long muestra, long ahora) {
+        if (muestra < 0) {
+            return;
+        }
+        // El mínimo caduca para que una ruta más lenta no parezca una cola permanente
+        if (rttMinimo == 0 || muestra <= rttMinimo || ahora - rttMinimoEn > VENTANA_RTT_MINIMO) {
+            rttMinimo = Math.max(1, muestra);
+            rttMinimoEn = ahora;
+        }
+        if (rttSuavizado == 0) {
+            rttSuavizado = Math.max(1, muestra);
+            variacionRtt = muestra / 2;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|;  SRTT = 7/8 SRTT + 1/8 R
+            variacionRtt += (Math.abs(rttSuavizado - muestra) - variacionRtt) / 4;
+            rttSuavizado += (muestra - rttSuavizado) / 8;
+        }
+        rto = Math.min(RTO_MAXIMO, Math.max(ServidorArchivos.RTO_MINIMO, rttSuavizado + 4 * variacionRtt));
+        retrocesos = 0;
+    }
+    
+    /**
+     * El cliente confirmó paquetes nuevos: la ventana crece si no se está formando una cola.
+     *
+     * @param paquetes Cantidad de paquetes que avanzó el acuse.
+     */
+    public void registrarAcuse(int paquetes) {
+        if (!adaptativo || hayCola()) {
+            return;
+        }
+        if (ventana < umbral) {
+            ventana += paquetes;
+        } else {
+            ventana += (double) paquetes / ventana;
+        }
+        ventana = Math.min(ventana, ventanaMaxima);
+    }
+    
+    /**
+     * El cliente informó un paquete perdido. Todas las pérdidas de lo enviado antes de la última
+     * reducción cuentan como un solo evento, así que la ventana se reduce a lo más una vez por RTT.
+     * Sin cola en el enlace la pérdida se considera aleatoria y la reducción es menor.
+     *
+     * @param idPaquete Primer paquete perdido.
+     * @param siguientePaquete Siguiente paquete nuevo que enviará la sesión.
+     */
+    public void registrarPerdida(int idPaquete, int siguientePaquete) {
+        if (!adaptativo || idPaquete < recuperacionHasta) {
+            return;
+        }
+        umbral = Math.max(ventanaMinima, hayCola() ? ventana / 2 : ventana * REDUCCION_ALEATORIA);
+        ventana = umbral;
+        recuperacionHasta = siguientePaquete;
+    }
+    
+    /**
+     * Se agotó la espera de un acuse: se asume congestión severa y se duplica el RTO.
+     *
+     * @param siguientePaquete Siguiente paquete nuevo que enviará la sesión.
+     */
+    public void registrarEsperaAgotada(int siguientePaquete) {
+        retrocesos++;
+        if (!adaptativo) {
+            return;
+        }
+        umbral = Math.max(ventanaMinima, ventana / 2);
+        ventana = ventanaMinima;
+        recuperacionHasta = siguientePaquete;
+    }
+    
+    /**
+     * Ignora las pérdidas de los paquetes anteriores a {@code siguientePaquete}; se usa al
+     * reanudar una descarga, cuando los paquetes que pide el cliente no se perdieron por congestión.
+     */
+    public void ignorarPerdidasHasta(int siguientePaquete) {
+        recuperacionHasta = siguientePaquete;
+    }
+    
+    /**
+     * @return true si el RTT suavizado supera al mínimo lo suficiente para indicar que los
+     *         paquetes esperan en la cola de algún enlace.
+     */
+    private boolean hayCola() {
+        return rttMinimo > 0 && rttSuavizado - rttMinimo > Math.max(rttMinimo / 4, RETARDO_COLA_MINIMO);
+    }
+    
+    /**
+     * @return Paquetes que pueden estar en vuelo sin acuse.
+     */
+    public int getVentana() {
+        return (int) ventana;
+    }
+    
+    /**
+     * @return Tiempo de espera de un acuse, en nanosegundos.
+     */
+    public long getRto() {
+        if (!adaptativo) {
+            return RTO_INICIAL;
+        }
+        return Math.min(RTO_MAXIMO, rto << Math.min(retrocesos, 16));
+    }
+    
+    /**
+     * Calcula la tasa a la que conviene enviar para repartir la ventana a lo largo del RTT. En
+     * el arranque lento se permite el doble, para que la ventana pueda seguir creciendo.
+     *
+     * @param bytesPorPaquete Bytes que ocupa cada paquete.
+     * @return La tasa en bytes por segundo, o 0 si todavía no se conoce el RTT.
+     */
+    public long getTasa(int bytesPorPaquete) {
+        if (!adaptativo || rttSuavizado == 0) {
+            return 0;
+        }
+        double factor = ventana < umbral ? 2.0 : 1.25;
+        return (long) (factor * ventana * bytesPorPaquete * 1e9 / rttSuavizado);
+    }
+    
+    /**
+     * @return El RTT suavizado en nanosegundos, o 0 si todavía no hay muestras.
+     */
+    public long getRttSuavizado() {
+        return rttSuavizado;
+    }
+}
@@ -0,0 +1,175 @@
+package itson.servidorarchivos;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Difusiones multicast que comparten los reactores. Cada reactor tiene sus propias sesiones y
+ * transmisiones, pero el grupo multicast y sus puertos son de todo el servidor: si cada reactor
+ * difundiera el mismo archivo, los clientes del grupo lo recibirían una vez por reactor. Por
+ * eso cada difusión tiene un reactor dueño, el primero que la pide, y los demás le desvían las
+ * solicitudes de ese archivo y los mensajes siguientes de esos clientes, que el sistema
+ * operativo les sigue entregando a ellos. El dueño responde por su propio canal, enlazado al
+ * mismo puerto, así que para el cliente no cambia nada.
+ *
+ * Cada transmisión reserva uno de los puertos del grupo y lo libera al cerrarse, de modo que
+ * un puerto no se reutiliza mientras su transmisión siga enviando; si todos están ocupados la
+ * transmisión se difunde solo por unicast.
+ * @author asielapodaca
+ */
+public class DifusionesMulticast {
+    // Tiempo que se conserva el desvío de un cliente cuya sesión no existe en el reactor dueño
+    private static final long ESPERA_DESVIO = TimeUnit.SECONDS.toNanos(5);
+    
+    private final InetAddress grupo;
+    private final int primerPuerto;
+    private final boolean[] puertosOcupados;
+    // Reactor que atiende cada difusión, según su llave
+    private final ConcurrentHashMap<ManejadorCliente.LlaveTransmision, Buzon> duenos = new ConcurrentHashMap<>();
+    // Reactor al que se desvían los mensajes de cada cliente que se unió a una difusión ajena
+    private final ConcurrentHashMap<ClaveSesion, Desvio> desvios = new ConcurrentHashMap<>();
+    
+    /**
+     * @param grupo Dirección del grupo multicast.
+     * @param primerPuerto Primer puerto del grupo.
+     * @param puertos Cantidad de puertos del grupo a partir del primero.
+     */
+    public DifusionesMulticast(InetAddress grupo, int primerPuerto, int puertos) {
+        this.grupo = grupo;
+        this.primerPuerto = primerPuerto;
+        this.puertosOcupados = new boolean[puertos];
+    }
+    
+    /**
+     * Reserva un puerto del grupo para una transmisión.
+     *
+     * @return El grupo con el puerto reservado, o null si todos están ocupados.
+     */
+    public synchronized InetSocketAddress reservarGrupo() {
+        for (int i = 0; i < puertosOcupados.length; i++) {
+            if (!puertosOcupados[i]) {
+                puertosOcupados[i] = true;
+                return new InetSocketAddress(grupo, primerPuerto + i);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Libera el puerto de una transmisión que se cerró.
+     */
+    public synchronized void liberarGrupo(InetSocketAddress reservado) {
+        puertosOcupados[reservado.getPort() - primerPuerto] = false;
+    }
+    
+    /**
+     * Obtiene el reactor que atiende una difusión; si no tiene, queda a cargo del que la pide.
+     *
+     * @param llave Llave de la difusión.
+     * @param buzon Buzón del reactor que la pide.
+     * @return El buzón del reactor dueño de la difusión.
+     */
+    public Buzon reclamar(ManejadorCliente.LlaveTransmision llave, Buzon buzon) {
+        Buzon dueno = duenos.putIfAbsent(llave, buzon);
+        return dueno != null ? dueno : buzon;
+    }
+    
+    /**
+     * El reactor deja de atender una difusión; la siguiente solicitud queda a cargo de quien la reciba.
+     */
+    public void soltar(ManejadorCliente.LlaveTransmision llave, Buzon buzon) {
+        duenos.remove(llave, buzon);
+    }
+    
+    /**
+     * Desvía al reactor dueño de una difusión los mensajes de un cliente que se une a ella.
+     */
+    public void desviar(ClaveSesion clave, Buzon destino) {
+        desvios.put(clave, new Desvio(destino, System.nanoTime()));
+    }
+    
+    /**
+     * @return El buzón del reactor al que se desvían los mensajes del cliente, o null si los
+     *         atiende el reactor que los recibe.
+     */
+    public Buzon buscarDesvio(ClaveSesion clave) {
+        Desvio desvio = desvios.get(clave);
+        return desvio != null ? desvio.destino : null;
+    }
+    
+    /**
+     * Olvida los desvíos hacia un reactor de los clientes que ya no tienen sesión en él. Se
+     * llama periódicamente desde ese reactor.
+     *
+     * @param buzon Buzón del reactor.
+     * @param sesiones Registro de las sesiones del reactor.
+     */
+    public void olvidarDesvios(Buzon buzon, RegistroSesiones sesiones) {
+        long ahora = System.nanoTime();
+        desvios.entrySet().removeIf(desvio -> desvio.getValue().destino == buzon
+                && ahora - desvio.getValue().creado > ESPERA_DESVIO && sesiones.obtener(desvio.getKey()) == null);
+    }
+    
+    private static final class Desvio {
+        private final Buzon destino;
+        private final long creado;
+        
+        private Desvio(Buzon destino, long creado) {
+            this.destino = destino;
+            this.creado = creado;
+        }
+    }
+    
+    /**
+     * Mensajes que los demás reactores desvían a uno; los atiende él en su propio hilo.
+     */
+    public static final class Buzon {
+        private final ConcurrentLinkedQueue<Desviado> mensajes = new ConcurrentLinkedQueue<>();
+        private volatile Selector selector;
+        
+        /**
+         * @param selector Selector del reactor, que se despierta con cada mensaje desviado.
+         */
+        void abrir(Selector selector) {
+            this.selector = selector;
+        }
+        
+        /**
+         * Deja en el buzón una copia del datagrama completo de un cliente.
+         */
+        void entregar(ByteBuffer datagrama, InetSocketAddress cliente) {
+            ByteBuffer copia = ByteBuffer.allocate(datagrama.remaining());
+            copia.put(datagrama.duplicate()).flip();
+            mensajes.add(new Desviado(copia, cliente));
+            Selector despertador = selector;
+            if (despertador != null) {
+                despertador.wakeup();
+            }
+        }
+        
+        /**
+         * Atiende los mensajes desviados que haya en el buzón.
+         */
+        void atender(ManejadorCliente manejador) {
+            Desviado desviado;
+            while ((desviado = mensajes.poll()) != null) {
+                manejador.procesarMensaje(desviado.datagrama, desviado.cliente);
+            }
+        }
+    }
+    
+    private static final class Desviado {
+        private final ByteBuffer datagrama;
+        private final InetSocketAddress cliente;
+        
+        private Desviado(ByteBuffer datagrama, InetSocketAddress cliente) {
+            this.datagrama = datagrama;
+            this.cliente = cliente;
+        }
+    }
+}
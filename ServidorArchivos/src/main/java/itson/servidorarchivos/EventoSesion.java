@@ -0,0 +1,46 @@
+package itson.servidorarchivos;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evento de Java Flight Recorder con el resumen de una sesión de transferencia, desde que el
+ * cliente pide el archivo hasta que se cierra su sesión. Con JFR apagado el evento no cuesta
+ * más que crearlo; para grabarlo se inicia el servidor con
+ * {@code -XX:StartFlightRecording} o se activa con {@code jcmd <pid> JFR.start}.
+ * @author asielapodaca
+ */
+@Name("itson.servidorarchivos.Sesion")
+@Label("Sesión de transferencia")
+@Category("Servidor de archivos")
+@Description("Descarga de un cliente, desde la solicitud hasta que se cierra la sesión")
+@StackTrace(false)
+public class EventoSesion extends Event {
+    @Label("Cliente")
+    String cliente;
+    
+    @Label("Archivo")
+    String archivo;
+    
+    @Label("Bytes enviados")
+    @DataAmount
+    long bytes;
+    
+    @Label("Paquetes enviados")
+    long paquetes;
+    
+    @Label("Paquetes reenviados")
+    long reenviados;
+    
+    @Label("Multicast")
+    boolean multicast;
+    
+    @Label("Completada")
+    @Description("El cliente confirmó que recibió el archivo completo")
+    boolean completada;
+}
@@ -0,0 +1,143 @@
+package itson.servidorarchivos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+/**
+ * Expone las {@link MetricasServidor} en {@code http://127.0.0.1:<puerto>/metrics} con el
+ * formato de texto de Prometheus, que también se lee bien con {@code curl}. Solo escucha en la
+ * interfaz local: para publicarlas hacia afuera se pone delante un proxy o el agente que las
+ * recoja.
+ *
+ * Las métricas se calculan al momento de cada consulta en el hilo del servidor HTTP, así que
+ * consultarlas no agrega trabajo a los reactores. Las distribuciones se publican como
+ * {@code summary} con sus percentiles 0.5, 0.9, 0.99 y 0.999.
+ * @author asielapodaca
+ */
+public class ExportadorMetricas implements Closeable {
+    private static final String PREFIJO = "servidorarchivos_";
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    
+    private final MetricasServidor metricas;
+    private final HttpServer servidor;
+    
+    /**
+     * Abre el servidor HTTP en el puerto indicado de la interfaz local. Las consultas se
+     * atienden desde que se llama a {@link #iniciar()}.
+     *
+     * @param metricas Métricas a exponer.
+     * @param puerto Puerto TCP.
+     * @throws IOException Si el puerto no está disponible.
+     */
+    public ExportadorMetricas(MetricasServidor metricas, int puerto) throws IOException {
+        this.metricas = metricas;
+        this.servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+    }
+    
+    /**
+     * Empieza a atender las consultas en su propio hilo.
+     */
+    public void iniciar() {
+        servidor.createContext("/metrics", this::responder);
+        servidor.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread hilo = new Thread(r, "metricas");
+            hilo.setDaemon(true);
+            return hilo;
+        }));
+        servidor.start();
+    }
+    
+    private void responder(HttpExchange intercambio) throws IOException {
+        byte[] cuerpo = exposicion().getBytes(StandardCharsets.UTF_8);
+        intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        intercambio.sendResponseHeaders(200, cuerpo.length);
+        try (OutputStream salida = intercambio.getResponseBody()) {
+            salida.write(cuerpo);
+        }
+    }
+    
+    /**
+     * @return Las métricas actuales en el formato de texto de Prometheus.
+     */
+    public String exposicion() {
+        StringBuilder texto = new StringBuilder(4096);
+        metrica(texto, "paquetes_enviados_total", "counter", "Paquetes de datos enviados, por destinatario",
+                metricas.getPaquetesEnviados());
+        metrica(texto, "paquetes_reenviados_total", "counter", "Paquetes de datos retransmitidos",
+                metricas.getPaquetesReenviados());
+        metrica(texto, "paquetes_paridad_total", "counter", "Paquetes de paridad enviados",
+                metricas.getPaquetesParidad());
+        metrica(texto, "bytes_enviados_total", "counter", "Bytes de paquetes de datos y de paridad enviados",
+                metricas.getBytesEnviados());
+        metrica(texto, "bytes_por_segundo", "gauge", "Tasa de envío en el último periodo de muestreo",
+                metricas.getBytesPorSegundo());
+        metrica(texto, "acuses_selectivos_total", "counter", "Acuses selectivos (NACK) recibidos",
+                metricas.getAcusesSelectivos());
+        metrica(texto, "paquetes_solicitados_total", "counter", "Paquetes pedidos de nuevo en los acuses selectivos",
+                metricas.getPaquetesSolicitados());
+        metrica(texto, "sesiones_iniciadas_total", "counter", "Sesiones de transferencia registradas",
+                metricas.getSesionesIniciadas());
+        metrica(texto, "sesiones_completadas_total", "counter", "Sesiones que el cliente confirmó completas",
+                metricas.getSesionesCompletadas());
+        metrica(texto, "sesiones_expulsadas_total", "counter", "Sesiones expulsadas por inactividad o abortadas",
+                metricas.getSesionesExpulsadas());
+        metrica(texto, "sesiones_activas", "gauge", "Sesiones de transferencia abiertas",
+                metricas.getSesionesActivas());
+        metrica(texto, "pausas_tasa_global_total", "counter", "Rondas del planificador detenidas por el límite global",
+                metricas.getPausasTasaGlobal());
+        metrica(texto, "cache_aciertos_total", "counter", "Bloques leídos de la caché", metricas.getAciertosCache());
+        metrica(texto, "cache_fallos_total", "counter", "Bloques leídos del disco", metricas.getFallosCache());
+        resumen(texto, "rtt_segundos", "RTT medido con los acuses de los clientes", metricas.getRtt(), 1e-6);
+        resumen(texto, "duracion_sesion_segundos", "Duración de las sesiones completadas",
+                metricas.getDuracionSesiones(), 1e-3);
+        resumen(texto, "duracion_sesion_pequena_segundos", "Duración de las sesiones completadas de archivos pequeños",
+                metricas.getDuracionPequenas(), 1e-3);
+        resumen(texto, "duracion_sesion_grande_segundos", "Duración de las sesiones completadas de archivos grandes",
+                metricas.getDuracionGrandes(), 1e-3);
+        resumen(texto, "equidad_sesiones", "Índice de Jain de los bytes enviados a cada sesión por segundo",
+                metricas.getEquidad(), 1e-3);
+        return texto.toString();
+    }
+    
+    private static void metrica(StringBuilder texto, String nombre, String tipo, String ayuda, long valor) {
+        encabezado(texto, nombre, tipo, ayuda);
+        texto.append(PREFIJO).append(nombre).append(' ').append(valor).append('\n');
+    }
+    
+    /**
+     * Escribe un histograma como {@code summary}, convirtiendo sus valores a segundos.
+     *
+     * @param escala Segundos por unidad de los valores del histograma.
+     */
+    private static void resumen(StringBuilder texto, String nombre, String ayuda, Histograma histograma, double escala) {
+        encabezado(texto, nombre, "summary", ayuda);
+        for (double percentil : PERCENTILES) {
+            texto.append(PREFIJO).append(nombre).append("{quantile=\"").append(percentil).append("\"} ")
+                    .append(decimal(histograma.percentil(percentil) * escala)).append('\n');
+        }
+        texto.append(PREFIJO).append(nombre).append("_sum ").append(decimal(histograma.getSuma() * escala)).append('\n');
+        texto.append(PREFIJO).append(nombre).append("_count ").append(histograma.getCantidad()).append('\n');
+    }
+    
+    private static void encabezado(StringBuilder texto, String nombre, String tipo, String ayuda) {
+        texto.append("# HELP ").append(PREFIJO).append(nombre).append(' ').append(ayuda).append('\n');
+        texto.append("# TYPE ").append(PREFIJO).append(nombre).append(' ').append(tipo).append('\n');
+    }
+    
+    private static String decimal(double valor) {
+        return String.format(Locale.ROOT, "%.6f", valor);
+    }
+    
+    @Override
+    public void close() {
+        servidor.stop(0);
+    }
+}
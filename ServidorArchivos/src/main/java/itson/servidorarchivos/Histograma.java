@@ -0,0 +1,106 @@
+package itson.servidorarchivos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de valores enteros no negativos con error relativo acotado, al estilo de
+ * HdrHistogram: los valores se agrupan por potencia de dos y cada potencia se divide en
+ * {@link #SUBCUBETAS} cubetas del mismo ancho, así que un percentil se reporta con un error de
+ * a lo más 1/{@link #SUBCUBETAS} de su valor sin importar si es de microsegundos o de horas.
+ * Los valores menores que 2 * {@link #SUBCUBETAS} se cuentan exactos.
+ *
+ * Registrar un valor es un incremento atómico en un arreglo fijo, sin crear objetos ni tomar
+ * candados, por lo que los reactores pueden registrar a la vez mientras otro hilo lee los
+ * percentiles. Las lecturas no son una foto exacta de un instante, lo que basta para métricas.
+ * @author asielapodaca
+ */
+public class Histograma {
+    private static final int BITS_SUBCUBETA = 4;
+    private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+    // Una fila de cubetas por cada potencia de dos que puede tener un long positivo
+    private static final int CUBETAS = (Long.SIZE - BITS_SUBCUBETA) * SUBCUBETAS;
+    
+    private final AtomicLongArray cuentas = new AtomicLongArray(CUBETAS);
+    private final LongAdder cantidad = new LongAdder();
+    private final LongAdder suma = new LongAdder();
+    private final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+    
+    /**
+     * Registra un valor; los negativos se cuentan como 0.
+     */
+    public void registrar(long valor) {
+        valor = Math.max(0, valor);
+        cuentas.incrementAndGet(indice(valor));
+        cantidad.increment();
+        suma.add(valor);
+        maximo.accumulate(valor);
+    }
+    
+    private static int indice(long valor) {
+        if (valor < 2 * SUBCUBETAS) {
+            return (int) valor;
+        }
+        // Desplazamiento que deja los BITS_SUBCUBETA + 1 bits más altos del valor
+        int desplazamiento = Long.SIZE - BITS_SUBCUBETA - 1 - Long.numberOfLeadingZeros(valor);
+        return (desplazamiento + 1) * SUBCUBETAS + (int) (valor >>> desplazamiento) - SUBCUBETAS;
+    }
+    
+    /**
+     * @return El valor más alto que cae en la cubeta {@code indice}.
+     */
+    private static long limiteSuperior(int indice) {
+        if (indice < 2 * SUBCUBETAS) {
+            return indice;
+        }
+        int desplazamiento = indice / SUBCUBETAS - 1;
+        long inicio = (long) (indice % SUBCUBETAS + SUBCUBETAS) << desplazamiento;
+        return inicio + (1L << desplazamiento) - 1;
+    }
+    
+    /**
+     * Calcula un percentil de los valores registrados.
+     *
+     * @param percentil Fracción de los valores que quedan por debajo, entre 0 y 1.
+     * @return El valor del percentil, o 0 si no hay valores registrados.
+     */
+    public long percentil(double percentil) {
+        long total = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            total += cuentas.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long objetivo = Math.max(1, (long) Math.ceil(percentil * total));
+        long acumulado = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += cuentas.get(i);
+            if (acumulado >= objetivo) {
+                return Math.min(limiteSuperior(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+    
+    public long getCantidad() {
+        return cantidad.sum();
+    }
+    
+    public long getSuma() {
+        return suma.sum();
+    }
+    
+    public long getMaximo() {
+        return maximo.get();
+    }
+    
+    /**
+     * @return El promedio de los valores registrados, o 0 si no hay valores.
+     */
+    public double getPromedio() {
+        long n = cantidad.sum();
+        return n == 0 ? 0 : (double) suma.sum() / n;
+    }
+}
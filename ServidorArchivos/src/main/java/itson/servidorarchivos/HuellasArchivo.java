@@ -0,0 +1,167 @@
+package itson.servidorarchivos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * Guarda las huellas de los rangos de paquetes que se enviaron. La huella de un rango se suma
+ * mientras sus paquetes salen por primera vez, con el CRC que ya se calculó para cada uno, y al
+ * terminar el rango se guarda aquí; las transmisiones siguientes de la misma versión del
+ * archivo, tamaño de fragmento y rango la ponen en sus metadatos sin leer el archivo.
+ *
+ * Solo una descarga que se reanuda necesita la huella de un rango que no se ha enviado: la
+ * calcula en un grupo de hilos aparte, sin detener al reactor ni el envío de los metadatos.
+ * @author asielapodaca
+ */
+public class HuellasArchivo {
+    private static final int MAX_HUELLAS = 1024;
+    private static final int TAMANO_LECTURA = 1024 * 1024; // Bytes leídos del archivo a la vez
+    private static final int HILOS = Integer.getInteger("servidor.hilosHuellas", 2);
+    
+    private final ExecutorService calculador = Executors.newFixedThreadPool(HILOS, r -> {
+        Thread hilo = new Thread(r, "huellas");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+    // En orden de acceso para descartar la huella usada hace más tiempo
+    private final LinkedHashMap<Llave, CompletableFuture<Long>> huellas = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Llave, CompletableFuture<Long>> mayor) {
+            return size() > MAX_HUELLAS;
+        }
+    };
+    
+    /**
+     * Busca la huella de un rango que ya se conoce.
+     *
+     * @param identidad Versión del archivo.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     * @param primerPaquete Primer paquete del rango (inclusivo).
+     * @param finPaquete Último paquete del rango (exclusivo).
+     * @return La huella, o null si no se conoce o todavía se está calculando.
+     */
+    public synchronized Long buscar(IdentidadArchivo identidad, int tamanoFragmento, int primerPaquete, int finPaquete) {
+        CompletableFuture<Long> huella = huellas.get(new Llave(identidad, tamanoFragmento, primerPaquete, finPaquete));
+        return huella != null && huella.isDone() && !huella.isCompletedExceptionally() ? huella.join() : null;
+    }
+    
+    /**
+     * Guarda la huella de un rango que se terminó de enviar por primera vez.
+     */
+    public synchronized void guardar(IdentidadArchivo identidad, int tamanoFragmento, int primerPaquete, int finPaquete,
+            long huella) {
+        huellas.put(new Llave(identidad, tamanoFragmento, primerPaquete, finPaquete), CompletableFuture.completedFuture(huella));
+    }
+    
+    /**
+     * Obtiene la huella de un rango, leyéndolo en los hilos de cálculo si todavía no se conoce.
+     * Varias solicitudes del mismo rango comparten el cálculo.
+     *
+     * @param identidad Versión del archivo.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     * @param primerPaquete Primer paquete del rango (inclusivo).
+     * @param finPaquete Último paquete del rango (exclusivo).
+     * @return La huella, que puede no estar lista todavía.
+     */
+    public synchronized CompletableFuture<Long> calcular(IdentidadArchivo identidad, int tamanoFragmento,
+            int primerPaquete, int finPaquete) {
+        Llave llave = new Llave(identidad, tamanoFragmento, primerPaquete, finPaquete);
+        CompletableFuture<Long> huella = huellas.get(llave);
+        if (huella == null) {
+            huella = CompletableFuture.supplyAsync(() -> leer(identidad, tamanoFragmento, primerPaquete, finPaquete), calculador);
+            huellas.put(llave, huella);
+            // Un error de lectura no se guarda: la siguiente solicitud lo intenta de nuevo
+            huella.whenComplete((valor, error) -> {
+                if (error != null) {
+                    olvidar(llave);
+                }
+            });
+        }
+        return huella;
+    }
+    
+    private synchronized void olvidar(Llave llave) {
+        huellas.remove(llave);
+    }
+    
+    /**
+     * Lee los paquetes del rango y suma el aporte de cada uno.
+     *
+     * @throws IllegalStateException Si el archivo no se pudo leer o cambió durante el cálculo.
+     */
+    private static long leer(IdentidadArchivo identidad, int tamanoFragmento, int primerPaquete, int finPaquete) {
+        CRC32C crc = new CRC32C();
+        long huella = 0;
+        int fragmentosPorLectura = Math.max(1, TAMANO_LECTURA / tamanoFragmento);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(fragmentosPorLectura * tamanoFragmento);
+        try (FileChannel canal = FileChannel.open(Paths.get(identidad.getRuta()), StandardOpenOption.READ)) {
+            long fin = Math.min((long) finPaquete * tamanoFragmento, identidad.getTamano());
+            long posicion = (long) primerPaquete * tamanoFragmento;
+            int idPaquete = primerPaquete;
+            while (posicion < fin) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), fin - posicion));
+                while (buffer.hasRemaining()) {
+                    if (canal.read(buffer, posicion + buffer.position()) < 0) {
+                        throw new IOException("El archivo terminó antes de lo esperado");
+                    }
+                }
+                int leidos = buffer.position();
+                for (int desde = 0; desde < leidos; desde += tamanoFragmento) {
+                    buffer.limit(Math.min(desde + tamanoFragmento, leidos));
+                    huella += Protocolo.terminoHuella(idPaquete, Protocolo.calcularCrc(crc, posicion + desde, buffer, desde));
+                    idPaquete++;
+                }
+                posicion += leidos;
+            }
+            if (!IdentidadArchivo.de(new File(identidad.getRuta())).equals(identidad)) {
+                throw new IOException("El archivo cambió mientras se calculaba su huella");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return huella;
+    }
+    
+    /**
+     * Llave de una huella: la identidad del archivo, el tamaño de fragmento y el rango de paquetes.
+     */
+    private static final class Llave {
+        private final IdentidadArchivo identidad;
+        private final int tamanoFragmento;
+        private final int primerPaquete;
+        private final int finPaquete;
+        
+        private Llave(IdentidadArchivo identidad, int tamanoFragmento, int primerPaquete, int finPaquete) {
+            this.identidad = identidad;
+            this.tamanoFragmento = tamanoFragmento;
+            this.primerPaquete = primerPaquete;
+            this.finPaquete = finPaquete;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Llave)) {
+                return false;
+            }
+            Llave otra = (Llave) obj;
+            return tamanoFragmento == otra.tamanoFragmento && primerPaquete == otra.primerPaquete
+                    && finPaquete == otra.finPaquete && identidad.equals(otra.identidad);
+        }
+        
+        @Override
+        public int hashCode() {
+            return ((31 * identidad.hashCode() + tamanoFragmento) * 31 + primerPaquete) * 31 + finPaquete;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package itson.servidorarchivos;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifica una versión concreta de un archivo: su ruta canónica, su fecha de modificación
+ * y su tamaño. Si el archivo cambia en disco cambia también su identidad, por lo que los
+ * bloques que la caché guardó de la versión anterior dejan de usarse.
+ * @author asielapodaca
+ */
+public final class IdentidadArchivo {
+    private final String ruta;
+    private final long fechaModificacion;
+    private final long tamano;
+    private final int hash;
+    
+    public IdentidadArchivo(String ruta, long fechaModificacion, long tamano) {
+        this.ruta = ruta;
+        this.fechaModificacion = fechaModificacion;
+        this.tamano = tamano;
+        this.hash = 31 * (31 * ruta.hashCode() + Long.hashCode(fechaModificacion)) + Long.hashCode(tamano);
+    }
+    
+    /**
+     * Construye la identidad actual de un archivo.
+     *
+     * @param archivo El archivo.
+     * @return Su identidad.
+     * @throws IOException Si no se puede resolver la ruta canónica.
+     */
+    public static IdentidadArchivo de(File archivo) throws IOException {
+        return new IdentidadArchivo(archivo.getCanonicalPath(), archivo.lastModified(), archivo.length());
+    }
+    
+    public String getRuta() {
+        return ruta;
+    }
+    
+    public long getFechaModificacion() {
+        return fechaModificacion;
+    }
+    
+    public long getTamano() {
+        return tamano;
+    }
+    
+    /**
+     * Resume la versión del archivo (fecha de modificación y tamaño) en un número de 64 bits
+     * distinto de 0. El cliente lo guarda en su diario para reanudar una descarga solo si el
+     * archivo no cambió.
+     *
+     * @return La versión del archivo.
+     */
+    public long getVersion() {
+        long h = fechaModificacion * 0x9E3779B97F4A7C15L ^ tamano;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IdentidadArchivo)) {
+            return false;
+        }
+        IdentidadArchivo otra = (IdentidadArchivo) obj;
+        return fechaModificacion == otra.fechaModificacion && tamano == otra.tamano && ruta.equals(otra.ruta);
+    }
+    
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        return ruta + " (" + tamano + " bytes)";
+    }
+}
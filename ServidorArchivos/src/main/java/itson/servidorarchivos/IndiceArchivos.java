@@ -0,0 +1,173 @@
+package itson.servidorarchivos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice en memoria de los archivos que ofrece el servidor, compartido por todos los
+ * reactores. Atender una solicitud es buscar el nombre en un mapa, sin consultar el sistema de
+ * archivos, y solo se pueden pedir los archivos regulares que están directamente en el
+ * directorio: un nombre con {@code ..} o con separadores no está en el índice, así que una
+ * solicitud no puede salir del directorio. Los archivos ocultos no se ofrecen.
+ *
+ * Un hilo aparte mantiene el índice al día con un {@link WatchService}: cuando se crea, cambia
+ * o se borra un archivo solo se vuelve a leer ese archivo, y si el sistema pierde eventos se
+ * recorre el directorio completo. Además del mapa se guarda el listado ordenado por nombre con
+ * el que se responde a las solicitudes de listado.
+ * @author asielapodaca
+ */
+public class IndiceArchivos implements Closeable {
+    private static final ArchivoIndexado[] VACIO = new ArchivoIndexado[0];
+    
+    private final Path directorio;
+    private final ConcurrentHashMap<String, ArchivoIndexado> archivos = new ConcurrentHashMap<>();
+    private volatile ArchivoIndexado[] listado = VACIO; // Ordenado por nombre; no se modifica
+    private final WatchService vigilante;
+    
+    /**
+     * Indexa el directorio y empieza a vigilarlo. Si el directorio no existe se crea.
+     *
+     * @param directorio Directorio de los archivos que se ofrecen.
+     * @throws IOException Si no se puede leer o vigilar el directorio.
+     */
+    public IndiceArchivos(String directorio) throws IOException {
+        this.directorio = Paths.get(directorio).toAbsolutePath().normalize();
+        Files.createDirectories(this.directorio);
+        this.vigilante = this.directorio.getFileSystem().newWatchService();
+        this.directorio.register(vigilante, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        escanear();
+        
+        Thread hilo = new Thread(this::vigilar, "indice-archivos");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+    
+    /**
+     * @param nombre Nombre del archivo tal como lo pide el cliente.
+     * @return La versión actual del archivo, o null si no se ofrece.
+     */
+    public ArchivoIndexado obtener(String nombre) {
+        return archivos.get(nombre);
+    }
+    
+    /**
+     * @return Los archivos ofrecidos ordenados por nombre; el arreglo no se debe modificar.
+     */
+    public ArchivoIndexado[] getListado() {
+        return listado;
+    }
+    
+    public int getCantidad() {
+        return listado.length;
+    }
+    
+    /**
+     * Recorre el directorio completo y quita del índice los archivos que ya no están.
+     */
+    private synchronized void escanear() throws IOException {
+        Set<String> presentes = new HashSet<>();
+        try (DirectoryStream<Path> contenido = Files.newDirectoryStream(directorio)) {
+            for (Path ruta : contenido) {
+                String nombre = ruta.getFileName().toString();
+                presentes.add(nombre);
+                actualizar(nombre);
+            }
+        }
+        for (String nombre : archivos.keySet()) {
+            if (!presentes.contains(nombre)) {
+                actualizar(nombre);
+            }
+        }
+        ordenar();
+    }
+    
+    /**
+     * Vuelve a leer un archivo del directorio. Si cambió, su versión anterior se retira y se
+     * registra la nueva; si ya no existe o no se ofrece, se quita del índice.
+     *
+     * @param nombre Nombre del archivo dentro del directorio.
+     */
+    private synchronized void actualizar(String nombre) {
+        Path ruta = directorio.resolve(nombre);
+        ArchivoIndexado anterior = archivos.get(nombre);
+        IdentidadArchivo identidad = null;
+        try {
+            if (Files.isRegularFile(ruta) && !Files.isHidden(ruta)) {
+                identidad = IdentidadArchivo.de(ruta.toFile());
+            }
+        } catch (IOException e) {
+            // El archivo desapareció mientras se leía: se quita del índice
+        }
+        if (anterior != null && anterior.getIdentidad().equals(identidad)) {
+            return;
+        }
+        if (identidad != null) {
+            archivos.put(nombre, new ArchivoIndexado(nombre, identidad));
+        } else {
+            archivos.remove(nombre);
+        }
+        if (anterior != null) {
+            anterior.retirar();
+        }
+    }
+    
+    private void ordenar() {
+        ArchivoIndexado[] ordenado = archivos.values().toArray(VACIO);
+        Arrays.sort(ordenado, Comparator.comparing(ArchivoIndexado::getNombre));
+        listado = ordenado;
+    }
+    
+    private void vigilar() {
+        while (true) {
+            WatchKey llave;
+            try {
+                llave = vigilante.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                boolean desbordado = false;
+                for (WatchEvent<?> evento : llave.pollEvents()) {
+                    if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        desbordado = true;
+                    } else {
+                        actualizar(((Path) evento.context()).toString());
+                    }
+                }
+                if (desbordado) {
+                    escanear();
+                } else {
+                    synchronized (this) {
+                        ordenar();
+                    }
+                }
+            } catch (IOException e) {
+                Bitacora.error(e);
+            }
+            if (!llave.reset()) {
+                Bitacora.registrar("El directorio " + directorio + " ya no se puede vigilar; el índice queda fijo.");
+                return;
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        vigilante.close();
+    }
+}
@@ -0,0 +1,105 @@
+package itson.servidorarchivos;
+
+/**
+ * Limitador de tasa basado en una cubeta de fichas (token bucket). Las fichas
+ * se recargan de forma continua a razón de {@code tasaBytesSegundo} y se
+ * acumulan hasta {@code capacidad}, lo que permite ráfagas cortas sin dejar de
+ * respetar la tasa promedio.
+ * @author asielapodaca
+ */
+public class LimitadorTasa {
+    private final long tasaMaxima;
+    private long tasaBytesSegundo;
+    private final long capacidad;
+    private double fichas;
+    private long ultimaRecarga;
+    
+    /**
+     * @param tasaBytesSegundo Tasa promedio permitida; un valor menor o igual a cero desactiva el límite.
+     * @param capacidad Cantidad máxima de bytes que se pueden enviar en una ráfaga.
+     */
+    public LimitadorTasa(long tasaBytesSegundo, long capacidad) {
+        this.tasaMaxima = tasaBytesSegundo;
+        this.tasaBytesSegundo = tasaBytesSegundo;
+        this.capacidad = capacidad;
+        this.fichas = capacidad;
+        this.ultimaRecarga = System.nanoTime();
+    }
+    
+    /**
+     * Intenta consumir las fichas necesarias para enviar {@code bytes}.
+     *
+     * @param bytes Cantidad de bytes que se desean enviar.
+     * @return 0 si se pudo consumir, o los nanosegundos que faltan para que haya fichas suficientes.
+     */
+    public synchronized long intentarAdquirir(int bytes) {
+        if (tasaBytesSegundo <= 0) {
+            return 0;
+        }
+        
+        recargar();
+        
+        // Un envío mayor que la capacidad solo exige la cubeta llena para no bloquearse para siempre
+        double requeridas = Math.min(bytes, capacidad);
+        if (fichas >= requeridas) {
+            fichas -= bytes;
+            return 0;
+        }
+        return (long) Math.ceil((requeridas - fichas) * 1e9 / tasaBytesSegundo);
+    }
+    
+    /**
+     * Descuenta {@code bytes} ya enviados aunque no alcancen las fichas: la cubeta queda en
+     * deuda hasta que se recarga lo que falta. Sirve para cobrar después de enviar, cuando no
+     * se sabe antes cuántos bytes saldrán; la tasa promedio se respeta igual.
+     *
+     * @param bytes Cantidad de bytes enviados.
+     */
+    public synchronized void consumir(long bytes) {
+        if (tasaBytesSegundo <= 0) {
+            return;
+        }
+        recargar();
+        fichas -= bytes;
+    }
+    
+    /**
+     * @return 0 si la cubeta no está en deuda, o los nanosegundos que faltan para saldarla.
+     */
+    public synchronized long getEspera() {
+        if (tasaBytesSegundo <= 0) {
+            return 0;
+        }
+        recargar();
+        return fichas >= 0 ? 0 : (long) Math.ceil(-fichas * 1e9 / tasaBytesSegundo);
+    }
+    
+    /**
+     * Cambia la tasa, por ejemplo según el control de congestión, sin superar nunca la tasa con
+     * la que se creó el limitador.
+     *
+     * @param tasa Nueva tasa en bytes por segundo; 0 vuelve a la tasa original.
+     */
+    public synchronized void ajustarTasa(long tasa) {
+        if (tasaBytesSegundo > 0) {
+            recargar();
+        } else {
+            ultimaRecarga = System.nanoTime();
+        }
+        if (tasa <= 0) {
+            tasaBytesSegundo = tasaMaxima;
+        } else {
+            tasaBytesSegundo = tasaMaxima > 0 ? Math.min(tasa, tasaMaxima) : tasa;
+        }
+    }
+    
+    private void recargar() {
+        long ahora = System.nanoTime();
+        fichas = Math.min(capacidad, fichas + (ahora - ultimaRecarga) * tasaBytesSegundo / 1e9);
+        ultimaRecarga = ahora;
+    }
+    
+    public synchronized long getTasaBytesSegundo() {
+        return tasaBytesSegundo;
+    }
+}
@@ -0,0 +1,81 @@
+package itson.servidorarchivos;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Límites de la tasa de envío que comparten todos los reactores: uno global para todo lo que
+ * sale del servidor y uno por cliente, identificado por su dirección IP, que comparten todas
+ * sus sesiones aunque las atiendan reactores distintos (por ejemplo las partes de una descarga
+ * en paralelo). Ambos son {@link LimitadorTasa}s que el {@link PlanificadorEnvio} cobra
+ * después de cada turno, así que un turno puede dejarlos en deuda por unos cuantos paquetes.
+ *
+ * El limitador de un cliente se crea con su primera sesión y se olvida al cerrarse la última.
+ * @author asielapodaca
+ */
+public class LimitesEnvio {
+    private final LimitadorTasa global;   // null si no hay límite global
+    private final long tasaCliente;
+    private final long capacidad;
+    private final ConcurrentHashMap<InetAddress, Cuota> clientes = new ConcurrentHashMap<>();
+    
+    /**
+     * @param tasaGlobal Bytes por segundo que puede enviar el servidor; 0 o menos desactiva el límite.
+     * @param tasaCliente Bytes por segundo que puede recibir cada cliente; 0 o menos desactiva el límite.
+     * @param capacidad Bytes que se pueden enviar en una ráfaga.
+     */
+    public LimitesEnvio(long tasaGlobal, long tasaCliente, long capacidad) {
+        this.global = tasaGlobal > 0 ? new LimitadorTasa(tasaGlobal, capacidad) : null;
+        this.tasaCliente = tasaCliente;
+        this.capacidad = capacidad;
+    }
+    
+    /**
+     * @return El limitador global, o null si no hay límite global.
+     */
+    public LimitadorTasa getGlobal() {
+        return global;
+    }
+    
+    /**
+     * Obtiene el limitador de un cliente para una sesión nueva; cada llamada debe acompañarse
+     * de un {@link #liberarCliente} al cerrar la sesión.
+     *
+     * @return El limitador del cliente, o null si no hay límite por cliente.
+     */
+    public LimitadorTasa adquirirCliente(InetAddress direccion) {
+        if (tasaCliente <= 0) {
+            return null;
+        }
+        return clientes.compute(direccion, (clave, cuota) -> {
+            if (cuota == null) {
+                cuota = new Cuota(new LimitadorTasa(tasaCliente, capacidad));
+            }
+            cuota.sesiones++;
+            return cuota;
+        }).limitador;
+    }
+    
+    /**
+     * Libera el limitador de un cliente al cerrar una de sus sesiones.
+     */
+    public void liberarCliente(InetAddress direccion) {
+        if (tasaCliente <= 0) {
+            return;
+        }
+        clientes.computeIfPresent(direccion, (clave, cuota) -> --cuota.sesiones > 0 ? cuota : null);
+    }
+    
+    /**
+     * Limitador de un cliente y la cantidad de sesiones que lo usan; solo se modifica dentro
+     * de las operaciones atómicas del mapa.
+     */
+    private static final class Cuota {
+        private final LimitadorTasa limitador;
+        private int sesiones;
+        
+        private Cuota(LimitadorTasa limitador) {
+            this.limitador = limitador;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package itson.servidorarchivos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Contenido de una solicitud de varios archivos: los archivos se envían uno tras otro en un
+ * solo rango de paquetes, de modo que una sesión, su ventana, sus acuses selectivos y su
+ * confirmación final cubren todo el lote y cada archivo no cuesta una solicitud ni unos
+ * metadatos propios. El rango empieza con el manifiesto, que dice en qué paquete empieza cada
+ * archivo y con qué códec va; cada archivo empieza en un paquete nuevo.
+ *
+ * Dentro del lote cada paquete de un archivo lleva en su CRC la posición dentro de su archivo,
+ * y su aporte a la huella se calcula con su número dentro del archivo. El manifiesto se arma
+ * sin leer los archivos: la huella de cada uno se suma mientras sus paquetes salen por primera
+ * vez y viaja en un paquete final de 8 bytes después de sus datos, que no forma parte de
+ * ninguna huella. Así es la misma que guarda {@link HuellasArchivo} para una descarga
+ * individual en una sola parte; el cliente verifica cada archivo por separado.
+ *
+ * Los archivos del lote se abren al leer sus paquetes y solo quedan abiertos los
+ * {@link #MAX_CANALES} usados más recientemente, para que un lote de miles de archivos no
+ * agote los descriptores del servidor.
+ * @author asielapodaca
+ */
+public class LoteArchivos implements Closeable {
+    private static final int MAX_CANALES = 16;
+    
+    private final Tramo[] tramos;
+    private final int tamanoFragmento;
+    private final CacheBloques cache;
+    private final HuellasArchivo huellas;
+    // Tramos con el canal abierto, del usado hace más tiempo al más reciente
+    private final LinkedHashMap<Tramo, Boolean> abiertos = new LinkedHashMap<>(16, 0.75f, true);
+    private final ByteBuffer manifiesto;
+    private final int paquetesManifiesto;
+    private final int totalPaquetes;
+    private final int[] finTramos;     // Paquete siguiente al final de cada tramo
+    private long tamanoOriginal;       // Suma de los tamaños sin comprimir de los archivos
+    private long huella;               // Huella del manifiesto
+    
+    /**
+     * Arma el manifiesto del lote: cada archivo se envía comprimido si su variante ya está
+     * lista en {@link CompresionArchivos}, y si no, sin comprimir.
+     *
+     * @param archivos Archivos del lote en el orden en que se envían.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     * @param codecs Códecs que acepta el cliente, como máscara de {@code Protocolo.CODEC_*}.
+     * @param cache Caché de bloques compartida.
+     * @param compresiones Variantes comprimidas de los archivos, compartidas por las transmisiones.
+     * @param huellas Huellas de los archivos, donde se guardan las que se terminan de enviar.
+     * @throws IllegalStateException Si el lote tiene más paquetes de los que se pueden numerar.
+     */
+    public LoteArchivos(List<ArchivoIndexado> archivos, int tamanoFragmento, int codecs, CacheBloques cache,
+            CompresionArchivos compresiones, HuellasArchivo huellas) {
+        this.tamanoFragmento = tamanoFragmento;
+        this.cache = cache;
+        this.huellas = huellas;
+        this.tramos = new Tramo[archivos.size()];
+        int tamano = Integer.BYTES;
+        for (int i = 0; i < tramos.length; i++) {
+            ArchivoIndexado archivo = archivos.get(i);
+            tramos[i] = new Tramo(archivo, compresiones.obtener(archivo.getIdentidad(), codecs));
+            tamano += Short.BYTES + archivo.getNombreBytes().length + Integer.BYTES + 2 * Long.BYTES + 1;
+        }
+        this.manifiesto = ByteBuffer.allocate(tamano);
+        this.paquetesManifiesto = (tamano + tamanoFragmento - 1) / tamanoFragmento;
+        this.finTramos = new int[tramos.length];
+        this.totalPaquetes = armarManifiesto();
+    }
+    
+    /**
+     * Escribe el manifiesto y calcula su huella:
+     * [cantidad de archivos (4 bytes)]{[longitud del nombre (2 bytes)][nombre en UTF-8]
+     * [primer paquete (4 bytes)][tamaño enviado (8 bytes)][códec (1 byte)]
+     * [tamaño sin comprimir (8 bytes)]}...
+     *
+     * @return El total de paquetes del lote.
+     */
+    private int armarManifiesto() {
+        long siguiente = paquetesManifiesto;
+        manifiesto.putInt(tramos.length);
+        for (int i = 0; i < tramos.length; i++) {
+            Tramo tramo = tramos[i];
+            tramo.primerPaquete = (int) siguiente;
+            tramo.paquetesDatos = (int) ((tramo.identidad.getTamano() + tamanoFragmento - 1) / tamanoFragmento);
+            // Después de sus datos cada tramo tiene un paquete final con la huella del archivo
+            siguiente += tramo.paquetesDatos + 1;
+            if (siguiente > Integer.MAX_VALUE) {
+                throw new IllegalStateException("El lote tiene demasiados paquetes");
+            }
+            finTramos[i] = (int) siguiente;
+            tamanoOriginal += tramo.original.getTamano();
+            
+            byte[] nombre = tramo.original.getNombreBytes();
+            manifiesto.putShort((short) nombre.length);
+            manifiesto.put(nombre);
+            manifiesto.putInt(tramo.primerPaquete);
+            manifiesto.putLong(tramo.identidad.getTamano());
+            manifiesto.put(CompresionArchivos.codecDe(tramo.original.getIdentidad(), tramo.identidad));
+            manifiesto.putLong(tramo.original.getTamano());
+        }
+        manifiesto.flip();
+        
+        // Los paquetes del manifiesto se suman a su huella igual que los de un archivo
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < paquetesManifiesto; i++) {
+            ByteBuffer paquete = manifiesto.duplicate();
+            paquete.position(i * tamanoFragmento).limit(Math.min(manifiesto.limit(), (i + 1) * tamanoFragmento));
+            huella += Protocolo.terminoHuella(i, Protocolo.calcularCrc(crc, (long) i * tamanoFragmento, paquete, paquete.position()));
+        }
+        return (int) siguiente;
+    }
+    
+    /**
+     * @return La huella del manifiesto.
+     */
+    public long getHuella() {
+        return huella;
+    }
+    
+    /**
+     * Busca el tramo al que pertenece un paquete que no es del manifiesto.
+     *
+     * @return El índice del tramo en {@link #tramos}.
+     */
+    private int buscarTramo(int idPaquete) {
+        // Primer tramo que termina después del paquete; todos tienen al menos su paquete final
+        int bajo = 0;
+        int alto = finTramos.length - 1;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (finTramos[medio] > idPaquete) {
+                alto = medio;
+            } else {
+                bajo = medio + 1;
+            }
+        }
+        return bajo;
+    }
+    
+    /**
+     * Calcula la posición de un paquete dentro de su archivo, o dentro del manifiesto. La del
+     * paquete final de un tramo es la siguiente al último paquete de datos.
+     *
+     * @param idPaquete Número del paquete en el lote.
+     * @return La posición con que se calcula el CRC del paquete.
+     */
+    public long getPosicion(int idPaquete) {
+        if (idPaquete < paquetesManifiesto) {
+            return (long) idPaquete * tamanoFragmento;
+        }
+        return (long) (idPaquete - tramos[buscarTramo(idPaquete)].primerPaquete) * tamanoFragmento;
+    }
+    
+    /**
+     * @param idPaquete Número del paquete en el lote.
+     * @return Los bytes de datos del paquete, o 0 si está fuera del lote.
+     */
+    public int getTamanoPaquete(int idPaquete) {
+        if (idPaquete < 0 || idPaquete >= totalPaquetes) {
+            return 0;
+        }
+        if (idPaquete < paquetesManifiesto) {
+            return (int) Math.min(tamanoFragmento, manifiesto.limit() - (long) idPaquete * tamanoFragmento);
+        }
+        Tramo tramo = tramos[buscarTramo(idPaquete)];
+        int numero = idPaquete - tramo.primerPaquete;
+        if (numero == tramo.paquetesDatos) {
+            return Long.BYTES;
+        }
+        return (int) Math.min(tamanoFragmento, tramo.identidad.getTamano() - (long) numero * tamanoFragmento);
+    }
+    
+    /**
+     * Suma a la huella de su archivo un paquete que se envió por primera vez. Los paquetes del
+     * manifiesto y los finales de los tramos no forman parte de la huella de ningún archivo.
+     *
+     * @param idPaquete Número del paquete en el lote.
+     * @param crcPaquete CRC32C con que se envió el paquete.
+     */
+    public void registrarEnvio(int idPaquete, int crcPaquete) {
+        if (idPaquete < paquetesManifiesto) {
+            return;
+        }
+        Tramo tramo = tramos[buscarTramo(idPaquete)];
+        int numero = idPaquete - tramo.primerPaquete;
+        if (numero < tramo.paquetesDatos) {
+            tramo.huella += Protocolo.terminoHuella(numero, crcPaquete);
+        }
+    }
+    
+    /**
+     * Copia los datos de un paquete en {@code destino}, a partir de su posición actual y hasta
+     * su límite. Los paquetes del manifiesto salen de memoria, los de los archivos de la caché
+     * compartida y el final de cada tramo es la huella de su archivo.
+     *
+     * @param idPaquete Número del paquete en el lote.
+     * @param destino Buffer donde se copian los datos.
+     * @return La cantidad de bytes leídos.
+     * @throws IOException Si no se pudo abrir o leer el archivo del paquete.
+     */
+    public int leerPaquete(int idPaquete, ByteBuffer destino) throws IOException {
+        if (idPaquete < paquetesManifiesto) {
+            ByteBuffer paquete = manifiesto.duplicate();
+            paquete.position(idPaquete * tamanoFragmento);
+            paquete.limit(Math.min(paquete.limit(), paquete.position() + destino.remaining()));
+            int leidos = paquete.remaining();
+            destino.put(paquete);
+            return leidos;
+        }
+        Tramo tramo = tramos[buscarTramo(idPaquete)];
+        int numero = idPaquete - tramo.primerPaquete;
+        if (numero == tramo.paquetesDatos) {
+            // La ventana envía por primera vez los datos del tramo antes que su final, así que
+            // su huella ya está completa, y un reenvío del final la toma de aquí
+            if (!tramo.huellaGuardada) {
+                tramo.huellaGuardada = true;
+                huellas.guardar(tramo.identidad, tamanoFragmento, 0, tramo.paquetesDatos, tramo.huella);
+            }
+            destino.putLong(tramo.huella);
+            return Long.BYTES;
+        }
+        return cache.leer(tramo.identidad, abrir(tramo), (long) numero * tamanoFragmento, destino);
+    }
+    
+    /**
+     * Devuelve el canal de un tramo, abriéndolo si hace falta y cerrando el usado hace más
+     * tiempo si ya hay {@link #MAX_CANALES} abiertos.
+     */
+    private FileChannel abrir(Tramo tramo) throws IOException {
+        if (abiertos.get(tramo) != null) {
+            return tramo.canal;
+        }
+        if (abiertos.size() >= MAX_CANALES) {
+            Iterator<Tramo> antiguo = abiertos.keySet().iterator();
+            antiguo.next().cerrar();
+            antiguo.remove();
+        }
+        tramo.abrir();
+        abiertos.put(tramo, Boolean.TRUE);
+        return tramo.canal;
+    }
+    
+    public int getTotalPaquetes() {
+        return totalPaquetes;
+    }
+    
+    /**
+     * @return Bytes del manifiesto, que ocupa los primeros paquetes del lote.
+     */
+    public long getTamanoManifiesto() {
+        return manifiesto.limit();
+    }
+    
+    public long getTamanoOriginal() {
+        return tamanoOriginal;
+    }
+    
+    /**
+     * @return Archivos del lote.
+     */
+    public int getCantidad() {
+        return tramos.length;
+    }
+    
+    /**
+     * Cierra los archivos que siguen abiertos.
+     */
+    @Override
+    public void close() {
+        for (Tramo tramo : abiertos.keySet()) {
+            tramo.cerrar();
+        }
+        abiertos.clear();
+    }
+    
+    @Override
+    public String toString() {
+        return "lote de " + tramos.length + " archivos";
+    }
+    
+    /**
+     * Un archivo del lote y su rango de paquetes. Como en {@link TransmisionArchivo}, el
+     * original se lee con el canal compartido del índice y la variante comprimida con uno propio.
+     */
+    private static final class Tramo {
+        private final ArchivoIndexado original;
+        private final IdentidadArchivo identidad; // Archivo que se envía: el original o su variante comprimida
+        private int primerPaquete;
+        private int paquetesDatos;         // Paquetes del archivo, sin el final con su huella
+        private long huella;               // Suma de los paquetes de datos enviados por primera vez
+        private boolean huellaGuardada;
+        private FileChannel canal;
+        private boolean canalCompartido;
+        
+        private Tramo(ArchivoIndexado original, IdentidadArchivo identidad) {
+            this.original = original;
+            this.identidad = identidad;
+        }
+        
+        private void abrir() throws IOException {
+            if (identidad.equals(original.getIdentidad())) {
+                canal = original.adquirir();
+                if (canal == null) {
+                    // La versión del manifiesto se retiró del índice: su ruta ya tiene otro contenido
+                    throw new IOException("El archivo " + original.getNombre() + " cambió durante el envío del lote");
+                }
+                canalCompartido = true;
+            } else {
+                canal = FileChannel.open(Paths.get(identidad.getRuta()), StandardOpenOption.READ);
+            }
+        }
+        
+        private void cerrar() {
+            if (canalCompartido) {
+                original.liberar();
+            } else {
+                try {
+                    canal.close();
+                } catch (IOException e) {
+                    Bitacora.error(e);
+                }
+            }
+            canal = null;
+            canalCompartido = false;
+        }
+    }
+}
@@ -4,207 +4,654 @@
  */
 package itson.servidorarchivos;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
 
 /**
  *
- * 
+ *
  * Esta clase se encarga de gestionar la solicitud de archivos por parte de un cliente en un servidor que
- * utiliza el protocolo UDP para transferir los archivos. El archivo solicitado se busca en la carpeta 
- * "archivos" y se envía al cliente en paquetes. En caso de que el archivo no se encuentre, se envía un 
- * mensaje de error.
+ * utiliza el protocolo UDP para transferir los archivos. El archivo solicitado se busca en el
+ * {@link IndiceArchivos} de la carpeta "archivos" y se envía al cliente en paquetes. En caso de que el
+ * archivo no se encuentre, se envía un mensaje de error. El mismo índice responde los listados
+ * y resuelve las solicitudes de lotes, que piden varios archivos por nombre o con un patrón.
+ *
+ * El manejador no envía los paquetes del archivo por sí mismo: crea o actualiza la sesión del cliente
+ * y el reactor del servidor se encarga de avanzarla. Las solicitudes nuevas del mismo archivo con
+ * los mismos parámetros que llegan mientras su envío no ha terminado se unen a la misma
+ * {@link TransmisionArchivo}, de modo que el archivo se difunde una vez a todos esos clientes.
+ * Con multicast, las difusiones tienen un solo reactor dueño en {@link DifusionesMulticast}: el
+ * manejador le desvía las solicitudes que le toca atender y los mensajes de esos clientes.
  */
-public class ManejadorCliente implements Runnable {
-    private static final String DIRECTORIO_BASE = "./archivos/";  // Carpeta donde se buscan los archivos
-    private DatagramPacket paquete;  // Paquete recibido del cliente
-    private DatagramSocket socket;   // Socket utilizado para la comunicación
-    private static final int MAX_INTENTOS = 5;
-    private static final int TIEMPO_ESPERA_RESPUESTA = 1000; // 1 segundo
+public class ManejadorCliente {
+    private final DatagramChannel canal;   // Canal utilizado para la comunicación
+    // Archivos que ofrece el servidor, compartido por los reactores
+    private final IndiceArchivos indice;
     
     // Almacén de solicitudes activas para manejar peticiones de paquetes perdidos
-    private static final Map<String, SesionTransferenciaArchivo> sesionesActivas = new HashMap<>();
-
+    private final RegistroSesiones sesionesActivas;
+    // Bloques de archivo compartidos por todas las sesiones
+    private final CacheBloques cache;
+    // Huellas de los archivos, calculadas una vez por versión
+    private final HuellasArchivo huellas;
+    // Variantes comprimidas de los archivos, preparadas una vez por versión
+    private final CompresionArchivos compresiones;
+    // Métricas del servidor compartidas por los reactores
+    private final MetricasServidor metricas;
+    // Límites de tasa global y por cliente compartidos por los reactores
+    private final LimitesEnvio limites;
+    // Transmisiones a las que se pueden unir las solicitudes del mismo archivo
+    private final Map<LlaveTransmision, TransmisionArchivo> difusiones = new HashMap<>();
+    // Difusiones multicast compartidas por los reactores, o null sin grupo multicast
+    private final DifusionesMulticast multicast;
+    // Buzón de este reactor, donde los demás le desvían los mensajes de sus difusiones
+    private final DifusionesMulticast.Buzon buzon;
+    private final CRC32C crc = new CRC32C();
+    
     /**
-     * Constructor que inicializa el manejador con el paquete recibido y el socket de comunicación.
+     * Constructor que inicializa el manejador con el canal de comunicación.
      *
-     * @param paquete El paquete recibido del cliente que contiene la solicitud de archivo.
-     * @param socket El socket de comunicación para enviar los paquetes al cliente.
+     * @param canal El canal de comunicación para enviar los mensajes a los clientes.
+     * @param indice Índice de los archivos que ofrece el servidor.
+     * @param sesionesActivas Registro donde se guardan las sesiones de transferencia.
+     * @param cache Caché de bloques compartida por las sesiones.
+     * @param huellas Huellas de los archivos compartidas por las sesiones.
+     * @param compresiones Variantes comprimidas de los archivos compartidas por las sesiones.
+     * @param metricas Métricas del servidor compartidas por los reactores.
+     * @param limites Límites de tasa global y por cliente compartidos por los reactores.
+     * @param multicast Difusiones multicast compartidas por los reactores, o null sin grupo multicast.
+     * @param buzon Buzón del reactor, donde los demás le desvían mensajes.
      */
-    public ManejadorCliente(DatagramPacket paquete, DatagramSocket socket) {
-        this.paquete = paquete;
-        this.socket = socket;
+    public ManejadorCliente(DatagramChannel canal, IndiceArchivos indice, RegistroSesiones sesionesActivas, CacheBloques cache,
+            HuellasArchivo huellas, CompresionArchivos compresiones, MetricasServidor metricas, LimitesEnvio limites,
+            DifusionesMulticast multicast, DifusionesMulticast.Buzon buzon) {
+        this.canal = canal;
+        this.indice = indice;
+        this.sesionesActivas = sesionesActivas;
+        this.cache = cache;
+        this.huellas = huellas;
+        this.compresiones = compresiones;
+        this.metricas = metricas;
+        this.limites = limites;
+        this.multicast = multicast;
+        this.buzon = buzon;
     }
     
     /**
-     * Método que se ejecuta cuando se inicia el hilo. Maneja la recepción de la solicitud de archivo,
-     * la búsqueda del archivo y su envío al cliente en paquetes.
+     * Método que se ejecuta por cada datagrama recibido. Distingue los mensajes de control
+     * (acuses, solicitudes de reenvío y confirmaciones) de las solicitudes de archivo y de listado.
+     *
+     * @param mensaje El contenido del datagrama recibido del cliente.
+     * @param cliente La dirección del cliente que envió el mensaje.
      */
-    @Override
-    public void run() {
+    public void procesarMensaje(ByteBuffer mensaje, InetSocketAddress cliente) {
+        ClaveSesion clave = null;
+        ByteBuffer datagrama = mensaje.duplicate();
         try {
-            String mensaje = new String(paquete.getData(), 0, paquete.getLength()).trim();
-            InetAddress direccionCliente = paquete.getAddress();
-            int puertoCliente = paquete.getPort();
+            if (!Protocolo.esMensajeControl(mensaje)) {
+                // Solicitud en texto plano de clientes anteriores: transferencia 0
+                clave = new ClaveSesion(cliente, 0);
+                if (desviar(datagrama, clave)) {
+                    return;
+                }
+                manejarSolicitudArchivo(datagrama, mensaje, clave,
+                        ServidorArchivos.TAMANO_FRAGMENTO_PREDETERMINADO, 0, 1, 0, 0, 0, 0, 0);
+                return;
+            }
+            if (!Protocolo.verificarSello(crc, mensaje)) {
+                return; // Mensaje corrupto: el cliente lo repetirá si hace falta
+            }
             
+            byte tipo = mensaje.get();
             // Identificador unico para la sesión del cliente
-            String idSesion = direccionCliente.getHostAddress() + ":" + puertoCliente;
-            
-            // Si es una solicitud de retransmisión de pauqetes
-            if(mensaje.startsWith("REENVIAR:")) {
-                manejarSolicitudReenvio(mensaje, direccionCliente, puertoCliente, idSesion);
+            clave = new ClaveSesion(cliente, mensaje.getInt());
+            if (desviar(datagrama, clave)) {
                 return;
             }
             
-            if(mensaje.equals("COMPLETADO")) {
-                sesionesActivas.remove(idSesion);
-                System.out.println("Transferencia completada para cliente " + idSesion);
+            if (tipo == Protocolo.SOLICITUD) {
+                byte version = mensaje.get();
+                if (version != Protocolo.VERSION) {
+                    enviarError(clave, "ERROR: Versión de protocolo no soportada (servidor: " + Protocolo.VERSION + ")");
+                    return;
+                }
+                int fragmento = mensaje.getInt();
+                int parte = Short.toUnsignedInt(mensaje.getShort());
+                int partes = Short.toUnsignedInt(mensaje.getShort());
+                long versionReanudar = mensaje.getLong();
+                int paquetesPorBloque = Byte.toUnsignedInt(mensaje.get());
+                int paquetesParidad = Byte.toUnsignedInt(mensaje.get());
+                int codecs = Byte.toUnsignedInt(mensaje.get());
+                int opciones = Byte.toUnsignedInt(mensaje.get());
+                manejarSolicitudArchivo(datagrama, mensaje, clave, fragmento, parte, partes, versionReanudar,
+                        paquetesPorBloque, paquetesParidad, codecs, opciones);
                 return;
             }
-            
-            // Solicitud de nuevo archivo
-            File archivo = new File(DIRECTORIO_BASE + mensaje);
-            if (!archivo.exists() || archivo.isDirectory()) {
-                enviarMensaje("ERROR: Archivo no encontrado", direccionCliente, puertoCliente);
+            if (tipo == Protocolo.SOLICITUD_LOTE) {
+                if (mensaje.get() != Protocolo.VERSION) {
+                    enviarError(clave, "ERROR: Versión de protocolo no soportada (servidor: " + Protocolo.VERSION + ")");
+                    return;
+                }
+                int fragmento = mensaje.getInt();
+                int paquetesPorBloque = Byte.toUnsignedInt(mensaje.get());
+                int paquetesParidad = Byte.toUnsignedInt(mensaje.get());
+                int codecs = Byte.toUnsignedInt(mensaje.get());
+                manejarSolicitudLote(mensaje, clave, fragmento, paquetesPorBloque, paquetesParidad, codecs);
                 return;
             }
-            
-            long tamanoArchivo = archivo.length();
-            int totalPaquetes = (int) Math.ceil((double) tamanoArchivo / ServidorArchivos.TAMANO_BUFFER);
-            
-            // Enviar información del archivo total
-            ByteBuffer metadataBuffer = ByteBuffer.allocate(8);
-            metadataBuffer.putInt(totalPaquetes);
-            metadataBuffer.putInt((int)tamanoArchivo);
-            
-            DatagramPacket paqueteMetadata = new DatagramPacket(
-                    metadataBuffer.array(),
-                    metadataBuffer.array().length,
-                    direccionCliente,
-                    puertoCliente
-            );
-            socket.send(paqueteMetadata);
-            
-            // Crear sesión de transferencia
-            SesionTransferenciaArchivo sesion = new SesionTransferenciaArchivo(archivo, totalPaquetes);
-            sesionesActivas.put(idSesion, sesion);
-            
-            //Enviar todos los paquetes
-            try(FileInputStream fis = new FileInputStream(archivo)) {
-                byte[] buffer = new byte[ServidorArchivos.TAMANO_BUFFER];
-                int bytesLeidos;
-                int numPaquete = 0;
-                
-                while ((bytesLeidos = fis.read(buffer)) != -1) {
-                    // Almacenar el paquete en el sesion
-                    byte[] dataEmpaquetada = new byte[bytesLeidos];
-                    System.arraycopy(buffer, 0, dataEmpaquetada, 0, bytesLeidos);
-                    sesion.addPaquete(numPaquete, dataEmpaquetada);
-                    
-                    // Preparar paquete: [número de paquete(4 bytes)][total de paquetes (4bytes)][datos]
-                    byte[] datosPaquete = new byte[bytesLeidos + 8];
-                    System.arraycopy(intToBytes(numPaquete), 0, datosPaquete, 0, 4);
-                    System.arraycopy(intToBytes(totalPaquetes), 0, datosPaquete, 4, 4);
-                    System.arraycopy(buffer, 0, datosPaquete, 8, bytesLeidos);
-                    
-                    DatagramPacket paqueteEnvio = new DatagramPacket(
-                            datosPaquete,
-                            datosPaquete.length,
-                            direccionCliente,
-                            puertoCliente
-                    );
-                    socket.send(paqueteEnvio);
-                    
-                    numPaquete++;
-                    
-                    // Pequeña pausa para no saturar la red
-                    Thread.sleep(5);
+            if (tipo == Protocolo.LISTA) {
+                if (mensaje.get() != Protocolo.VERSION) {
+                    enviarError(clave, "ERROR: Versión de protocolo no soportada (servidor: " + Protocolo.VERSION + ")");
+                    return;
                 }
+                enviarListado(clave, mensaje.getInt());
+                return;
             }
             
-            // Enviar mensaje de fin para indicar que se han enviado todos los paquetes
-            enviarMensaje("FIN", direccionCliente, puertoCliente);
-            
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+            SesionTransferenciaArchivo sesion = sesionesActivas.obtener(clave);
+            if (tipo == Protocolo.COMPLETADO) {
+                if (sesion != null) {
+                    sesion.marcarCompletada();
+                    sesionesActivas.eliminar(clave);
+                    metricas.registrarSesionCompletada(System.currentTimeMillis() - sesion.getTiempoCreacion(),
+                            sesion.getTransmision().getTamanoOriginal());
+                    Bitacora.registrar("Transferencia completada para cliente " + clave);
+                }
+            } else if (sesion == null) {
+                enviarError(clave, "ERROR: Sesión no encontrada");
+            } else {
+                sesion.registrarActividad();
+                if (tipo == Protocolo.ACUSE) {
+                    int siguientePaquete = mensaje.getInt();
+                    sesion.registrarAcuse(siguientePaquete, mensaje.getInt());
+                } else if (tipo == Protocolo.ACUSE_SELECTIVO) {
+                    // Si es una solicitud de retransmisión de paquetes
+                    manejarSolicitudReenvio(mensaje, sesion);
+                } else if (tipo == Protocolo.PEDIR_FIN) {
+                    enviarFin(sesion);
+                }
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            Bitacora.error(e);
+        } catch (RuntimeException e) {
+            // Un error inesperado con un mensaje no debe detener al reactor ni a sus demás sesiones
+            Bitacora.error(e);
+            if (clave != null) {
+                fallarSesion(clave);
+            }
+        }
+    }
+    
+    /**
+     * Desvía un datagrama al reactor dueño de la difusión a la que se unió el cliente, si es otro.
+     *
+     * @param datagrama Datagrama completo recibido del cliente.
+     * @param clave Llave de la sesión del cliente.
+     * @return true si el datagrama se desvió y ya no se atiende aquí.
+     */
+    private boolean desviar(ByteBuffer datagrama, ClaveSesion clave) {
+        if (multicast == null) {
+            return false;
+        }
+        DifusionesMulticast.Buzon destino = multicast.buscarDesvio(clave);
+        if (destino == null || destino == buzon) {
+            return false;
+        }
+        destino.entregar(datagrama, clave.getCliente());
+        return true;
+    }
+    
+    /**
+     * Olvida los desvíos hacia este reactor de los clientes cuya sesión ya terminó. Se llama
+     * periódicamente desde el reactor.
+     */
+    public void olvidarDesvios() {
+        if (multicast != null) {
+            multicast.olvidarDesvios(buzon, sesionesActivas);
+        }
+    }
+    
+    /**
+     * Termina la sesión de un cliente cuyo mensaje provocó un error inesperado y le avisa con
+     * un error, para que no espere hasta agotar sus reintentos.
+     *
+     * @param clave Llave de la sesión del cliente.
+     */
+    private void fallarSesion(ClaveSesion clave) {
+        sesionesActivas.expulsar(clave);
+        try {
+            enviarError(clave, "ERROR: Error interno del servidor");
+        } catch (IOException e) {
+            Bitacora.error(e);
         }
     }
     
-    private void manejarSolicitudReenvio(String mensaje, InetAddress direccionCliente, int puertoCliente, String idSesion) throws IOException {
-        // Formato: "REENVIAR:1,2,3,4,5" (números de paquetes faltantes)
-        String[] partes = mensaje.split(":");
-        if (partes.length != 2) return;
+    /**
+     * Busca el archivo solicitado y registra la sesión de transferencia; el reactor envía los
+     * metadatos en cuanto el archivo que se envía (o su variante comprimida) está listo y
+     * después los paquetes.
+     *
+     * Si la sesión ya existe, la solicitud es un reintento del cliente porque no recibió los
+     * metadatos, así que solo se reenvían.
+     *
+     * El tamaño de fragmento pedido por el cliente se ajusta a los límites del servidor; el
+     * tamaño acordado viaja en los metadatos. En una descarga en paralelo cada socket del
+     * cliente pide una parte del archivo y recibe solo el rango de paquetes que le toca.
+     *
+     * Una descarga nueva se une, si existe, a la transmisión del mismo archivo y parámetros que
+     * todavía no termina su envío; una descarga que se reanuda tiene su propia transmisión. Si
+     * la difusión es de otro reactor, la solicitud se le desvía.
+     *
+     * @param datagrama Datagrama completo de la solicitud, para desviarlo.
+     * @param mensaje Mensaje posicionado al inicio del nombre del archivo.
+     * @param clave Llave de la sesión del cliente.
+     * @param fragmentoSolicitado Bytes de datos por paquete que pide el cliente.
+     * @param parte Parte del archivo solicitada, desde 0.
+     * @param partes Cantidad de partes en que el cliente divide el archivo.
+     * @param versionReanudar Versión del archivo que el cliente descargó parcialmente, o 0.
+     * @param paquetesPorBloque Paquetes de datos por bloque de paridad, o 0 sin paridad.
+     * @param paquetesParidad Paquetes de paridad por bloque, o 0 sin paridad.
+     * @param codecs Códecs que acepta el cliente, como máscara de {@code Protocolo.CODEC_*}.
+     * @param opciones Opciones de la solicitud, como máscara de {@code Protocolo.OPCION_*}.
+     * @throws IOException Si ocurre un error al abrir el archivo o enviar los metadatos.
+     */
+    private void manejarSolicitudArchivo(ByteBuffer datagrama, ByteBuffer mensaje, ClaveSesion clave, int fragmentoSolicitado,
+            int parte, int partes, long versionReanudar, int paquetesPorBloque, int paquetesParidad,
+            int codecs, int opciones) throws IOException {
+        SesionTransferenciaArchivo existente = sesionesActivas.obtener(clave);
+        if (existente != null) {
+            existente.registrarActividad();
+            enviarMetadatos(existente);
+            return;
+        }
         
-        String[] idsPaquetes = partes[1].split(",");
-        SesionTransferenciaArchivo sesion = sesionesActivas.get(idSesion);
+        String nombreArchivo = StandardCharsets.UTF_8.decode(mensaje).toString().trim();
         
-        if (sesion == null) {
-            enviarMensaje("ERROR: Sesión no encontrada", direccionCliente, puertoCliente);
+        // Solicitud de nuevo archivo: solo se sirven los archivos del índice
+        ArchivoIndexado archivo = indice.obtener(nombreArchivo);
+        if (archivo == null) {
+            enviarError(clave, "ERROR: Archivo no encontrado");
             return;
         }
         
-        int totalPaquetes = sesion.getTotalPaquetes();
+        int tamanoFragmento = Math.max(ServidorArchivos.TAMANO_FRAGMENTO_MINIMO,
+                Math.min(fragmentoSolicitado, ServidorArchivos.TAMANO_FRAGMENTO_MAXIMO));
+        if (archivo.getTotalPaquetes(tamanoFragmento) > Integer.MAX_VALUE) {
+            enviarError(clave, "ERROR: Archivo demasiado grande");
+            return;
+        }
+        if (partes == 0 || parte >= partes) {
+            enviarError(clave, "ERROR: Parte inválida");
+            return;
+        }
+        
+        if (!ServidorArchivos.COMPRESION) {
+            codecs = 0;
+        }
+        paquetesParidad = Math.min(paquetesParidad, Math.min(paquetesPorBloque, ServidorArchivos.MAX_PAQUETES_PARIDAD));
+        if (paquetesParidad == 0) {
+            paquetesPorBloque = 0;
+        }
+        
+        // Unirse a la transmisión del mismo archivo si todavía admite clientes
+        IdentidadArchivo identidad = archivo.getIdentidad();
+        LlaveTransmision llave = null;
+        TransmisionArchivo transmision = null;
+        if (ServidorArchivos.DIFUSION && versionReanudar == 0) {
+            llave = new LlaveTransmision(identidad, codecs, tamanoFragmento, parte, partes, paquetesPorBloque, paquetesParidad);
+            DifusionesMulticast.Buzon dueno = multicast != null ? multicast.reclamar(llave, buzon) : buzon;
+            if (dueno != buzon) {
+                // Otro reactor difunde este archivo: la sesión del cliente se crea y se atiende allá
+                multicast.desviar(clave, dueno);
+                dueno.entregar(datagrama, clave.getCliente());
+                return;
+            }
+            transmision = difusiones.get(llave);
+            if (transmision != null && !transmision.admiteMiembros()) {
+                transmision = null;
+            }
+        }
+        boolean nueva = transmision == null;
+        if (nueva) {
+            LimitadorTasa limitador = crearLimitador(tamanoFragmento);
+            transmision = new TransmisionArchivo(archivo, parte, partes, tamanoFragmento, codecs, cache, limitador,
+                    compresiones, huellas, metricas, llave != null ? multicast : null,
+                    ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+            transmision.solicitarReanudacion(versionReanudar);
+            if (paquetesParidad > 0) {
+                transmision.activarParidad(paquetesPorBloque, paquetesParidad);
+            }
+        }
         
-        // Reenviar los paquetes solicitados
-        for (String stringIdPaquete : idsPaquetes) {
-            try {
-                int idPaquete = Integer.parseInt(stringIdPaquete.trim());
-                byte[] dataEmpaquetada = sesion.getPaquete(idPaquete);
-                
-                if (dataEmpaquetada != null) {
-                    // Preparar paquete: [número de paquete (4 bytes)][total de paquetes (4bytes)][datos]
-                    byte[] datosPaquete = new byte[dataEmpaquetada.length + 8];
-                    System.arraycopy(intToBytes(idPaquete), 0, datosPaquete, 0, 4);
-                    System.arraycopy(intToBytes(totalPaquetes), 0, datosPaquete, 4, 4);
-                    System.arraycopy(dataEmpaquetada, 0, datosPaquete, 8, dataEmpaquetada.length);
-                    
-                    DatagramPacket paqueteEnvio = new DatagramPacket(
-                            datosPaquete,
-                            datosPaquete.length,
-                            direccionCliente,
-                            puertoCliente
-                    );
-                    socket.send(paqueteEnvio);
-                    
-                    // Pequeña pausa para no saturar la red
-                    Thread.sleep(5);
+        // Crear sesión de transferencia
+        boolean multicast = (opciones & Protocolo.OPCION_MULTICAST) != 0 && transmision.getGrupoMulticast() != null;
+        SesionTransferenciaArchivo sesion = SesionTransferenciaArchivo.crear(clave, transmision, multicast, limites);
+        if (!sesionesActivas.registrar(clave, sesion)) {
+            sesion.close();
+            enviarError(clave, "ERROR: Servidor ocupado");
+            return;
+        }
+        metricas.registrarSesionIniciada();
+        if (!nueva) {
+            Bitacora.registrar("El cliente " + clave + " se une a la difusión de " + identidad
+                    + " (" + transmision.getMiembros() + " clientes" + (multicast ? ", multicast" : "") + ")");
+        } else if (llave != null) {
+            // Las transmisiones que ya no admiten clientes se olvidan al registrar una nueva, y las
+            // de otros archivos dejan de ser de este reactor
+            for (Iterator<Map.Entry<LlaveTransmision, TransmisionArchivo>> it = difusiones.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<LlaveTransmision, TransmisionArchivo> anterior = it.next();
+                if (!anterior.getValue().admiteMiembros()) {
+                    it.remove();
+                    if (this.multicast != null && !anterior.getKey().equals(llave)) {
+                        this.multicast.soltar(anterior.getKey(), buzon);
+                    }
                 }
-            } catch (NumberFormatException | InterruptedException e) {
-                // Ignorar paquetes con formato incorrecto
             }
+            difusiones.put(llave, transmision);
         }
     }
     
     /**
-     * Método para enviar un mensaje a un cliente.
+     * Registra la sesión de un lote: los archivos que nombra el cliente, o que coinciden con sus
+     * patrones, se envían seguidos en una sola transmisión, con el manifiesto al inicio y la
+     * huella de cada archivo en un paquete después de sus datos, de modo que los metadatos no
+     * esperan a leer los archivos. Como una solicitud individual, si la sesión ya existe solo se
+     * reenvían los metadatos. Un lote siempre tiene su propia transmisión.
      *
-     * @param mensaje El mensaje a enviar.
-     * @param direccion La dirección del cliente.
-     * @param puerto El puerto del cliente.
+     * @param mensaje Mensaje posicionado al inicio de los nombres.
+     * @param clave Llave de la sesión del cliente.
+     * @param fragmentoSolicitado Bytes de datos por paquete que pide el cliente.
+     * @param paquetesPorBloque Paquetes de datos por bloque de paridad, o 0 sin paridad.
+     * @param paquetesParidad Paquetes de paridad por bloque, o 0 sin paridad.
+     * @param codecs Códecs que acepta el cliente, como máscara de {@code Protocolo.CODEC_*}.
+     * @throws IOException Si ocurre un error al enviar los metadatos o un error.
+     */
+    private void manejarSolicitudLote(ByteBuffer mensaje, ClaveSesion clave, int fragmentoSolicitado,
+            int paquetesPorBloque, int paquetesParidad, int codecs) throws IOException {
+        SesionTransferenciaArchivo existente = sesionesActivas.obtener(clave);
+        if (existente != null) {
+            existente.registrarActividad();
+            enviarMetadatos(existente);
+            return;
+        }
+        
+        List<ArchivoIndexado> archivos;
+        try {
+            archivos = buscarArchivos(StandardCharsets.UTF_8.decode(mensaje).toString());
+        } catch (IllegalArgumentException e) {
+            enviarError(clave, "ERROR: Patrón inválido");
+            return;
+        }
+        if (archivos.isEmpty()) {
+            enviarError(clave, "ERROR: Archivo no encontrado");
+            return;
+        }
+        if (archivos.size() > ServidorArchivos.MAX_ARCHIVOS_LOTE) {
+            enviarError(clave, "ERROR: El lote tiene más de " + ServidorArchivos.MAX_ARCHIVOS_LOTE + " archivos");
+            return;
+        }
+        
+        int tamanoFragmento = Math.max(ServidorArchivos.TAMANO_FRAGMENTO_MINIMO,
+                Math.min(fragmentoSolicitado, ServidorArchivos.TAMANO_FRAGMENTO_MAXIMO));
+        // El manifiesto ocupa a lo más un par de paquetes por archivo, y cada uno lleva su huella en otro
+        long paquetes = 3L * archivos.size();
+        for (ArchivoIndexado archivo : archivos) {
+            paquetes += archivo.getTotalPaquetes(tamanoFragmento);
+        }
+        if (paquetes > Integer.MAX_VALUE) {
+            enviarError(clave, "ERROR: Lote demasiado grande");
+            return;
+        }
+        if (!ServidorArchivos.COMPRESION) {
+            codecs = 0;
+        }
+        paquetesParidad = Math.min(paquetesParidad, Math.min(paquetesPorBloque, ServidorArchivos.MAX_PAQUETES_PARIDAD));
+        
+        LoteArchivos lote = new LoteArchivos(archivos, tamanoFragmento, codecs, cache, compresiones, huellas);
+        TransmisionArchivo transmision = new TransmisionArchivo(lote, tamanoFragmento, crearLimitador(tamanoFragmento), metricas);
+        if (paquetesParidad > 0) {
+            transmision.activarParidad(paquetesPorBloque, paquetesParidad);
+        }
+        SesionTransferenciaArchivo sesion = SesionTransferenciaArchivo.crear(clave, transmision, false, limites);
+        if (!sesionesActivas.registrar(clave, sesion)) {
+            sesion.close();
+            enviarError(clave, "ERROR: Servidor ocupado");
+            return;
+        }
+        metricas.registrarSesionIniciada();
+        Bitacora.registrar("El cliente " + clave + " pide un " + lote);
+    }
+    
+    /**
+     * Resuelve los nombres y patrones de una solicitud de lote con el índice. Los archivos
+     * quedan en el orden en que se pidieron, los de cada patrón ordenados por nombre, y un
+     * archivo pedido dos veces se envía una sola vez. Los nombres que no están en el índice se
+     * omiten; el cliente los echa de menos en el manifiesto.
+     *
+     * @param solicitud Nombres o patrones separados por saltos de línea.
+     * @return Los archivos encontrados.
+     * @throws IllegalArgumentException Si un patrón no es válido.
+     */
+    private List<ArchivoIndexado> buscarArchivos(String solicitud) {
+        Set<ArchivoIndexado> encontrados = new LinkedHashSet<>();
+        for (String linea : solicitud.split("\n")) {
+            String patron = linea.trim();
+            if (patron.isEmpty()) {
+                continue;
+            }
+            if (!esPatron(patron)) {
+                ArchivoIndexado archivo = indice.obtener(patron);
+                if (archivo != null) {
+                    encontrados.add(archivo);
+                }
+                continue;
+            }
+            PathMatcher comparador = FileSystems.getDefault().getPathMatcher("glob:" + patron);
+            for (ArchivoIndexado archivo : indice.getListado()) {
+                if (comparador.matches(Paths.get(archivo.getNombre()))) {
+                    encontrados.add(archivo);
+                }
+            }
+        }
+        return new ArrayList<>(encontrados);
+    }
+    
+    private static boolean esPatron(String nombre) {
+        for (int i = 0; i < nombre.length(); i++) {
+            char c = nombre.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Crea el limitador de la tasa de envío de una transmisión nueva.
+     */
+    private static LimitadorTasa crearLimitador(int tamanoFragmento) {
+        return new LimitadorTasa(ServidorArchivos.TASA_BYTES_SEGUNDO,
+                Math.max(ServidorArchivos.TAMANO_VENTANA,
+                        ServidorArchivos.VENTANA_MINIMA_PAQUETES * (tamanoFragmento + Protocolo.TAMANO_ENCABEZADO_DATOS)));
+    }
+    
+    /**
+     * Reenvía al cliente la información del archivo de su sesión. Si la sesión todavía no envió
+     * sus metadatos (la compresión o el lote no han terminado) no se envía nada: la sesión
+     * los enviará al terminar.
+     *
+     * @param sesion La sesión de transferencia.
+     * @throws IOException Si ocurre un error al enviar los metadatos.
+     */
+    private void enviarMetadatos(SesionTransferenciaArchivo sesion) throws IOException {
+        if (!sesion.isMetadatosEnviados()) {
+            return;
+        }
+        ByteBuffer metadataBuffer = ByteBuffer.allocate(Protocolo.TAMANO_ENCABEZADO + 70);
+        sesion.escribirMetadatos(metadataBuffer);
+        metadataBuffer.flip();
+        canal.send(metadataBuffer, sesion.getCliente());
+    }
+    
+    /**
+     * Responde a un cliente que tiene todos los paquetes de su rango pero no recibió el FIN con
+     * su huella. Si la huella todavía no se conoce no se responde: la transmisión envía el FIN
+     * en cuanto la tiene, y el cliente lo pide de nuevo si se pierde.
+     *
+     * @param sesion La sesión de transferencia.
      * @throws IOException Si ocurre un error al enviar el mensaje.
-     */    
-    private void enviarMensaje(String mensaje, InetAddress direccion, int puerto) throws IOException {
-        byte[] datos = mensaje.getBytes();
-        DatagramPacket paquete = new DatagramPacket(datos, datos.length, direccion, puerto);
-        socket.send(paquete);
+     */
+    private void enviarFin(SesionTransferenciaArchivo sesion) throws IOException {
+        ByteBuffer fin = ByteBuffer.allocate(Protocolo.TAMANO_ENCABEZADO + 12);
+        if (sesion.escribirFin(fin)) {
+            fin.flip();
+            canal.send(fin, sesion.getCliente());
+        }
     }
     
     /**
-     * Convierte un valor entero en un arreglo de bytes.
+     * Marca para reenvío los paquetes indicados en un acuse selectivo. El mensaje describe los
+     * paquetes faltantes como una lista de rangos relativos a un número base, por lo que un solo
+     * datagrama puede cubrir decenas de miles de paquetes perdidos.
      *
-     * @param valor El valor entero a convertir.
-     * @return El arreglo de bytes correspondiente al valor entero.
+     * @param mensaje Mensaje posicionado justo después del byte de tipo.
+     * @param sesion La sesión del cliente.
+     * @throws ProtocolException Si un rango está mal codificado; el resto del mensaje se descarta.
      */
-    private byte[] intToBytes(int valor) {
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(valor);
-        return buffer.array();
+    private void manejarSolicitudReenvio(ByteBuffer mensaje, SesionTransferenciaArchivo sesion) throws ProtocolException {
+        long solicitados = 0;
+        try {
+            // Formato: [base (4 bytes)][cantidad de rangos (2 bytes)]{[salto][longitud]}...
+            int inicioRango = mensaje.getInt();
+            int cantidadRangos = Short.toUnsignedInt(mensaje.getShort());
+            
+            for (int r = 0; r < cantidadRangos; r++) {
+                inicioRango += Protocolo.leerVarint(mensaje);
+                int finRango = inicioRango + Protocolo.leerVarint(mensaje);
+                solicitados += sesion.solicitarReenvio(inicioRango, finRango);
+                inicioRango = finRango;
+            }
+        } catch (BufferUnderflowException e) {
+            // Ignorar el resto de un mensaje truncado
+        } finally {
+            // Se cuentan los rangos ya marcados aunque el resto del mensaje se descarte
+            metricas.registrarAcuseSelectivo(solicitados);
+        }
+    }
+    
+    /**
+     * Envía una página del listado de archivos: los que caben en un mensaje a partir del
+     * índice pedido. El listado sale del índice, así que no toca el sistema de archivos.
+     *
+     * @param clave Dirección e id del cliente que pidió el listado.
+     * @param desde Índice del primer archivo a enviar.
+     * @throws IOException Si ocurre un error al enviar el mensaje.
+     */
+    private void enviarListado(ClaveSesion clave, int desde) throws IOException {
+        ArchivoIndexado[] listado = indice.getListado();
+        ByteBuffer buffer = ByteBuffer.allocate(Protocolo.TAMANO_MAXIMO_LISTADO);
+        Protocolo.escribirEncabezado(buffer, Protocolo.LISTADO, clave.getIdTransferencia());
+        buffer.putInt(listado.length);
+        buffer.putInt(desde);
+        int posicionCantidad = buffer.position();
+        buffer.putShort((short) 0);
+        
+        int cantidad = 0;
+        for (int i = Math.max(desde, 0); i < listado.length; i++) {
+            byte[] nombre = listado[i].getNombreBytes();
+            if (buffer.remaining() < Short.BYTES + nombre.length + 2 * Long.BYTES + Integer.BYTES) {
+                break;
+            }
+            buffer.putShort((short) nombre.length);
+            buffer.put(nombre);
+            buffer.putLong(listado[i].getTamano());
+            buffer.putLong(listado[i].getFechaModificacion());
+            cantidad++;
+        }
+        buffer.putShort(posicionCantidad, (short) cantidad);
+        Protocolo.sellar(crc, buffer);
+        buffer.flip();
+        canal.send(buffer, clave.getCliente());
+    }
+    
+    /**
+     * Método para enviar un mensaje de error a un cliente.
+     *
+     * @param clave Llave de la sesión a la que responde el error.
+     * @param mensaje El mensaje a enviar.
+     * @throws IOException Si ocurre un error al enviar el mensaje.
+     */
+    private void enviarError(ClaveSesion clave, String mensaje) throws IOException {
+        byte[] texto = mensaje.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(Protocolo.TAMANO_ENCABEZADO + texto.length + Integer.BYTES);
+        Protocolo.escribirEncabezado(buffer, Protocolo.ERROR, clave.getIdTransferencia());
+        buffer.put(texto);
+        Protocolo.sellar(crc, buffer);
+        buffer.flip();
+        canal.send(buffer, clave.getCliente());
+    }
+    
+    /**
+     * Llave de una transmisión que se puede compartir: la versión del archivo y todos los
+     * parámetros de la solicitud que cambian los paquetes que se envían.
+     */
+    static final class LlaveTransmision {
+        private final IdentidadArchivo identidad;
+        private final int codecs;
+        private final int tamanoFragmento;
+        private final int parte;
+        private final int partes;
+        private final int paquetesPorBloque;
+        private final int paquetesParidad;
+        
+        private LlaveTransmision(IdentidadArchivo identidad, int codecs, int tamanoFragmento, int parte, int partes,
+                int paquetesPorBloque, int paquetesParidad) {
+            this.identidad = identidad;
+            this.codecs = codecs;
+            this.tamanoFragmento = tamanoFragmento;
+            this.parte = parte;
+            this.partes = partes;
+            this.paquetesPorBloque = paquetesPorBloque;
+            this.paquetesParidad = paquetesParidad;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LlaveTransmision)) {
+                return false;
+            }
+            LlaveTransmision otra = (LlaveTransmision) obj;
+            return codecs == otra.codecs && tamanoFragmento == otra.tamanoFragmento && parte == otra.parte
+                    && partes == otra.partes && paquetesPorBloque == otra.paquetesPorBloque
+                    && paquetesParidad == otra.paquetesParidad && identidad.equals(otra.identidad);
+        }
+        
+        @Override
+        public int hashCode() {
+            int hash = identidad.hashCode();
+            hash = 31 * hash + codecs;
+            hash = 31 * hash + tamanoFragmento;
+            hash = 31 * hash + parte;
+            hash = 31 * hash + partes;
+            hash = 31 * hash + paquetesPorBloque;
+            return 31 * hash + paquetesParidad;
+        }
     }
 }
@@ -0,0 +1,299 @@
+package itson.servidorarchivos;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas del motor de transferencia, compartidas por todos los reactores. Los contadores son
+ * {@link LongAdder}, que reparten los incrementos entre celdas por hilo para que los reactores
+ * no compitan por la misma línea de caché, y las distribuciones (RTT, duración de las
+ * sesiones y equidad del reparto entre ellas) son {@link Histograma}s. Registrar un evento cuesta un incremento atómico, así que
+ * se puede hacer por paquete.
+ *
+ * Las métricas se consultan por JMX (ver {@link MetricasServidorMBean}) y en formato de texto
+ * de Prometheus con {@link ExportadorMetricas}. Las sesiones activas, las expulsadas y los
+ * accesos a la caché se leen de los registros y de la caché al consultarlas.
+ * @author asielapodaca
+ */
+public class MetricasServidor implements MetricasServidorMBean {
+    private final LongAdder paquetesEnviados = new LongAdder();
+    private final LongAdder paquetesReenviados = new LongAdder();
+    private final LongAdder paquetesParidad = new LongAdder();
+    private final LongAdder bytesEnviados = new LongAdder();
+    private final LongAdder acusesSelectivos = new LongAdder();
+    private final LongAdder paquetesSolicitados = new LongAdder();
+    private final LongAdder sesionesIniciadas = new LongAdder();
+    private final LongAdder sesionesCompletadas = new LongAdder();
+    private final LongAdder pausasTasaGlobal = new LongAdder();
+    private final Histograma rtt = new Histograma();              // En microsegundos
+    private final Histograma duracionSesiones = new Histograma(); // En milisegundos, de las completadas
+    // Las mismas duraciones separadas por el tamaño del archivo, para ver si los pequeños esperan a los grandes
+    private final Histograma duracionPequenas = new Histograma();
+    private final Histograma duracionGrandes = new Histograma();
+    private final Histograma equidad = new Histograma();          // Índice de Jain en milésimas
+    private final List<RegistroSesiones> registros = new CopyOnWriteArrayList<>();
+    private final CacheBloques cache;
+    private volatile long bytesPorSegundo;
+    private long bytesMuestra;         // Bytes enviados en la última muestra de la tasa
+    private long tiempoMuestra;
+    
+    /**
+     * @param cache Caché de bloques compartida, de la que se reportan los aciertos.
+     */
+    public MetricasServidor(CacheBloques cache) {
+        this.cache = cache;
+        this.tiempoMuestra = System.nanoTime();
+    }
+    
+    /**
+     * Agrega el registro de sesiones de un reactor, del que se cuentan las sesiones activas y
+     * las expulsadas.
+     */
+    public void agregarRegistro(RegistroSesiones registro) {
+        registros.add(registro);
+    }
+    
+    /**
+     * Registra un paquete de datos enviado a un cliente; un paquete difundido cuenta una vez
+     * por cada envío, sea a un cliente o al grupo multicast.
+     *
+     * @param bytes Bytes del datagrama.
+     * @param reenvio true si el paquete es una retransmisión.
+     */
+    public void registrarPaquete(int bytes, boolean reenvio) {
+        paquetesEnviados.increment();
+        if (reenvio) {
+            paquetesReenviados.increment();
+        }
+        bytesEnviados.add(bytes);
+    }
+    
+    /**
+     * Registra un paquete de paridad enviado.
+     *
+     * @param bytes Bytes del datagrama.
+     */
+    public void registrarParidad(int bytes) {
+        paquetesParidad.increment();
+        bytesEnviados.add(bytes);
+    }
+    
+    /**
+     * Registra un acuse selectivo de un cliente.
+     *
+     * @param paquetes Paquetes que el cliente pidió de nuevo.
+     */
+    public void registrarAcuseSelectivo(long paquetes) {
+        acusesSelectivos.increment();
+        paquetesSolicitados.add(paquetes);
+    }
+    
+    public void registrarRtt(long microsegundos) {
+        rtt.registrar(microsegundos);
+    }
+    
+    public void registrarSesionIniciada() {
+        sesionesIniciadas.increment();
+    }
+    
+    /**
+     * Registra una sesión que el cliente confirmó como completa.
+     *
+     * @param milisegundos Tiempo desde la solicitud hasta la confirmación.
+     * @param bytes Tamaño sin comprimir de lo que pidió el cliente; separa las sesiones de
+     *        archivos pequeños, hasta {@code ServidorArchivos.UMBRAL_ARCHIVO_PEQUENO}, de las demás.
+     */
+    public void registrarSesionCompletada(long milisegundos, long bytes) {
+        sesionesCompletadas.increment();
+        duracionSesiones.registrar(milisegundos);
+        if (bytes <= ServidorArchivos.UMBRAL_ARCHIVO_PEQUENO) {
+            duracionPequenas.registrar(milisegundos);
+        } else {
+            duracionGrandes.registrar(milisegundos);
+        }
+    }
+    
+    /**
+     * Registra una muestra de la equidad con que un reactor repartió el envío entre sus
+     * sesiones, según el índice de Jain: 1 si todas recibieron lo mismo y 1/n si una sola
+     * recibió todo.
+     *
+     * @param indice Índice entre 0 y 1.
+     */
+    public void registrarEquidad(double indice) {
+        equidad.registrar(Math.round(indice * 1000));
+    }
+    
+    /**
+     * Registra una ronda del planificador que se detuvo por el límite global de tasa.
+     */
+    public void registrarPausaTasaGlobal() {
+        pausasTasaGlobal.increment();
+    }
+    
+    /**
+     * Actualiza la tasa de envío con los bytes enviados desde la muestra anterior. La llama
+     * periódicamente un solo reactor.
+     *
+     * @param ahora Tiempo actual según {@link System#nanoTime()}.
+     */
+    public void muestrear(long ahora) {
+        long bytes = bytesEnviados.sum();
+        long transcurrido = ahora - tiempoMuestra;
+        if (transcurrido > 0) {
+            bytesPorSegundo = (bytes - bytesMuestra) * TimeUnit.SECONDS.toNanos(1) / transcurrido;
+        }
+        bytesMuestra = bytes;
+        tiempoMuestra = ahora;
+    }
+    
+    public Histograma getRtt() {
+        return rtt;
+    }
+    
+    public Histograma getDuracionSesiones() {
+        return duracionSesiones;
+    }
+    
+    public Histograma getDuracionPequenas() {
+        return duracionPequenas;
+    }
+    
+    public Histograma getDuracionGrandes() {
+        return duracionGrandes;
+    }
+    
+    public Histograma getEquidad() {
+        return equidad;
+    }
+    
+    @Override
+    public long getPaquetesEnviados() {
+        return paquetesEnviados.sum();
+    }
+    
+    @Override
+    public long getPaquetesReenviados() {
+        return paquetesReenviados.sum();
+    }
+    
+    @Override
+    public long getPaquetesParidad() {
+        return paquetesParidad.sum();
+    }
+    
+    @Override
+    public long getBytesEnviados() {
+        return bytesEnviados.sum();
+    }
+    
+    @Override
+    public long getBytesPorSegundo() {
+        return bytesPorSegundo;
+    }
+    
+    @Override
+    public long getAcusesSelectivos() {
+        return acusesSelectivos.sum();
+    }
+    
+    @Override
+    public long getPaquetesSolicitados() {
+        return paquetesSolicitados.sum();
+    }
+    
+    @Override
+    public long getSesionesIniciadas() {
+        return sesionesIniciadas.sum();
+    }
+    
+    @Override
+    public long getSesionesCompletadas() {
+        return sesionesCompletadas.sum();
+    }
+    
+    @Override
+    public long getPausasTasaGlobal() {
+        return pausasTasaGlobal.sum();
+    }
+    
+    @Override
+    public long getSesionesExpulsadas() {
+        long expulsadas = 0;
+        for (RegistroSesiones registro : registros) {
+            expulsadas += registro.getSesionesExpulsadas();
+        }
+        return expulsadas;
+    }
+    
+    @Override
+    public int getSesionesActivas() {
+        int activas = 0;
+        for (RegistroSesiones registro : registros) {
+            activas += registro.getSesionesVivas();
+        }
+        return activas;
+    }
+    
+    @Override
+    public long getRttP50Microsegundos() {
+        return rtt.percentil(0.5);
+    }
+    
+    @Override
+    public long getRttP99Microsegundos() {
+        return rtt.percentil(0.99);
+    }
+    
+    @Override
+    public long getDuracionSesionP50Milisegundos() {
+        return duracionSesiones.percentil(0.5);
+    }
+    
+    @Override
+    public long getDuracionSesionP99Milisegundos() {
+        return duracionSesiones.percentil(0.99);
+    }
+    
+    @Override
+    public long getDuracionPequenasP50Milisegundos() {
+        return duracionPequenas.percentil(0.5);
+    }
+    
+    @Override
+    public long getDuracionPequenasP99Milisegundos() {
+        return duracionPequenas.percentil(0.99);
+    }
+    
+    @Override
+    public long getDuracionGrandesP50Milisegundos() {
+        return duracionGrandes.percentil(0.5);
+    }
+    
+    @Override
+    public double getEquidadP50() {
+        return equidad.percentil(0.5) / 1000.0;
+    }
+    
+    @Override
+    public double getEquidadP10() {
+        return equidad.percentil(0.1) / 1000.0;
+    }
+    
+    @Override
+    public long getAciertosCache() {
+        return cache.getAciertos();
+    }
+    
+    @Override
+    public long getFallosCache() {
+        return cache.getFallos();
+    }
+    
+    @Override
+    public double getTasaAciertosCache() {
+        return cache.getTasaAciertos();
+    }
+}
@@ -0,0 +1,62 @@
+package itson.servidorarchivos;
+
+/**
+ * Vista JMX de las métricas del servidor; la registra {@link ServidorArchivos} como
+ * {@code itson.servidorarchivos:type=Metricas} y se puede consultar con JConsole o VisualVM.
+ * @author asielapodaca
+ */
+public interface MetricasServidorMBean {
+    long getPaquetesEnviados();
+    
+    long getPaquetesReenviados();
+    
+    long getPaquetesParidad();
+    
+    long getBytesEnviados();
+    
+    long getBytesPorSegundo();
+    
+    long getAcusesSelectivos();
+    
+    long getPaquetesSolicitados();
+    
+    long getSesionesIniciadas();
+    
+    long getSesionesCompletadas();
+    
+    long getSesionesExpulsadas();
+    
+    long getPausasTasaGlobal();
+    
+    int getSesionesActivas();
+    
+    long getRttP50Microsegundos();
+    
+    long getRttP99Microsegundos();
+    
+    long getDuracionSesionP50Milisegundos();
+    
+    long getDuracionSesionP99Milisegundos();
+    
+    long getDuracionPequenasP50Milisegundos();
+    
+    long getDuracionPequenasP99Milisegundos();
+    
+    long getDuracionGrandesP50Milisegundos();
+    
+    /**
+     * @return La mediana del índice de Jain de las muestras de equidad entre sesiones.
+     */
+    double getEquidadP50();
+    
+    /**
+     * @return El índice de Jain que solo el 10% de las muestras no alcanza.
+     */
+    double getEquidadP10();
+    
+    long getAciertosCache();
+    
+    long getFallosCache();
+    
+    double getTasaAciertosCache();
+}
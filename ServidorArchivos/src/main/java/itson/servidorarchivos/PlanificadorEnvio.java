@@ -0,0 +1,201 @@
+package itson.servidorarchivos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Planificador del envío de un reactor: decide en qué orden y cuántos bytes envía cada
+ * transmisión, con un reparto por déficit (deficit round robin) entre las sesiones. En cada
+ * ronda cada sesión lista aporta {@link ServidorArchivos#CUANTO_PLANIFICADOR} bytes al déficit
+ * de su transmisión, y cada transmisión envía mientras su déficit sea positivo. Así el reparto
+ * es por bytes y no por paquetes: una descarga con fragmentos de 64 KB no recibe más que una
+ * con fragmentos de 1 KB, y un archivo pequeño sale en sus primeras rondas aunque haya
+ * descargas grandes. Una difusión recibe un cuanto por cada sesión que atiende.
+ *
+ * Las transmisiones con retransmisiones pendientes tienen su turno antes que las demás en cada
+ * ronda, porque sus clientes están detenidos esperando esos paquetes; dentro de la transmisión
+ * también salen antes que los paquetes nuevos. Una transmisión que se queda sin nada que enviar
+ * (ventana llena, tasa agotada o archivo terminado) pierde el déficit que le sobró.
+ *
+ * Los límites de {@link LimitesEnvio} se cobran después de cada turno con lo que realmente
+ * salió: el global detiene la ronda hasta que se recarga y el de un cliente deja a sus sesiones
+ * sin aportar cuanto. En una difusión el límite de un cliente solo frena lo que aporta él.
+ * @author asielapodaca
+ */
+public class PlanificadorEnvio {
+    private final RegistroSesiones sesiones;
+    private final LimitadorTasa limitadorGlobal; // null si no hay límite global
+    private final MetricasServidor metricas;
+    // Transmisiones con turno en la ronda actual; se reutilizan para no crear listas por ronda
+    private final List<TransmisionArchivo> prioritarias = new ArrayList<>();
+    private final List<TransmisionArchivo> normales = new ArrayList<>();
+    private long ronda;
+    
+    /**
+     * @param sesiones Registro de las sesiones del reactor.
+     * @param limites Límites de tasa compartidos por los reactores.
+     * @param metricas Métricas del servidor, donde se registra la equidad del reparto.
+     */
+    public PlanificadorEnvio(RegistroSesiones sesiones, LimitesEnvio limites, MetricasServidor metricas) {
+        this.sesiones = sesiones;
+        this.limitadorGlobal = limites.getGlobal();
+        this.metricas = metricas;
+    }
+    
+    /**
+     * Ejecuta una ronda: envía los metadatos pendientes, da un cuanto por cada sesión lista y
+     * un turno a cada transmisión, primero a las que tienen retransmisiones. Las sesiones
+     * abortadas se expulsan.
+     *
+     * @param canal Canal no bloqueante por el que se envían los paquetes.
+     * @param buffer Buffer directo de envío del reactor.
+     * @return El momento del siguiente evento pendiente, o {@link Long#MIN_VALUE} si el
+     *         canal se llenó y hay que esperar a que vuelva a ser escribible.
+     */
+    public long avanzar(DatagramChannel canal, ByteBuffer buffer) {
+        long ahora = System.nanoTime();
+        long proximoEvento = Long.MAX_VALUE;
+        ronda++;
+        prioritarias.clear();
+        normales.clear();
+        
+        for (SesionTransferenciaArchivo sesion : sesiones.getSesiones()) {
+            try {
+                if (!sesion.isMetadatosEnviados() && sesion.getProximoEvento() <= ahora
+                        && !sesion.enviarMetadatos(canal, buffer, ahora)) {
+                    return Long.MIN_VALUE;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Un error al preparar una transmisión o al enviar sus metadatos (por ejemplo, un
+                // destino inalcanzable) solo termina sus sesiones
+                Bitacora.error(e);
+                sesion.getTransmision().fallar();
+            }
+            if (sesion.isAbortada()) {
+                if (sesion.getTransmision().isFallida()) {
+                    try {
+                        sesion.avisarFallo(canal, buffer);
+                    } catch (IOException e) {
+                        Bitacora.error(e);
+                    }
+                    Bitacora.registrar("Falló el envío de " + sesion.getTransmision().getDescripcion() + " al cliente "
+                            + sesion.getClave() + ". Transferencia abortada.");
+                } else {
+                    Bitacora.registrar("El cliente " + sesion.getClave() + " dejó de responder. Transferencia abortada.");
+                }
+                sesiones.expulsar(sesion.getClave());
+                continue;
+            }
+            if (!sesion.isMetadatosEnviados()) {
+                proximoEvento = Math.min(proximoEvento, sesion.getProximoEvento());
+                continue;
+            }
+            TransmisionArchivo transmision = sesion.getTransmision();
+            if (transmision.getProximoEvento() > ahora) {
+                proximoEvento = Math.min(proximoEvento, transmision.getProximoEvento());
+                continue;
+            }
+            long esperaCliente = sesion.getEsperaCliente();
+            if (esperaCliente > 0) {
+                proximoEvento = Math.min(proximoEvento, ahora + esperaCliente);
+                continue;
+            }
+            if (transmision.anotarSesionLista(ronda)) {
+                (transmision.hayReenvios() ? prioritarias : normales).add(transmision);
+            }
+        }
+        
+        // El orden de las sesiones en el registro es fijo: cada ronda empieza en otra posición
+        // para que, si el canal o el límite global la cortan, no se queden sin turno las mismas
+        long siguiente = turnos(prioritarias, canal, buffer, ahora);
+        if (siguiente != Long.MIN_VALUE) {
+            proximoEvento = Math.min(proximoEvento, siguiente);
+            siguiente = turnos(normales, canal, buffer, ahora);
+        }
+        return siguiente == Long.MIN_VALUE ? Long.MIN_VALUE : Math.min(proximoEvento, siguiente);
+    }
+    
+    /**
+     * Da un turno a cada transmisión de la lista, empezando por una posición distinta en cada ronda.
+     *
+     * @return El siguiente evento de las transmisiones, o {@link Long#MIN_VALUE} si el canal se llenó.
+     */
+    private long turnos(List<TransmisionArchivo> transmisiones, DatagramChannel canal, ByteBuffer buffer,
+            long ahora) {
+        long proximoEvento = Long.MAX_VALUE;
+        int cantidad = transmisiones.size();
+        int inicio = cantidad > 0 ? (int) (ronda % cantidad) : 0;
+        for (int i = 0; i < cantidad; i++) {
+            if (limitadorGlobal != null) {
+                long espera = limitadorGlobal.getEspera();
+                if (espera > 0) {
+                    // Las que no tuvieron turno conservan su déficit para la siguiente ronda
+                    metricas.registrarPausaTasaGlobal();
+                    return Math.min(proximoEvento, ahora + espera);
+                }
+            }
+            TransmisionArchivo transmision = transmisiones.get((inicio + i) % cantidad);
+            transmision.sumarDeficit((long) ServidorArchivos.CUANTO_PLANIFICADOR * transmision.getSesionesListas());
+            if (transmision.getDeficit() <= 0) {
+                // Se excedió en turnos anteriores; espera las rondas necesarias para pagarlo
+                proximoEvento = ahora;
+                continue;
+            }
+            
+            long antes = transmision.getBytesEnviados();
+            boolean escribible;
+            try {
+                escribible = transmision.enviarPendientes(canal, buffer, transmision.getDeficit(), ahora);
+            } catch (IOException | RuntimeException e) {
+                // Sus sesiones se expulsan en la siguiente ronda; las demás transmisiones siguen
+                Bitacora.error(e);
+                transmision.fallar();
+                escribible = true;
+                proximoEvento = ahora;
+            }
+            long enviados = transmision.getBytesEnviados() - antes;
+            transmision.sumarDeficit(-enviados);
+            if (limitadorGlobal != null) {
+                limitadorGlobal.consumir(enviados);
+            }
+            if (!escribible) {
+                return Long.MIN_VALUE;
+            }
+            if (transmision.getProximoEvento() > ahora && transmision.getDeficit() > 0) {
+                // Sin nada más que enviar por ahora: el déficit no se acumula
+                transmision.sumarDeficit(-transmision.getDeficit());
+            }
+            proximoEvento = Math.min(proximoEvento, transmision.getProximoEvento());
+        }
+        return proximoEvento;
+    }
+    
+    /**
+     * Registra en las métricas la equidad del reparto desde la muestra anterior: el índice de
+     * Jain de los bytes que recibió cada sesión que ya recibía paquetes en la muestra anterior
+     * y todavía tiene algo por recibir. Se llama periódicamente desde el reactor.
+     */
+    public void muestrearEquidad() {
+        double suma = 0;
+        double sumaCuadrados = 0;
+        int cantidad = 0;
+        for (SesionTransferenciaArchivo sesion : sesiones.getSesiones()) {
+            if (!sesion.isMetadatosEnviados() || sesion.getTransmision().isEnviada()) {
+                continue;
+            }
+            long bytes = sesion.muestrearBytes();
+            if (bytes >= 0) {
+                suma += bytes;
+                sumaCuadrados += (double) bytes * bytes;
+                cantidad++;
+            }
+        }
+        // Con una sola sesión el reparto siempre es justo, y sin bytes no hubo reparto
+        if (cantidad > 1 && sumaCuadrados > 0) {
+            metricas.registrarEquidad(suma * suma / (cantidad * sumaCuadrados));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package itson.servidorarchivos;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Constantes y utilidades del protocolo binario de control que el cliente envía
+ * al servidor. Todo mensaje de control comienza con un byte de tipo menor a 0x20,
+ * valor que nunca aparece al inicio de un nombre de archivo, por lo que ambos tipos
+ * de solicitud pueden convivir en el mismo puerto.
+ *
+ * Los mensajes del servidor al cliente comienzan con un encabezado versionado
+ * [versión][tipo][id de transferencia (4 bytes)]. Los tamaños y posiciones del archivo
+ * viajan en 64 bits, y un cliente que recibe una versión que no conoce puede detectarlo
+ * en el primer byte en lugar de interpretar mal los datos.
+ * @author asielapodaca
+ */
+public final class Protocolo {
+    // Versión del protocolo; el servidor rechaza con un error las solicitudes de otra versión
+    public static final byte VERSION = 12;
+    
+    // Todos los mensajes llevan después del tipo el identificador de transferencia (4 bytes)
+    // elegido por el cliente, que junto con su dirección y puerto identifica la sesión.
+    // Todos terminan con el CRC32C del resto del mensaje (4 bytes), ver sellar; el servidor
+    // descarta los mensajes corruptos en lugar de interpretarlos.
+    // [tipo][id][siguiente paquete (4 bytes)][eco de la marca de tiempo (4 bytes)]
+    // El eco es la marca del paquete de datos que provocó el acuse, o 0
+    public static final byte ACUSE = 0x01;
+    // [tipo][id][base (4 bytes)][cantidad de rangos (2 bytes)]{[salto (varint)][longitud (varint)]}...
+    public static final byte ACUSE_SELECTIVO = 0x02;
+    // [tipo][id]
+    public static final byte COMPLETADO = 0x03;
+    // [tipo][id][versión][tamaño de fragmento deseado (4 bytes)][parte (2 bytes)][partes (2 bytes)]
+    // [versión del archivo a reanudar (8 bytes)][paquetes por bloque (1 byte)][paquetes de paridad (1 byte)]
+    // [códecs aceptados (1 byte)][opciones (1 byte)][nombre del archivo]
+    // Con partes > 1 la sesión solo envía la parte indicada del archivo (descarga en paralelo).
+    // Si la versión a reanudar coincide con la del archivo, la sesión solo envía "FIN" y espera
+    // el acuse selectivo con los paquetes que le faltan al cliente. Con paquetes por bloque y de
+    // paridad distintos de 0 se activa la corrección de errores hacia adelante. Los códecs son
+    // una máscara de CODEC_*; el servidor elige uno de ellos o envía el archivo sin comprimir.
+    // Las opciones son una máscara de OPCION_*.
+    public static final byte SOLICITUD = 0x04;
+    // [tipo][id][versión][primer archivo (4 bytes)]
+    // Pide el listado de los archivos que ofrece el servidor desde el índice indicado; no crea
+    // sesión y el servidor responde con LISTADO
+    public static final byte LISTA = 0x05;
+    // [tipo][id][versión][tamaño de fragmento deseado (4 bytes)][paquetes por bloque (1 byte)]
+    // [paquetes de paridad (1 byte)][códecs aceptados (1 byte)][nombres o patrones separados por '\n']
+    // Pide varios archivos en una sola sesión. Un patrón con *, ?, [ o { se compara con los
+    // nombres del índice con la sintaxis glob. El servidor responde con METADATOS y envía los
+    // archivos seguidos en un solo rango de paquetes, que empieza con el manifiesto del lote:
+    // [cantidad de archivos (4 bytes)]{[longitud del nombre (2 bytes)][nombre en UTF-8]
+    // [primer paquete (4 bytes)][tamaño enviado (8 bytes)][códec (1 byte)][tamaño sin comprimir (8 bytes)]}...
+    // En los METADATOS de un lote el tamaño y la huella son los del manifiesto, la versión es 0
+    // y el tamaño sin comprimir es la suma de los archivos. Cada archivo empieza en un paquete
+    // nuevo; la posición de sus paquetes de DATOS es la del lote, pero su CRC y su aporte a la
+    // huella usan la posición y el número del paquete dentro del archivo. Después de sus datos
+    // cada archivo tiene un paquete final con su huella (8 bytes), cuyo CRC usa la posición
+    // siguiente a sus datos y que no forma parte de ninguna huella; un archivo vacío solo tiene
+    // ese paquete
+    public static final byte SOLICITUD_LOTE = 0x06;
+    // [tipo][id]
+    // El cliente ya tiene todos los paquetes de su rango pero no su huella, porque el FIN se
+    // perdió o todavía no llega; el servidor responde con FIN si ya conoce la huella del rango
+    public static final byte PEDIR_FIN = 0x07;
+    
+    // Mensajes del servidor al cliente, después del encabezado [versión][tipo][id]. Todos salvo
+    // DATOS y PARIDAD, que llevan el CRC de sus datos en el encabezado, terminan con el CRC32C
+    // del mensaje (4 bytes), igual que los mensajes de control.
+    // [total de paquetes (4 bytes)][tamaño del archivo (8 bytes)][tamaño de fragmento (4 bytes)]
+    // [primer paquete (4 bytes)][fin del rango (4 bytes)][versión del archivo (8 bytes)]
+    // [paquetes por bloque (1 byte)][paquetes de paridad (1 byte)], ambos 0 sin paridad
+    // [huella del rango (8 bytes)], ver terminoHuella; 0 si el servidor todavía no la conoce,
+    // y entonces llega en el FIN
+    // [códec (1 byte)][tamaño sin comprimir (8 bytes)]
+    // Con un códec distinto de CODEC_NINGUNO los paquetes, el tamaño, la versión y la huella
+    // son los del archivo comprimido, que el cliente descomprime al terminar
+    // [id del grupo multicast (4 bytes)][puerto (2 bytes)][dirección IPv4 (4 bytes)]
+    // Con un id distinto de 0 los paquetes DATOS, PARIDAD y FIN pueden llegar también al grupo
+    // multicast con ese id en lugar del de la transferencia
+    public static final byte METADATOS = 0x10;
+    // [posición en el archivo (8 bytes)][marca de tiempo en microsegundos (4 bytes)][CRC32C (4 bytes)][datos]
+    // El CRC cubre la posición y los datos, no la marca de tiempo, que cambia en cada reenvío
+    public static final byte DATOS = 0x11;
+    // [huella del rango (8 bytes)]: se enviaron todos los paquetes del rango. La huella es la
+    // suma de los aportes de los paquetes del rango, que el servidor acumula mientras los envía
+    // por primera vez; en un lote es 0 y cada archivo lleva la suya en su paquete final
+    public static final byte FIN = 0x12;
+    // [mensaje de error en UTF-8]
+    public static final byte ERROR = 0x13;
+    // [bloque (4 bytes)][grupo (1 byte)][CRC32C (4 bytes)][XOR de los paquetes del grupo]
+    // El CRC cubre (bloque << 8 | grupo) como posición y la paridad
+    // El grupo i de un bloque son sus paquetes cuyo índice dentro del bloque es congruente con i
+    // módulo la cantidad de paquetes de paridad
+    public static final byte PARIDAD = 0x14;
+    // [total de archivos (4 bytes)][primer archivo (4 bytes)][cantidad (2 bytes)]
+    // {[longitud del nombre (2 bytes)][nombre en UTF-8][tamaño (8 bytes)][fecha de modificación (8 bytes)]}...
+    // Los archivos van ordenados por nombre; los que no caben en el mensaje se piden con otra
+    // LISTA desde el primer archivo que faltó
+    public static final byte LISTADO = 0x15;
+    
+    // Códecs con que se puede enviar un archivo
+    public static final byte CODEC_NINGUNO = 0;
+    public static final byte CODEC_DEFLATE = 1; // Archivo completo en formato zlib (RFC 1950)
+    
+    // Opciones de la solicitud
+    public static final byte OPCION_MULTICAST = 1; // El cliente puede unirse a un grupo multicast
+    
+    // Bytes del encabezado de los mensajes del servidor: [versión][tipo][id]
+    public static final int TAMANO_ENCABEZADO = 6;
+    // Posición del id de transferencia en el encabezado
+    public static final int POSICION_ID = 2;
+    // Bytes del encabezado de los paquetes de datos: [versión][tipo][id][posición][marca de tiempo][CRC]
+    public static final int TAMANO_ENCABEZADO_DATOS = TAMANO_ENCABEZADO + 16;
+    // Bytes del encabezado de los paquetes de paridad: [versión][tipo][id][bloque][grupo][CRC]
+    public static final int TAMANO_ENCABEZADO_PARIDAD = TAMANO_ENCABEZADO + 9;
+    // Bytes máximos de un mensaje LISTADO, para que no se fragmente con la MTU de Ethernet
+    public static final int TAMANO_MAXIMO_LISTADO = 1400;
+    
+    private Protocolo() {
+    }
+    
+    /**
+     * Indica si un datagrama recibido es un mensaje de control binario.
+     *
+     * @param mensaje Contenido del datagrama; no se modifica su posición.
+     * @return true si el primer byte corresponde a un tipo de mensaje de control.
+     */
+    public static boolean esMensajeControl(ByteBuffer mensaje) {
+        if (!mensaje.hasRemaining()) {
+            return false;
+        }
+        byte tipo = mensaje.get(mensaje.position());
+        return tipo >= 0 && tipo < 0x20;
+    }
+    
+    /**
+     * Escribe el encabezado de un mensaje del servidor al cliente.
+     *
+     * @param buffer Buffer donde se escribe el encabezado.
+     * @param tipo Tipo del mensaje.
+     * @param idTransferencia Identificador de la transferencia.
+     */
+    public static void escribirEncabezado(ByteBuffer buffer, byte tipo, int idTransferencia) {
+        buffer.put(VERSION);
+        buffer.put(tipo);
+        buffer.putInt(idTransferencia);
+    }
+    
+    /**
+     * Agrega al final del mensaje el CRC32C de todo lo escrito en él, desde la posición 0.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param mensaje Mensaje posicionado al final de su contenido.
+     */
+    public static void sellar(CRC32C crc, ByteBuffer mensaje) {
+        crc.reset();
+        crc.update(mensaje.duplicate().flip());
+        mensaje.putInt((int) crc.getValue());
+    }
+    
+    /**
+     * Recalcula el CRC32C con que termina un mensaje ya sellado, por ejemplo después de
+     * cambiar su id de transferencia.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param mensaje Mensaje sellado entre la posición 0 y su límite; no se modifica su posición.
+     */
+    public static void resellar(CRC32C crc, ByteBuffer mensaje) {
+        int fin = mensaje.limit() - Integer.BYTES;
+        crc.reset();
+        crc.update(mensaje.duplicate().position(0).limit(fin));
+        mensaje.putInt(fin, (int) crc.getValue());
+    }
+    
+    /**
+     * Verifica el CRC32C con que termina un mensaje y, si es correcto, lo excluye del límite
+     * del buffer para que no se lea como contenido.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param mensaje Mensaje completo entre la posición 0 y su límite; no se modifica su posición.
+     * @return false si el mensaje está corrupto o es demasiado corto.
+     */
+    public static boolean verificarSello(CRC32C crc, ByteBuffer mensaje) {
+        int fin = mensaje.limit() - Integer.BYTES;
+        if (fin < 0) {
+            return false;
+        }
+        crc.reset();
+        crc.update(mensaje.duplicate().position(0).limit(fin));
+        if ((int) crc.getValue() != mensaje.getInt(fin)) {
+            return false;
+        }
+        mensaje.limit(fin);
+        return true;
+    }
+    
+    /**
+     * Calcula el CRC32C de un paquete: los 8 bytes de su posición seguidos de sus datos.
+     *
+     * @param crc Calculador reutilizable; se reinicia antes de usarlo.
+     * @param posicion Posición del paquete en el archivo.
+     * @param datos Buffer con los datos del paquete entre {@code desde} y su límite; no se
+     *              modifica su posición.
+     * @param desde Posición absoluta donde empiezan los datos.
+     * @return El CRC del paquete.
+     */
+    public static int calcularCrc(CRC32C crc, long posicion, ByteBuffer datos, int desde) {
+        crc.reset();
+        for (int desplazamiento = 56; desplazamiento >= 0; desplazamiento -= 8) {
+            crc.update((int) (posicion >>> desplazamiento));
+        }
+        int posicionOriginal = datos.position();
+        datos.position(desde);
+        crc.update(datos);
+        datos.position(posicionOriginal);
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Aporte de un paquete a la huella del archivo. La huella es la suma módulo 2^64 de los
+     * aportes de todos sus paquetes, así que no depende del orden en que lleguen: el cliente la
+     * acumula mientras recibe, aunque los paquetes lleguen desordenados, por varias partes o
+     * reconstruidos con paridad, y la compara al final sin volver a leer el archivo. No es una
+     * huella criptográfica; detecta corrupción, no manipulación.
+     *
+     * @param idPaquete Número del paquete.
+     * @param crc CRC32C del paquete.
+     * @return El aporte del paquete.
+     */
+    public static long terminoHuella(int idPaquete, int crc) {
+        long h = ((long) idPaquete << 32 | Integer.toUnsignedLong(crc)) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        h ^= h >>> 32;
+        return h;
+    }
+    
+    /**
+     * Lee un entero sin signo codificado en base 128 (7 bits por byte, el bit alto indica continuación).
+     *
+     * @param buffer Buffer posicionado al inicio del entero.
+     * @return El valor leído.
+     * @throws ProtocolException Si el entero no cabe en 32 bits o no termina en el quinto byte.
+     */
+    public static int leerVarint(ByteBuffer buffer) throws ProtocolException {
+        int valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 35; desplazamiento += 7) {
+            byte b = buffer.get();
+            if (desplazamiento == 28 && (b & 0x70) != 0) {
+                throw new ProtocolException("Entero variable de más de 32 bits");
+            }
+            valor |= (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) {
+                return valor;
+            }
+        }
+        throw new ProtocolException("Entero variable sin terminar");
+    }
+}
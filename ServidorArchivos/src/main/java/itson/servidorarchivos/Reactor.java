@@ -0,0 +1,162 @@
+package itson.servidorarchivos;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bucle de eventos del servidor. Un solo hilo atiende un canal UDP no bloqueante registrado
+ * en un {@link Selector}: cuando llegan datagramas los entrega al {@link ManejadorCliente} y,
+ * entre lecturas, el {@link PlanificadorEnvio} reparte el envío entre las sesiones activas que
+ * tengan paquetes listos. Las esperas de cada sesión (fichas de la tasa de envío o acuses del
+ * cliente) se traducen en el tiempo máximo de espera del selector, por lo que ningún hilo se
+ * duerme por sesión.
+ *
+ * El servidor ejecuta un reactor por núcleo, cada uno con su propio canal enlazado al mismo
+ * puerto. El sistema operativo reparte los clientes entre los canales según su dirección y
+ * puerto, así que cada reactor tiene su propio registro y no comparte sesiones con los demás.
+ * La excepción son las difusiones multicast, que atiende un solo reactor: los demás le dejan en
+ * su {@link DifusionesMulticast.Buzon} los mensajes de esos clientes.
+ * @author asielapodaca
+ */
+public class Reactor implements Runnable {
+    // Cada cuánto se revisan las sesiones inactivas
+    private static final long PERIODO_EXPULSION = TimeUnit.SECONDS.toNanos(1);
+    // Cada cuántas revisiones se reporta la actividad de la caché
+    private static final int REVISIONES_POR_REPORTE = 30;
+    
+    private final int numero;
+    private final DatagramChannel canal;
+    private final RegistroSesiones sesiones;
+    private final CacheBloques cache;
+    private final MetricasServidor metricas;
+    private final ManejadorCliente manejador;
+    private final PlanificadorEnvio planificador;
+    private final DifusionesMulticast.Buzon buzon = new DifusionesMulticast.Buzon();
+    private int revisiones;
+    private long accesosReportados;
+    
+    /**
+     * @param numero Número del reactor; el reactor 0 reporta la actividad de la caché compartida
+     *        y muestrea la tasa de envío.
+     * @param canal Canal UDP ya enlazado al puerto del servidor.
+     * @param indice Índice de los archivos que ofrece el servidor.
+     * @param sesiones Registro de las sesiones que atiende este reactor.
+     * @param cache Caché de bloques compartida por las sesiones.
+     * @param huellas Huellas de los archivos compartidas por las sesiones.
+     * @param compresiones Variantes comprimidas de los archivos compartidas por las sesiones.
+     * @param metricas Métricas del servidor compartidas por los reactores.
+     * @param limites Límites de tasa global y por cliente compartidos por los reactores.
+     * @param multicast Difusiones multicast compartidas por los reactores, o null sin grupo multicast.
+     */
+    public Reactor(int numero, DatagramChannel canal, IndiceArchivos indice, RegistroSesiones sesiones, CacheBloques cache,
+            HuellasArchivo huellas, CompresionArchivos compresiones, MetricasServidor metricas, LimitesEnvio limites,
+            DifusionesMulticast multicast) {
+        this.numero = numero;
+        this.canal = canal;
+        this.sesiones = sesiones;
+        this.cache = cache;
+        this.metricas = metricas;
+        this.manejador = new ManejadorCliente(canal, indice, sesiones, cache, huellas, compresiones, metricas, limites,
+                multicast, buzon);
+        this.planificador = new PlanificadorEnvio(sesiones, limites, metricas);
+    }
+    
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            canal.configureBlocking(false);
+            SelectionKey clave = canal.register(selector, SelectionKey.OP_READ);
+            buzon.abrir(selector);
+            
+            // Buffers reutilizados: uno para los mensajes recibidos y otro para los paquetes enviados
+            ByteBuffer bufferRecepcion = ByteBuffer.allocateDirect(ServidorArchivos.TAMANO_MAXIMO_DATAGRAMA);
+            ByteBuffer bufferEnvio = ByteBuffer.allocateDirect(ServidorArchivos.TAMANO_MAXIMO_DATAGRAMA);
+            boolean escribible = true;
+            long proximoEvento = Long.MAX_VALUE;
+            long proximaExpulsion = System.nanoTime() + PERIODO_EXPULSION;
+            
+            while (true) {
+                // Con el canal lleno solo se despierta por E/S o por la revisión de sesiones inactivas
+                long evento = escribible ? Math.min(proximoEvento, proximaExpulsion) : proximaExpulsion;
+                long espera = evento - System.nanoTime();
+                if (espera <= 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(espera)));
+                }
+                selector.selectedKeys().clear();
+                
+                try {
+                    recibirMensajes(bufferRecepcion);
+                } catch (IOException e) {
+                    // Un error del socket al recibir no debe dejar sin atender al resto de los clientes
+                    Bitacora.error(e);
+                }
+                buzon.atender(manejador);
+                
+                if (System.nanoTime() - proximaExpulsion >= 0) {
+                    expulsarInactivas();
+                    proximaExpulsion = System.nanoTime() + PERIODO_EXPULSION;
+                }
+                
+                if (clave.isWritable()) {
+                    escribible = true;
+                }
+                if (escribible) {
+                    proximoEvento = planificador.avanzar(canal, bufferEnvio);
+                    escribible = proximoEvento != Long.MIN_VALUE;
+                }
+                clave.interestOps(escribible ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            Bitacora.error(e);
+        }
+    }
+    
+    /**
+     * Atiende todos los datagramas que ya estén en el socket sin bloquear.
+     */
+    private void recibirMensajes(ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            InetSocketAddress cliente = (InetSocketAddress) canal.receive(buffer);
+            if (cliente == null) {
+                return;
+            }
+            buffer.flip();
+            manejador.procesarMensaje(buffer, cliente);
+        }
+    }
+    
+    /**
+     * Expulsa las sesiones cuyos clientes dejaron de enviar mensajes y muestrea la equidad del
+     * reparto entre las sesiones. El reactor 0 además muestrea la tasa de envío y, de vez en
+     * cuando, reporta la actividad de la caché si hubo accesos desde el último reporte.
+     */
+    private void expulsarInactivas() {
+        planificador.muestrearEquidad();
+        if (numero == 0) {
+            metricas.muestrear(System.nanoTime());
+            if (++revisiones % REVISIONES_POR_REPORTE == 0) {
+                long accesos = cache.getAciertos() + cache.getFallos();
+                if (accesos != accesosReportados) {
+                    accesosReportados = accesos;
+                    Bitacora.registrar(cache.resumen());
+                }
+            }
+        }
+        
+        manejador.olvidarDesvios();
+        int expulsadas = sesiones.expulsarInactivas(System.currentTimeMillis());
+        if (expulsadas > 0) {
+            Bitacora.registrar("Sesiones inactivas expulsadas: " + expulsadas
+                    + " (vivas: " + sesiones.getSesionesVivas()
+                    + ", expulsadas en total: " + sesiones.getSesionesExpulsadas() + ")");
+        }
+    }
+}
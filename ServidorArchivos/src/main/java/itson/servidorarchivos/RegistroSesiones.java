@@ -0,0 +1,121 @@
+package itson.servidorarchivos;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro concurrente de las sesiones de transferencia activas. Usa un
+ * {@link ConcurrentHashMap}, cuyas lecturas no bloquean y cuyas escrituras se reparten
+ * entre segmentos independientes, de modo que varios hilos pueden consultar y modificar
+ * el registro a la vez.
+ *
+ * Las sesiones que dejan de recibir mensajes del cliente, o que rebasan su tiempo de vida
+ * máximo, se expulsan periódicamente para que una confirmación perdida no deje abierta
+ * una sesión para siempre. El registro también limita la cantidad de sesiones simultáneas.
+ * @author asielapodaca
+ */
+public class RegistroSesiones {
+    private final ConcurrentHashMap<ClaveSesion, SesionTransferenciaArchivo> sesiones = new ConcurrentHashMap<>();
+    private final int maxSesiones;
+    private final long tiempoInactividad;
+    private final long tiempoVidaMaximo;
+    private final LongAdder expulsadas = new LongAdder();
+    
+    /**
+     * @param maxSesiones Cantidad máxima de sesiones simultáneas.
+     * @param tiempoInactividad Milisegundos sin mensajes del cliente tras los cuales se expulsa una sesión.
+     * @param tiempoVidaMaximo Milisegundos desde su creación tras los cuales se expulsa una sesión.
+     */
+    public RegistroSesiones(int maxSesiones, long tiempoInactividad, long tiempoVidaMaximo) {
+        this.maxSesiones = maxSesiones;
+        this.tiempoInactividad = tiempoInactividad;
+        this.tiempoVidaMaximo = tiempoVidaMaximo;
+    }
+    
+    public SesionTransferenciaArchivo obtener(ClaveSesion clave) {
+        return sesiones.get(clave);
+    }
+    
+    /**
+     * Registra una sesión nueva. Si el registro está lleno primero intenta expulsar las
+     * sesiones inactivas.
+     *
+     * @param clave Llave de la sesión.
+     * @param sesion La sesión a registrar.
+     * @return false si se alcanzó el máximo de sesiones y la sesión no se registró.
+     */
+    public boolean registrar(ClaveSesion clave, SesionTransferenciaArchivo sesion) {
+        if (sesiones.size() >= maxSesiones) {
+            expulsarInactivas(System.currentTimeMillis());
+            if (sesiones.size() >= maxSesiones) {
+                return false;
+            }
+        }
+        SesionTransferenciaArchivo anterior = sesiones.put(clave, sesion);
+        if (anterior != null) {
+            anterior.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Elimina una sesión del registro y libera su archivo.
+     *
+     * @param clave Llave de la sesión.
+     * @return La sesión eliminada, o null si no existía.
+     */
+    public SesionTransferenciaArchivo eliminar(ClaveSesion clave) {
+        SesionTransferenciaArchivo sesion = sesiones.remove(clave);
+        if (sesion != null) {
+            sesion.close();
+        }
+        return sesion;
+    }
+    
+    /**
+     * Elimina una sesión que no terminó de forma normal y la contabiliza como expulsada.
+     *
+     * @param clave Llave de la sesión.
+     */
+    public void expulsar(ClaveSesion clave) {
+        if (eliminar(clave) != null) {
+            expulsadas.increment();
+        }
+    }
+    
+    /**
+     * Expulsa las sesiones inactivas o que rebasaron su tiempo de vida.
+     *
+     * @param ahora Tiempo actual en milisegundos.
+     * @return La cantidad de sesiones expulsadas.
+     */
+    public int expulsarInactivas(long ahora) {
+        int cantidad = 0;
+        Iterator<SesionTransferenciaArchivo> iterador = sesiones.values().iterator();
+        while (iterador.hasNext()) {
+            SesionTransferenciaArchivo sesion = iterador.next();
+            if (ahora - sesion.getUltimaActividad() > tiempoInactividad
+                    || ahora - sesion.getTiempoCreacion() > tiempoVidaMaximo) {
+                iterador.remove();
+                sesion.close();
+                expulsadas.increment();
+                cantidad++;
+            }
+        }
+        return cantidad;
+    }
+    
+    public Collection<SesionTransferenciaArchivo> getSesiones() {
+        return sesiones.values();
+    }
+    
+    public int getSesionesVivas() {
+        return sesiones.size();
+    }
+    
+    public long getSesionesExpulsadas() {
+        return expulsadas.sum();
+    }
+}
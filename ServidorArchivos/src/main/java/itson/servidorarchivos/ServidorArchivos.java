@@ -5,10 +5,18 @@
 package itson.servidorarchivos;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.lang.management.ManagementFactory;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -16,22 +24,191 @@ import java.util.concurrent.Executors;
  */
 public class ServidorArchivos {
     private static final int PUERTO = 5000;
-    public static final int TAMANO_BUFFER = 1024;
-    private static final ExecutorService ejecutor = Executors.newFixedThreadPool(5);
-
+    // Carga útil máxima de un datagrama UDP sobre IPv4
+    public static final int TAMANO_MAXIMO_DATAGRAMA = 65507;
+    // Límites del tamaño de fragmento que el cliente puede negociar en su solicitud
+    public static final int TAMANO_FRAGMENTO_MINIMO = 512;
+    public static final int TAMANO_FRAGMENTO_MAXIMO = TAMANO_MAXIMO_DATAGRAMA - Protocolo.TAMANO_ENCABEZADO_DATOS;
+    // Fragmento usado con las solicitudes en texto plano, que no lo negocian
+    public static final int TAMANO_FRAGMENTO_PREDETERMINADO = 1024;
+    // Bytes que pueden estar en vuelo sin acuse del cliente
+    public static final int TAMANO_VENTANA = Integer.getInteger("servidor.ventana", 512 * 1024);
+    // Paquetes mínimos en vuelo aunque los fragmentos sean muy grandes
+    public static final int VENTANA_MINIMA_PAQUETES = 4;
+    // Ajustar la ventana y la tasa de cada sesión según el RTT y las pérdidas (false = ventana fija)
+    public static final boolean CONTROL_CONGESTION = Boolean.parseBoolean(System.getProperty("servidor.controlCongestion", "false"));
+    // Tiempo mínimo de espera de un acuse antes de darlo por perdido
+    public static final long RTO_MINIMO = TimeUnit.MILLISECONDS.toNanos(Long.getLong("servidor.rtoMinimo", 200L));
+    // Paquetes de paridad por bloque como máximo; cada uno ocupa un fragmento de memoria en la sesión
+    public static final int MAX_PAQUETES_PARIDAD = 8;
+    // Memoria del socket para absorber las ráfagas de fragmentos grandes
+    private static final int TAMANO_BUFFER_SOCKET = 4 * 1024 * 1024;
+    // Tasa de envío por transferencia en bytes por segundo (0 = sin límite)
+    public static final long TASA_BYTES_SEGUNDO = Long.getLong("servidor.tasa", 100L * 1024 * 1024);
+    // Tasa de envío de todo el servidor en bytes por segundo (0 = sin límite)
+    public static final long TASA_GLOBAL = Long.getLong("servidor.tasaGlobal", 0L);
+    // Tasa de envío hacia cada dirección IP cliente en bytes por segundo (0 = sin límite)
+    public static final long TASA_CLIENTE = Long.getLong("servidor.tasaCliente", 0L);
+    // Bytes que cada sesión lista aporta al turno de su transmisión en cada ronda del planificador
+    public static final int CUANTO_PLANIFICADOR = Integer.getInteger("servidor.cuanto", 64 * 1024);
+    // Tamaño hasta el que una descarga cuenta como archivo pequeño en las métricas
+    public static final long UMBRAL_ARCHIVO_PEQUENO = Long.getLong("servidor.archivoPequeno", 1024L * 1024);
+    // Cantidad máxima de archivos que se pueden pedir en un lote
+    public static final int MAX_ARCHIVOS_LOTE = Integer.getInteger("servidor.maxArchivosLote", 10000);
+    // Cantidad máxima de sesiones de transferencia simultáneas
+    public static final int MAX_SESIONES = Integer.getInteger("servidor.maxSesiones", 10000);
+    // Milisegundos sin mensajes del cliente tras los cuales se expulsa su sesión
+    public static final long TIEMPO_INACTIVIDAD = Long.getLong("servidor.inactividad", 30000L);
+    // Milisegundos que puede durar una sesión antes de expulsarse
+    public static final long TIEMPO_VIDA_SESION = Long.getLong("servidor.vidaSesion", 3600000L);
+    // Bytes de memoria directa para la caché de bloques compartida (0 = sin caché)
+    public static final long TAMANO_CACHE = Long.getLong("servidor.cache", 64L * 1024 * 1024);
+    // Enviar comprimidos los archivos que lo permitan a los clientes que acepten compresión
+    public static final boolean COMPRESION = Boolean.parseBoolean(System.getProperty("servidor.compresion", "true"));
+    // Carpeta de los archivos que ofrece el servidor
+    public static final String DIRECTORIO_ARCHIVOS = System.getProperty("servidor.archivos", "./archivos/");
+    // Carpeta donde se guardan las variantes comprimidas de los archivos
+    public static final String DIRECTORIO_COMPRIMIDOS = System.getProperty("servidor.comprimidos", "./comprimidos/");
+    // Nivel de Deflate, de 1 (más rápido) a 9 (más compacto)
+    public static final int NIVEL_COMPRESION = Integer.getInteger("servidor.nivelCompresion", 6);
+    // Enviar una sola vez un archivo a los clientes que lo piden a la vez (false = un envío por cliente)
+    public static final boolean DIFUSION = Boolean.parseBoolean(System.getProperty("servidor.difusion", "true"));
+    // Grupo multicast IPv4 por el que se difunden los archivos a los clientes que lo aceptan (null = solo unicast)
+    public static final InetAddress GRUPO_MULTICAST = grupoMulticast(System.getProperty("servidor.multicast", ""));
+    // Puertos del grupo multicast: cada difusión usa uno de PUERTOS_MULTICAST puertos a partir de este
+    public static final int PUERTO_MULTICAST = Integer.getInteger("servidor.puertoMulticast", 5100);
+    public static final int PUERTOS_MULTICAST = 16;
+    // Interfaz de red por la que salen los paquetes multicast (vacío = la que elija el sistema)
+    private static final String INTERFAZ_MULTICAST = System.getProperty("servidor.interfazMulticast", "");
+    // Puerto local donde se publican las métricas en formato de Prometheus (0 = sin publicar)
+    private static final int PUERTO_METRICAS = Integer.getInteger("servidor.puertoMetricas", 9464);
+    
+    // Cantidad de reactores (hilos) que atienden a los clientes
+    public static final int REACTORES = Integer.getInteger("servidor.reactores", Runtime.getRuntime().availableProcessors());
+    
     public static void main(String[] args) {
-        try(DatagramSocket socket = new DatagramSocket(PUERTO)) {
-            System.out.println("Servidor de archivos UDP escuchando en el puerto " + PUERTO);
+        List<DatagramChannel> canales = new ArrayList<>();
+        ExportadorMetricas exportador = null;
+        IndiceArchivos indice = null;
+        try {
+            // Cada reactor tiene su propio canal en el mismo puerto; el sistema operativo reparte
+            // los clientes entre ellos. Sin SO_REUSEPORT se usa un solo reactor.
+            int reactores = REACTORES;
+            for (int i = 0; i < reactores; i++) {
+                DatagramChannel canal = DatagramChannel.open();
+                canales.add(canal);
+                if (canal.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    canal.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else {
+                    reactores = 1;
+                }
+                canal.setOption(StandardSocketOptions.SO_SNDBUF, TAMANO_BUFFER_SOCKET);
+                canal.setOption(StandardSocketOptions.SO_RCVBUF, TAMANO_BUFFER_SOCKET);
+                if (GRUPO_MULTICAST != null && !INTERFAZ_MULTICAST.isEmpty()) {
+                    canal.setOption(StandardSocketOptions.IP_MULTICAST_IF, NetworkInterface.getByName(INTERFAZ_MULTICAST));
+                }
+                canal.bind(new InetSocketAddress(PUERTO));
+            }
+            System.out.println("Servidor de archivos UDP escuchando en el puerto " + PUERTO
+                    + " con " + reactores + " reactores");
+            if (GRUPO_MULTICAST != null) {
+                System.out.println("Difusión multicast en " + GRUPO_MULTICAST.getHostAddress() + ", puertos "
+                        + PUERTO_MULTICAST + "-" + (PUERTO_MULTICAST + PUERTOS_MULTICAST - 1));
+            }
             
-            while(true) {
-                byte[] buffer = new byte[TAMANO_BUFFER];
-                DatagramPacket paquete = new DatagramPacket(buffer, buffer.length);
-                socket.receive(paquete);
-                
-                ejecutor.execute(new ManejadorCliente(paquete, socket));
+            indice = new IndiceArchivos(DIRECTORIO_ARCHIVOS);
+            System.out.println(indice.getCantidad() + " archivos en " + DIRECTORIO_ARCHIVOS);
+            CacheBloques cache = new CacheBloques(TAMANO_CACHE);
+            HuellasArchivo huellas = new HuellasArchivo();
+            CompresionArchivos compresiones = new CompresionArchivos(DIRECTORIO_COMPRIMIDOS);
+            MetricasServidor metricas = new MetricasServidor(cache);
+            exportador = publicarMetricas(metricas);
+            LimitesEnvio limites = new LimitesEnvio(TASA_GLOBAL, TASA_CLIENTE, TAMANO_VENTANA);
+            // Las difusiones multicast son de todo el servidor: un solo reactor atiende cada una
+            DifusionesMulticast multicast = GRUPO_MULTICAST != null
+                    ? new DifusionesMulticast(GRUPO_MULTICAST, PUERTO_MULTICAST, PUERTOS_MULTICAST) : null;
+            int maxSesiones = Math.max(1, MAX_SESIONES / reactores);
+            Thread[] hilos = new Thread[reactores];
+            for (int i = 0; i < reactores; i++) {
+                // Cada hilo atiende con un selector todas las sesiones de su canal
+                RegistroSesiones sesiones = new RegistroSesiones(maxSesiones, TIEMPO_INACTIVIDAD, TIEMPO_VIDA_SESION);
+                metricas.agregarRegistro(sesiones);
+                hilos[i] = new Thread(new Reactor(i, canales.get(i), indice, sesiones, cache, huellas, compresiones, metricas,
+                        limites, multicast),
+                        "reactor-" + i);
+                hilos[i].start();
+            }
+            for (Thread hilo : hilos) {
+                hilo.join();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (exportador != null) {
+                exportador.close();
+            }
+            if (indice != null) {
+                try {
+                    indice.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (DatagramChannel canal : canales) {
+                try {
+                    canal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Registra las métricas en JMX y, si hay puerto configurado, las publica por HTTP. Si algo
+     * falla el servidor sigue sin esa vía de consulta.
+     *
+     * @return El exportador HTTP, o null si las métricas no se publican por HTTP.
+     */
+    private static ExportadorMetricas publicarMetricas(MetricasServidor metricas) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metricas,
+                    new ObjectName("itson.servidorarchivos:type=Metricas"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        if (PUERTO_METRICAS > 0) {
+            try {
+                ExportadorMetricas exportador = new ExportadorMetricas(metricas, PUERTO_METRICAS);
+                exportador.iniciar();
+                System.out.println("Métricas en http://127.0.0.1:" + PUERTO_METRICAS + "/metrics");
+                return exportador;
+            } catch (IOException e) {
+                System.out.println("No se pudieron publicar las métricas en el puerto " + PUERTO_METRICAS + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return La dirección del grupo multicast configurado, o null si no hay o no es una
+     *         dirección multicast IPv4.
+     */
+    private static InetAddress grupoMulticast(String nombre) {
+        if (nombre.isEmpty()) {
+            return null;
+        }
+        try {
+            InetAddress direccion = InetAddress.getByName(nombre);
+            if (direccion instanceof Inet4Address && direccion.isMulticastAddress()) {
+                return direccion;
             }
+            System.out.println("El grupo multicast debe ser una dirección IPv4 multicast: " + nombre);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return null;
     }
 }
@@ -1,45 +1,395 @@
 package itson.servidorarchivos;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
 
 /**
- * Clase que representa una sesion de transferencia de archivo,
- * manteniendo el estado y los datos de los paquetes para posibles retransmisiones.
+ * Clase que representa una sesion de transferencia de archivo, manteniendo el estado
+ * del cliente. El envío de los paquetes lo hace la {@link TransmisionArchivo} de la sesión,
+ * que puede ser solo suya o compartida con las sesiones de otros clientes que piden el mismo
+ * archivo a la vez; la sesión guarda lo que es propio del cliente: su dirección, los paquetes
+ * que confirmó y los que pidió de nuevo.
+ *
+ * La sesión es una máquina de estados que el reactor del servidor avanza cuando el canal
+ * está listo o cuando vence su próximo evento. Primero espera a que el archivo que se envía
+ * esté listo y envía los metadatos; después el {@link PlanificadorEnvio} le da turnos a su
+ * transmisión, un cuanto de bytes por cada sesión lista, mientras el cliente no exceda su
+ * límite de tasa en {@link LimitesEnvio}.
+ *
+ * Al cerrarse, la sesión emite un {@link EventoSesion} de JFR con lo que se le envió.
  * @author asielapodaca
  */
-public class SesionTransferenciaArchivo {
-    private final File archivo;
-    private final int totalPaquetes;
-    private final Map<Integer, byte[]> dataEmpaquetada;
+public final class SesionTransferenciaArchivo implements Closeable {
+    private final ClaveSesion clave;
+    private final InetSocketAddress cliente;
+    private final TransmisionArchivo transmision;
+    private final boolean multicast;    // El cliente recibe los paquetes por el grupo multicast
+    private final LimitesEnvio limites; // null si la sesión no tiene límite por cliente
+    private final LimitadorTasa limitadorCliente; // Compartido por las sesiones del mismo cliente, o null
+    private final CRC32C crc = new CRC32C();
+    private final EventoSesion evento = new EventoSesion();
+    private int paquetesConfirmados;    // Número del paquete más alto confirmado por el cliente + 1
+    private BitSet pendientesReenvio;   // Paquetes solicitados de nuevo por el cliente
+    private boolean metadatosEnviados;
+    private boolean rezagado;           // Se quedó atrás y ya no detiene la ventana de la transmisión
+    private boolean completada;         // El cliente confirmó que recibió el archivo completo
+    private long paquetesEnviados;      // Paquetes de datos que recibió el cliente, para el evento de JFR
+    private long paquetesReenviados;
+    private long bytesEnviados;
+    private long bytesMuestra = -1;     // bytesEnviados en la última muestra de equidad, o -1
+    private boolean abortada;
+    private boolean cerrada;
+    private long proximoEvento;         // Momento en que la sesión necesita ser atendida, antes de los metadatos
+    private volatile long ultimaActividad; // Último mensaje recibido del cliente, en milisegundos
     public final long tiempoCreacion;
     
-    public SesionTransferenciaArchivo(File archivo, int totalPaquetes) {
-        this.archivo = archivo;
-        this.totalPaquetes = totalPaquetes;
-        this.dataEmpaquetada = new HashMap<>();
+    private SesionTransferenciaArchivo(ClaveSesion clave, TransmisionArchivo transmision, boolean multicast,
+            LimitesEnvio limites) {
+        this.clave = clave;
+        this.cliente = clave.getCliente();
+        this.transmision = transmision;
+        this.multicast = multicast;
+        this.limites = limites;
+        this.limitadorCliente = limites != null ? limites.adquirirCliente(cliente.getAddress()) : null;
         this.tiempoCreacion = System.currentTimeMillis();
+        this.ultimaActividad = tiempoCreacion;
+        evento.begin();
     }
     
-    public void addPaquete(int idPaquete, byte[] data) {
-        dataEmpaquetada.put(idPaquete, data);
+    /**
+     * Crea la sesión de un cliente y la agrega como miembro de su transmisión.
+     *
+     * @param clave Llave de la sesión.
+     * @param transmision Transmisión que envía el archivo.
+     * @param multicast true si el cliente recibe los paquetes por el grupo multicast de la transmisión.
+     * @param limites Límites de donde se toma el del cliente, que se libera al cerrar la sesión; o null.
+     * @return La sesión, ya agregada a la transmisión.
+     */
+    public static SesionTransferenciaArchivo crear(ClaveSesion clave, TransmisionArchivo transmision, boolean multicast,
+            LimitesEnvio limites) {
+        SesionTransferenciaArchivo sesion = new SesionTransferenciaArchivo(clave, transmision, multicast, limites);
+        transmision.agregar(sesion);
+        return sesion;
     }
     
-    public byte[] getPaquete(int idPaquete) {
-        return dataEmpaquetada.get(idPaquete);
+    /**
+     * Registra que se recibió un mensaje del cliente, lo que mantiene viva la sesión.
+     */
+    public void registrarActividad() {
+        ultimaActividad = System.currentTimeMillis();
     }
     
-    public File getArchivo() {
-        return archivo;
+    /**
+     * Registra un acuse del cliente; si era el más atrasado de su transmisión, la ventana avanza.
+     * La marca de tiempo que devuelve el cliente da una muestra del RTT.
+     *
+     * @param siguientePaquete Número del paquete más alto recibido por el cliente + 1.
+     * @param eco Marca de tiempo del paquete que provocó el acuse, o 0 si no trae.
+     */
+    public void registrarAcuse(int siguientePaquete, int eco) {
+        if (!isActivo()) {
+            return; // Acuse extraviado: la sesión todavía no recibe paquetes
+        }
+        paquetesConfirmados = Math.max(paquetesConfirmados, Math.min(siguientePaquete, transmision.getFinPaquete()));
+        transmision.registrarAcuse(eco);
     }
     
-    public int getTotalPaquetes() {
-        return totalPaquetes;
+    /**
+     * Marca un rango de paquetes para ser reenviado al cliente.
+     *
+     * @param desde Primer paquete del rango (inclusivo).
+     * @param hasta Último paquete del rango (exclusivo).
+     * @return Paquetes marcados; 0 si la sesión no está activa o no se había enviado ninguno.
+     */
+    public int solicitarReenvio(int desde, int hasta) {
+        return isActivo() ? transmision.solicitarReenvio(this, desde, hasta) : 0;
+    }
+    
+    /**
+     * Prepara la transmisión y envía los metadatos; desde entonces la sesión recibe los
+     * paquetes de su transmisión.
+     *
+     * @param canal Canal no bloqueante por el que se envían los metadatos.
+     * @param buffer Buffer directo de envío del reactor.
+     * @param ahora Tiempo actual según {@link System#nanoTime()}.
+     * @return false si el canal no aceptó el mensaje y hay que esperar a que sea escribible.
+     * @throws IOException Si ocurre un error al enviar el mensaje.
+     */
+    public boolean enviarMetadatos(DatagramChannel canal, ByteBuffer buffer, long ahora) throws IOException {
+        if (isAbortada() || metadatosEnviados) {
+            return true;
+        }
+        boolean preparada = transmision.preparar();
+        if (!preparada) {
+            String mensaje = transmision.isCambiada() ? "ERROR: El archivo cambió; vuelva a solicitarlo"
+                    : "ERROR: No se pudo leer el archivo";
+            if (!enviarError(canal, buffer, mensaje)) {
+                proximoEvento = ahora;
+                return false;
+            }
+            metadatosEnviados = true;
+            abortada = true;
+            return true;
+        }
+        buffer.clear();
+        escribirMetadatos(buffer);
+        buffer.flip();
+        if (canal.send(buffer, cliente) == 0) {
+            proximoEvento = ahora;
+            return false;
+        }
+        metadatosEnviados = true;
+        transmision.activar(this);
+        return true;
+    }
+    
+    /**
+     * Avisa al cliente que su transmisión falló por un error del servidor, salvo que ya se le
+     * haya avisado al preparar los metadatos. El aviso no se repite si el canal está lleno: el
+     * cliente agota sus reintentos como si el servidor no respondiera.
+     */
+    void avisarFallo(DatagramChannel canal, ByteBuffer buffer) throws IOException {
+        if (!abortada) {
+            enviarError(canal, buffer, "ERROR: Error interno del servidor");
+        }
+    }
+    
+    /**
+     * Envía al cliente un mensaje de error con el id de su transferencia.
+     *
+     * @return false si el canal no aceptó el mensaje.
+     */
+    private boolean enviarError(DatagramChannel canal, ByteBuffer buffer, String mensaje) throws IOException {
+        buffer.clear();
+        Protocolo.escribirEncabezado(buffer, Protocolo.ERROR, clave.getIdTransferencia());
+        buffer.put(mensaje.getBytes(StandardCharsets.UTF_8));
+        Protocolo.sellar(crc, buffer);
+        buffer.flip();
+        return canal.send(buffer, cliente) != 0;
+    }
+    
+    /**
+     * @return true si la sesión ya envió sus metadatos una vez y puede repetirlos.
+     */
+    public boolean isMetadatosEnviados() {
+        return metadatosEnviados && !isAbortada();
+    }
+    
+    /**
+     * @return true si el cliente ya recibió los metadatos y recibe los paquetes de la transmisión.
+     */
+    boolean isActivo() {
+        return metadatosEnviados && !abortada && !cerrada;
+    }
+    
+    /**
+     * Escribe en {@code buffer} el mensaje de metadatos de la sesión: [versión][tipo][id]
+     * [total de paquetes (4 bytes)][tamaño del archivo (8 bytes)][tamaño de fragmento acordado (4 bytes)]
+     * [primer paquete (4 bytes)][fin del rango (4 bytes)][versión del archivo (8 bytes)]
+     * [paquetes por bloque (1 byte)][paquetes de paridad (1 byte)][huella del rango (8 bytes)]
+     * [códec (1 byte)][tamaño sin comprimir (8 bytes)][id del grupo multicast (4 bytes)]
+     * [puerto (2 bytes)][dirección IPv4 (4 bytes)][CRC32C del mensaje (4 bytes)].
+     * Solo debe llamarse con la transmisión preparada. La huella es 0 si todavía no se conoce.
+     * En un lote el tamaño y la huella son los del manifiesto, la versión es 0 y el tamaño sin
+     * comprimir es el de todos los archivos.
+     *
+     * @param buffer Buffer donde se escribe el mensaje.
+     */
+    public void escribirMetadatos(ByteBuffer buffer) {
+        Protocolo.escribirEncabezado(buffer, Protocolo.METADATOS, clave.getIdTransferencia());
+        buffer.putInt(transmision.getTotalPaquetes());
+        buffer.putLong(transmision.getTamanoArchivo());
+        buffer.putInt(transmision.getTamanoFragmento());
+        buffer.putInt(transmision.getPrimerPaquete());
+        buffer.putInt(transmision.getFinPaquete());
+        buffer.putLong(transmision.getVersion());
+        buffer.put((byte) transmision.getPaquetesPorBloque());
+        buffer.put((byte) transmision.getPaquetesParidad());
+        buffer.putLong(transmision.getHuella());
+        buffer.put(transmision.getCodec());
+        buffer.putLong(transmision.getTamanoOriginal());
+        if (multicast) {
+            InetSocketAddress grupo = transmision.getGrupoMulticast();
+            buffer.putInt(transmision.getIdGrupo());
+            buffer.putShort((short) grupo.getPort());
+            buffer.put(grupo.getAddress().getAddress());
+        } else {
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+            buffer.putInt(0);
+        }
+        Protocolo.sellar(crc, buffer);
+    }
+    
+    /**
+     * Escribe en {@code buffer} el FIN de la sesión con la huella del rango, para el cliente que
+     * lo pide con PEDIR_FIN: [versión][tipo][id][huella del rango (8 bytes)][CRC32C del mensaje (4 bytes)].
+     *
+     * @param buffer Buffer donde se escribe el mensaje.
+     * @return false si no hay nada que responder: la sesión no recibe la transmisión, es un lote
+     *         o la huella del rango todavía no se conoce.
+     */
+    public boolean escribirFin(ByteBuffer buffer) {
+        if (!isActivo() || transmision.isLote() || !transmision.isHuellaLista()) {
+            return false;
+        }
+        Protocolo.escribirEncabezado(buffer, Protocolo.FIN, clave.getIdTransferencia());
+        buffer.putLong(transmision.getHuella());
+        Protocolo.sellar(crc, buffer);
+        return true;
+    }
+    
+    /**
+     * Fija los paquetes confirmados al empezar a recibir la transmisión, que para un cliente
+     * que se une tarde son los que ya se enviaron a los demás.
+     */
+    void confirmar(int paquetesConfirmados) {
+        this.paquetesConfirmados = paquetesConfirmados;
+    }
+    
+    int getPaquetesConfirmados() {
+        return paquetesConfirmados;
+    }
+    
+    void marcarReenvio(int desde, int hasta) {
+        if (pendientesReenvio == null) {
+            pendientesReenvio = new BitSet();
+        }
+        pendientesReenvio.set(desde, hasta);
+    }
+    
+    boolean tieneReenvio(int idPaquete) {
+        return pendientesReenvio != null && pendientesReenvio.get(idPaquete);
+    }
+    
+    void quitarReenvio(int idPaquete) {
+        pendientesReenvio.clear(idPaquete);
+    }
+    
+    /**
+     * Cobra al límite del cliente un datagrama que se le envió directamente.
+     */
+    void cobrar(int bytes) {
+        if (limitadorCliente != null) {
+            limitadorCliente.consumir(bytes);
+        }
+    }
+    
+    /**
+     * @return 0 si el cliente está dentro de su límite de tasa, o los nanosegundos que faltan
+     *         para que vuelva a estarlo.
+     */
+    long getEsperaCliente() {
+        return limitadorCliente != null ? limitadorCliente.getEspera() : 0;
+    }
+    
+    /**
+     * Toma una muestra de los bytes enviados al cliente para la equidad del planificador.
+     *
+     * @return Bytes enviados desde la muestra anterior, o -1 si es la primera muestra.
+     */
+    long muestrearBytes() {
+        long anterior = bytesMuestra;
+        bytesMuestra = bytesEnviados;
+        return anterior < 0 ? -1 : bytesEnviados - anterior;
+    }
+    
+    void contarPaquete(int bytes, boolean reenvio) {
+        paquetesEnviados++;
+        if (reenvio) {
+            paquetesReenviados++;
+        }
+        bytesEnviados += bytes;
+    }
+    
+    /**
+     * Registra que el cliente confirmó el archivo completo, antes de cerrar la sesión.
+     */
+    public void marcarCompletada() {
+        completada = true;
+    }
+    
+    boolean isMulticast() {
+        return multicast;
+    }
+    
+    boolean isRezagado() {
+        return rezagado;
+    }
+    
+    void marcarRezagado() {
+        rezagado = true;
+    }
+    
+    /**
+     * @return true si el cliente (o todos los de su transmisión) dejó de responder y la sesión
+     *         debe cerrarse.
+     */
+    public boolean isAbortada() {
+        return abortada || transmision.isAbortada();
+    }
+    
+    /**
+     * @return Momento según {@link System#nanoTime()} en que la sesión necesita ser atendida,
+     *         o {@link Long#MAX_VALUE} si está esperando un mensaje del cliente.
+     */
+    public long getProximoEvento() {
+        if (isAbortada()) {
+            return 0; // Para que el reactor la expulse
+        }
+        return metadatosEnviados ? transmision.getProximoEvento() : proximoEvento;
+    }
+    
+    public ClaveSesion getClave() {
+        return clave;
+    }
+    
+    public InetSocketAddress getCliente() {
+        return cliente;
+    }
+    
+    public TransmisionArchivo getTransmision() {
+        return transmision;
     }
     
     public long getTiempoCreacion() {
         return tiempoCreacion;
     }
     
+    public long getUltimaActividad() {
+        return ultimaActividad;
+    }
+    
+    /**
+     * Quita la sesión de su transmisión, que cierra el archivo si la sesión era su último
+     * miembro, y emite el evento de JFR de la sesión si se está grabando.
+     */
+    @Override
+    public void close() {
+        if (cerrada) {
+            return;
+        }
+        cerrada = true;
+        transmision.quitar(this);
+        if (limites != null) {
+            limites.liberarCliente(cliente.getAddress());
+        }
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.cliente = clave.toString();
+            evento.archivo = transmision.getDescripcion();
+            evento.bytes = bytesEnviados;
+            evento.paquetes = paquetesEnviados;
+            evento.reenviados = paquetesReenviados;
+            evento.multicast = multicast;
+            evento.completada = completada;
+            evento.commit();
+        }
+    }
 }
@@ -0,0 +1,1050 @@
+package itson.servidorarchivos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Envío de un archivo (o de una parte) a las sesiones de uno o más clientes. Los datos de los
+ * paquetes no se guardan en memoria: tanto el envío inicial como las retransmisiones se leen
+ * del archivo con lecturas posicionales, por lo que la transmisión ocupa la misma memoria sin
+ * importar el tamaño del archivo.
+ *
+ * Cuando varios clientes piden a la vez el mismo archivo con los mismos parámetros, sus
+ * sesiones comparten una sola transmisión: cada paquete se lee y se sella una vez y se envía a
+ * todos los miembros, cambiando solo el id de transferencia del encabezado, o una sola vez al
+ * grupo multicast a los miembros que lo escuchan. Las retransmisiones también se comparten: un
+ * paquete pedido por varios clientes se lee una vez y solo se envía a quienes lo pidieron. Así
+ * el trabajo del servidor crece con los archivos distintos y no con la cantidad de clientes.
+ *
+ * La ventana avanza con el miembro más atrasado y su {@link ControlCongestion} recibe el RTT y
+ * las pérdidas de todos. Un miembro que deja de confirmar mientras los demás avanzan queda como
+ * rezagado: sigue recibiendo la transmisión y pidiendo lo que le falta, pero ya no detiene la
+ * ventana ni sus pérdidas reducen la tasa de los demás. Un cliente que se une con el envío
+ * empezado recibe los paquetes desde ese punto y pide los anteriores como cualquier pérdida,
+ * sin que se cuenten como congestión.
+ *
+ * Cada paquete lleva el CRC32C de su posición y sus datos, y el FIN lleva la huella del rango:
+ * la suma de los aportes de sus paquetes, que se acumula mientras se envían por primera vez y
+ * se guarda en {@link HuellasArchivo} para las transmisiones siguientes, que ya la ponen en sus
+ * metadatos. Una descarga que se reanuda no envía el rango, así que su huella se calcula aparte
+ * si no se conoce y el FIN espera a que esté lista. Si el cliente acepta compresión y
+ * {@link CompresionArchivos} ya tiene lista la variante comprimida, se envía esa variante; si
+ * no, se envía el original mientras la variante se prepara para las solicitudes siguientes.
+ * La transmisión abre el archivo y calcula su rango cuando la primera sesión envía sus
+ * metadatos. El archivo original se lee con el canal que comparten todas las transmisiones de
+ * esa versión en el {@link IndiceArchivos}.
+ *
+ * Una transmisión también puede enviar un {@link LoteArchivos}: varios archivos seguidos en un
+ * solo rango de paquetes, que para la ventana, las retransmisiones y la paridad son un archivo
+ * más; solo cambia de dónde se lee cada paquete, la posición con que se calcula su CRC y la
+ * huella de archivo a la que se suma.
+ * @author asielapodaca
+ */
+public class TransmisionArchivo implements Closeable {
+    private static final int MAX_INTENTOS = 5;
+    // Cada cuánto se revisa si ya está lista la huella que se calcula al reanudar
+    private static final long ESPERA_HUELLA = TimeUnit.MILLISECONDS.toNanos(10);
+    
+    private final int parte;            // Parte del archivo que envía la transmisión, de 'partes'
+    private final int partes;
+    private final int tamanoFragmento;  // Bytes de datos por paquete acordados con los clientes
+    private final int ventana;          // Paquetes que pueden estar en vuelo sin acuse como máximo
+    private final ArchivoIndexado archivoOriginal;  // null si la transmisión envía un lote
+    private final IdentidadArchivo identidadOriginal;
+    private final IdentidadArchivo enviado; // Archivo que se envía: el original o su variante comprimida
+    private final LoteArchivos lote;    // Archivos que se envían en lugar de uno solo, o null
+    private final CacheBloques cache;
+    private final LimitadorTasa limitador;
+    private final ControlCongestion control;
+    private final HuellasArchivo huellas; // null si la transmisión envía un lote
+    private final MetricasServidor metricas;
+    private final DifusionesMulticast multicast;     // Dueña del puerto reservado, o null
+    private final InetSocketAddress grupoMulticast; // null si la transmisión no usa multicast
+    private final int idGrupo;          // Id de los paquetes enviados al grupo multicast
+    private final List<SesionTransferenciaArchivo> miembros = new ArrayList<>();
+    private final CRC32C crc = new CRC32C();
+    // Se conocen al preparar la transmisión, cuando el archivo que se envía está listo
+    private IdentidadArchivo identidad;
+    private FileChannel canalArchivo;
+    private boolean canalCompartido; // El canal es el del índice y se libera en lugar de cerrarse
+    private long tamanoArchivo;
+    private int totalPaquetes;
+    private int primerPaquete;       // Rango de paquetes de la transmisión: [primer, fin)
+    private int finPaquete;
+    private long versionReanudar;    // Versión que el cliente descargó parcialmente, o 0
+    private long huella;             // Huella del rango, cuando se conoce; 0 en un lote
+    private boolean huellaLista;
+    private long huellaAcumulada;    // Aportes de los paquetes enviados por primera vez
+    private CompletableFuture<Long> huellaCalculada; // Cálculo de la huella al reanudar, o null
+    private int paquetesPorBloque;   // Paridad solicitada; 0 si está desactivada
+    private int paquetesParidad;
+    private int siguientePaquete;    // Siguiente paquete que no se ha enviado nunca
+    private int paquetesConfirmados; // Paquete más alto confirmado por el miembro más atrasado + 1
+    private BitSet pendientesReenvio; // Paquetes pedidos de nuevo por algún miembro
+    private CodificadorParidad paridad; // Corrección de errores hacia adelante; null si está desactivada
+    private boolean preparada;
+    private boolean fallida;         // No se pudo abrir el archivo o el envío falló por un error inesperado
+    private boolean cambiada;        // El archivo cambió entre la solicitud y la preparación
+    private boolean finEnviado;
+    private boolean abortada;
+    private boolean cerrada;
+    private boolean canalLleno;      // El canal rechazó el último mensaje para algún miembro
+    private int esperasAgotadas;
+    private int turnoMiembros;       // Miembro por el que empieza la siguiente difusión
+    private boolean turnoNuevo;      // Toca un paquete nuevo antes que otra retransmisión
+    private boolean sondaPendiente;  // Se agotó la espera del acuse: cabe un paquete de prueba fuera de la ventana
+    private long plazoAcuse;         // Momento en que se da por perdido el acuse con la ventana llena
+    private long proximoEvento;      // Momento en que la transmisión necesita ser atendida de nuevo
+    private long bytesEnviados;      // Bytes de los datagramas que aceptó el canal
+    // Estado de la transmisión en el PlanificadorEnvio de su reactor
+    private long deficit;            // Bytes que puede enviar en su siguiente turno; negativo si se excedió
+    private long ronda;              // Última ronda en que alguna de sus sesiones estuvo lista
+    private int sesionesListas;      // Sesiones listas en esa ronda; cada una le aporta un cuanto
+    
+    /**
+     * @param original Versión del archivo solicitado, según el índice.
+     * @param parte Parte del archivo que se envía, desde 0.
+     * @param partes Cantidad de partes en que los clientes dividen el archivo.
+     * @param tamanoFragmento Bytes de datos por paquete.
+     * @param codecs Códecs que aceptan los clientes, como máscara de {@code Protocolo.CODEC_*}.
+     * @param cache Caché de bloques compartida.
+     * @param limitador Limitador de la tasa de envío.
+     * @param compresiones Variantes comprimidas de los archivos, compartidas por las transmisiones.
+     * @param huellas Huellas de los archivos, compartidas por las transmisiones.
+     * @param metricas Métricas del servidor, donde se cuentan los envíos y el RTT.
+     * @param multicast Difusiones multicast donde se reserva un puerto del grupo para los miembros
+     *        que lo acepten, o null si la transmisión no usa multicast.
+     * @param idGrupo Id de los paquetes enviados al grupo multicast.
+     */
+    public TransmisionArchivo(ArchivoIndexado original, int parte, int partes, int tamanoFragmento, int codecs,
+            CacheBloques cache, LimitadorTasa limitador, CompresionArchivos compresiones, HuellasArchivo huellas,
+            MetricasServidor metricas, DifusionesMulticast multicast, int idGrupo) {
+        this.parte = parte;
+        this.partes = partes;
+        this.tamanoFragmento = tamanoFragmento;
+        this.ventana = Math.max(ServidorArchivos.VENTANA_MINIMA_PAQUETES,
+                ServidorArchivos.TAMANO_VENTANA / (tamanoFragmento + Protocolo.TAMANO_ENCABEZADO_DATOS));
+        this.archivoOriginal = original;
+        this.identidadOriginal = original.getIdentidad();
+        this.enviado = compresiones.obtener(identidadOriginal, codecs);
+        this.cache = cache;
+        this.limitador = limitador;
+        this.control = new ControlCongestion(ServidorArchivos.VENTANA_MINIMA_PAQUETES, ventana);
+        this.huellas = huellas;
+        this.lote = null;
+        this.metricas = metricas;
+        this.multicast = multicast;
+        this.grupoMulticast = multicast != null ? multicast.reservarGrupo() : null;
+        this.idGrupo = idGrupo;
+    }
+    
+    /**
+     * Crea la transmisión de un lote de archivos para un solo cliente. Un lote no se reanuda,
+     * no se divide en partes ni se difunde a otros clientes.
+     *
+     * @param lote Archivos que se envían.
+     * @param tamanoFragmento Bytes de datos por paquete, el mismo con que se creó el lote.
+     * @param limitador Limitador de la tasa de envío.
+     * @param metricas Métricas del servidor, donde se cuentan los envíos y el RTT.
+     */
+    public TransmisionArchivo(LoteArchivos lote, int tamanoFragmento, LimitadorTasa limitador, MetricasServidor metricas) {
+        this.parte = 0;
+        this.partes = 1;
+        this.tamanoFragmento = tamanoFragmento;
+        this.ventana = Math.max(ServidorArchivos.VENTANA_MINIMA_PAQUETES,
+                ServidorArchivos.TAMANO_VENTANA / (tamanoFragmento + Protocolo.TAMANO_ENCABEZADO_DATOS));
+        this.archivoOriginal = null;
+        this.identidadOriginal = null;
+        this.enviado = null;
+        this.cache = null;
+        this.limitador = limitador;
+        this.control = new ControlCongestion(ServidorArchivos.VENTANA_MINIMA_PAQUETES, ventana);
+        this.huellas = null;
+        this.lote = lote;
+        this.metricas = metricas;
+        this.multicast = null;
+        this.grupoMulticast = null;
+        this.idGrupo = 0;
+    }
+    
+    /**
+     * Abre el archivo que se envía, ya comprimido si corresponde, y calcula el rango de
+     * paquetes. Solo hace algo la primera vez; la llaman las sesiones antes de enviar sus
+     * metadatos.
+     *
+     * @return false si no se pudo preparar el archivo.
+     */
+    public boolean preparar() {
+        if (preparada) {
+            return true;
+        }
+        if (fallida) {
+            return false;
+        }
+        if (lote != null) {
+            // El "archivo" de los metadatos es el manifiesto; los archivos van después de él
+            tamanoArchivo = lote.getTamanoManifiesto();
+            totalPaquetes = lote.getTotalPaquetes();
+        } else {
+            try {
+                identidad = enviado;
+                if (identidad.equals(identidadOriginal)) {
+                    canalArchivo = archivoOriginal.adquirir();
+                    if (canalArchivo == null) {
+                        // La versión solicitada se retiró del índice: su ruta ya tiene otro contenido
+                        cambiada = true;
+                        fallida = true;
+                        return false;
+                    }
+                    canalCompartido = true;
+                } else {
+                    canalArchivo = FileChannel.open(Paths.get(identidad.getRuta()), StandardOpenOption.READ);
+                }
+            } catch (IOException e) {
+                Bitacora.error(e);
+                fallida = true;
+                return false;
+            }
+            tamanoArchivo = identidad.getTamano();
+            totalPaquetes = (int) ((tamanoArchivo + tamanoFragmento - 1) / tamanoFragmento);
+        }
+        preparada = true;
+        primerPaquete = (int) ((long) totalPaquetes * parte / partes);
+        finPaquete = (int) ((long) totalPaquetes * (parte + 1) / partes);
+        siguientePaquete = primerPaquete;
+        paquetesConfirmados = primerPaquete;
+        if (paquetesParidad > 0) {
+            paridad = new CodificadorParidad(primerPaquete, finPaquete, paquetesPorBloque, paquetesParidad, tamanoFragmento);
+        }
+        if (lote != null || primerPaquete == finPaquete) {
+            huellaLista = true;
+        } else {
+            Long conocida = huellas.buscar(identidad, tamanoFragmento, primerPaquete, finPaquete);
+            if (conocida != null) {
+                huella = conocida;
+                huellaLista = true;
+            }
+        }
+        if (versionReanudar != 0 && versionReanudar == identidad.getVersion()) {
+            // El cliente ya tiene parte del archivo: solo se enviará lo que pida
+            reanudar();
+        }
+        return true;
+    }
+    
+    /**
+     * Calcula la cantidad de bytes de datos que lleva un paquete.
+     *
+     * @param idPaquete Número del paquete.
+     * @return Los bytes del paquete, o 0 si el paquete está fuera del archivo.
+     */
+    public int getTamanoPaquete(int idPaquete) {
+        if (lote != null) {
+            return lote.getTamanoPaquete(idPaquete);
+        }
+        long posicion = (long) idPaquete * tamanoFragmento;
+        return (int) Math.max(0, Math.min(tamanoFragmento, tamanoArchivo - posicion));
+    }
+    
+    /**
+     * Copia los datos de un paquete en {@code destino}, a partir de su posición actual y hasta
+     * su límite. Los datos salen de la caché compartida, que lee el archivo solo la primera vez.
+     *
+     * @param idPaquete Número del paquete a leer.
+     * @param destino Buffer donde se copian los datos.
+     * @return La cantidad de bytes leídos.
+     * @throws IOException Si ocurre un error al leer el archivo.
+     */
+    public int leerPaquete(int idPaquete, ByteBuffer destino) throws IOException {
+        if (lote != null) {
+            return lote.leerPaquete(idPaquete, destino);
+        }
+        long posicion = (long) idPaquete * tamanoFragmento;
+        return cache.leer(identidad, canalArchivo, posicion, destino);
+    }
+    
+    /**
+     * Registra la versión del archivo que el cliente descargó parcialmente. Si al preparar la
+     * transmisión coincide con la del archivo que se envía, la descarga se reanuda. Una
+     * transmisión que reanuda no admite más miembros.
+     *
+     * @param versionReanudar Versión que indicó el cliente, o 0 si la descarga es nueva.
+     */
+    public void solicitarReanudacion(long versionReanudar) {
+        this.versionReanudar = versionReanudar;
+    }
+    
+    /**
+     * Reanuda una descarga interrumpida: el cliente ya tiene parte del rango, así que todos sus
+     * paquetes se dan por enviados y solo se envían los que el cliente pida con acuses selectivos.
+     */
+    private void reanudar() {
+        if (!huellaLista) {
+            huellaCalculada = huellas.calcular(identidad, tamanoFragmento, primerPaquete, finPaquete);
+        }
+        siguientePaquete = finPaquete;
+        paquetesConfirmados = finPaquete;
+        // Se envía "FIN" de inmediato y el cliente responde con los rangos que le faltan, que no
+        // son pérdidas por congestión
+        control.ignorarPerdidasHasta(finPaquete);
+    }
+    
+    /**
+     * Activa la corrección de errores hacia adelante: después de cada bloque de paquetes nuevos
+     * se envían paquetes de paridad con los que el cliente reconstruye los paquetes perdidos
+     * sin esperar una retransmisión. El codificador se crea al preparar la transmisión.
+     *
+     * @param paquetesPorBloque Paquetes de datos por bloque.
+     * @param paquetesParidad Paquetes de paridad por bloque.
+     */
+    public void activarParidad(int paquetesPorBloque, int paquetesParidad) {
+        this.paquetesPorBloque = paquetesPorBloque;
+        this.paquetesParidad = paquetesParidad;
+    }
+    
+    /**
+     * @return true si un cliente nuevo todavía puede unirse: la transmisión no reanuda una
+     *         descarga y no ha terminado de enviar su rango por primera vez.
+     */
+    public boolean admiteMiembros() {
+        return !cerrada && !abortada && !fallida && versionReanudar == 0 && !finEnviado;
+    }
+    
+    /**
+     * Agrega la sesión de un cliente. La sesión empieza a recibir paquetes cuando envía sus
+     * metadatos, ver {@link #activar}.
+     */
+    void agregar(SesionTransferenciaArchivo miembro) {
+        miembros.add(miembro);
+    }
+    
+    /**
+     * Empieza a enviar los paquetes a un miembro que ya recibió los metadatos. Si la transmisión
+     * ya había empezado, el miembro recibe los paquetes nuevos desde el siguiente y pide los
+     * anteriores como reenvíos, que no cuentan contra la ventana ni son pérdidas; por eso se
+     * cuenta como si ya hubiera confirmado lo enviado, para no detener la ventana de los demás.
+     */
+    void activar(SesionTransferenciaArchivo miembro) {
+        miembro.confirmar(siguientePaquete);
+        if (siguientePaquete > primerPaquete && siguientePaquete < finPaquete) {
+            control.ignorarPerdidasHasta(siguientePaquete);
+        }
+    }
+    
+    /**
+     * Quita la sesión de un cliente; la transmisión se cierra al quitar el último miembro.
+     */
+    void quitar(SesionTransferenciaArchivo miembro) {
+        if (!miembros.remove(miembro)) {
+            return;
+        }
+        if (miembros.isEmpty()) {
+            close();
+        } else {
+            // El miembro quitado pudo ser el más atrasado
+            avanzarVentana();
+        }
+    }
+    
+    /**
+     * Registra un acuse de un miembro, que ya actualizó los paquetes que tiene confirmados; si
+     * la ventana avanzó la transmisión vuelve a estar lista para enviar. La marca de tiempo que
+     * devuelve el cliente da una muestra del RTT.
+     *
+     * @param eco Marca de tiempo del paquete que provocó el acuse, o 0 si no trae.
+     */
+    void registrarAcuse(int eco) {
+        if (eco != 0) {
+            long ahora = System.nanoTime();
+            int rtt = marcaTiempo(ahora) - eco;
+            control.registrarRtt(TimeUnit.MICROSECONDS.toNanos(rtt), ahora);
+            metricas.registrarRtt(rtt);
+        }
+        avanzarVentana();
+    }
+    
+    /**
+     * Avanza la ventana hasta el paquete que confirmó el miembro más atrasado que no es rezagado.
+     */
+    private void avanzarVentana() {
+        int minimo = Integer.MAX_VALUE;
+        for (SesionTransferenciaArchivo miembro : miembros) {
+            if (miembro.isActivo() && !miembro.isRezagado()) {
+                minimo = Math.min(minimo, miembro.getPaquetesConfirmados());
+            }
+        }
+        if (minimo != Integer.MAX_VALUE && minimo > paquetesConfirmados) {
+            int nuevos = Math.min(minimo, finPaquete) - paquetesConfirmados;
+            paquetesConfirmados += nuevos;
+            control.registrarAcuse(nuevos);
+            limitador.ajustarTasa(control.getTasa(tamanoFragmento + Protocolo.TAMANO_ENCABEZADO_DATOS));
+            esperasAgotadas = 0;
+            plazoAcuse = 0;
+            sondaPendiente = false;
+            proximoEvento = 0;
+        }
+    }
+    
+    /**
+     * Marca para reenvío un rango de paquetes que pidió un miembro. Las retransmisiones tienen
+     * prioridad sobre los paquetes nuevos y no cuentan contra la ventana de envío.
+     *
+     * @param miembro Sesión del cliente que pidió los paquetes.
+     * @param desde Primer paquete del rango (inclusivo).
+     * @param hasta Último paquete del rango (exclusivo).
+     * @return Paquetes marcados, los del rango que ya se habían enviado.
+     */
+    int solicitarReenvio(SesionTransferenciaArchivo miembro, int desde, int hasta) {
+        desde = Math.max(desde, primerPaquete);
+        hasta = Math.min(hasta, siguientePaquete);
+        if (desde >= hasta) {
+            return 0;
+        }
+        if (pendientesReenvio == null) {
+            pendientesReenvio = new BitSet();
+        }
+        pendientesReenvio.set(desde, hasta);
+        miembro.marcarReenvio(desde, hasta);
+        if (!miembro.isRezagado()) {
+            control.registrarPerdida(desde, siguientePaquete);
+            limitador.ajustarTasa(control.getTasa(tamanoFragmento + Protocolo.TAMANO_ENCABEZADO_DATOS));
+        }
+        proximoEvento = 0;
+        return hasta - desde;
+    }
+    
+    /**
+     * Envía los paquetes que la ventana, la tasa de envío y el canal permitan, hasta agotar el
+     * turno que le da el {@link PlanificadorEnvio}: se detiene después del datagrama con el que
+     * los bytes enviados alcanzan {@code presupuesto}. Al terminar actualiza el próximo evento
+     * de la transmisión.
+     *
+     * @param canal Canal no bloqueante por el que se envían los paquetes.
+     * @param buffer Buffer directo de envío del reactor.
+     * @param presupuesto Bytes que puede enviar en este turno, contando cada destinatario.
+     * @param ahora Tiempo actual según {@link System#nanoTime()}.
+     * @return false si el canal no aceptó más datos y hay que esperar a que sea escribible.
+     * @throws IOException Si ocurre un error al leer el archivo o enviar un paquete.
+     */
+    public boolean enviarPendientes(DatagramChannel canal, ByteBuffer buffer, long presupuesto, long ahora) throws IOException {
+        if (proximoEvento - ahora > 0 || abortada || cerrada) {
+            return true;
+        }
+        
+        long limite = bytesEnviados + presupuesto;
+        while (bytesEnviados < limite) {
+            // La paridad de un bloque sale antes que los paquetes del siguiente
+            if (paridad != null && paridad.hayPendiente()) {
+                long espera = limitador.intentarAdquirir(paridad.getTamanoPendiente() + Protocolo.TAMANO_ENCABEZADO_PARIDAD);
+                if (espera > 0) {
+                    proximoEvento = ahora + espera;
+                    return true;
+                }
+                // Preparar paquete: [versión][tipo][id][bloque (4 bytes)][grupo (1 byte)][paridad]
+                buffer.clear();
+                Protocolo.escribirEncabezado(buffer, Protocolo.PARIDAD, 0);
+                paridad.escribirPendiente(buffer);
+                buffer.flip();
+                if (!difundir(canal, buffer, -1, false, false)) {
+                    proximoEvento = ahora;
+                    return false;
+                }
+                paridad.confirmarEnvio();
+                if (canalLleno) {
+                    proximoEvento = ahora;
+                    return false;
+                }
+                continue;
+            }
+            
+            int idPaquete = siguienteParaEnviar(ahora);
+            if (idPaquete < 0) {
+                if (siguientePaquete == finPaquete && !finEnviado) {
+                    if (!isHuellaLista()) {
+                        // Al reanudar, el FIN espera a que termine el cálculo de la huella del rango
+                        if (!abortada) {
+                            proximoEvento = ahora + ESPERA_HUELLA;
+                        }
+                        return true;
+                    }
+                    // Enviar mensaje de fin para indicar que se han enviado todos los paquetes
+                    buffer.clear();
+                    Protocolo.escribirEncabezado(buffer, Protocolo.FIN, 0);
+                    buffer.putLong(huella);
+                    Protocolo.sellar(crc, buffer);
+                    buffer.flip();
+                    if (!difundir(canal, buffer, -1, false, true)) {
+                        proximoEvento = ahora;
+                        return false;
+                    }
+                    finEnviado = true;
+                }
+                return true;
+            }
+            
+            // Respetar la tasa de envío antes de leer el paquete del archivo
+            int tamanoPaquete = getTamanoPaquete(idPaquete);
+            long espera = limitador.intentarAdquirir(tamanoPaquete + Protocolo.TAMANO_ENCABEZADO_DATOS);
+            if (espera > 0) {
+                proximoEvento = ahora + espera;
+                return true;
+            }
+            
+            // Preparar paquete: [versión][tipo][id][posición en el archivo (8 bytes)]
+            //                  [marca de tiempo (4 bytes)][CRC32C (4 bytes)][datos]
+            // En un lote la posición del encabezado es la del lote y el CRC cubre la del archivo
+            long posicion = (long) idPaquete * tamanoFragmento;
+            buffer.clear();
+            Protocolo.escribirEncabezado(buffer, Protocolo.DATOS, 0);
+            buffer.putLong(posicion);
+            buffer.putInt(marcaTiempo(ahora));
+            buffer.putInt(0);
+            buffer.limit(Protocolo.TAMANO_ENCABEZADO_DATOS + tamanoPaquete);
+            try {
+                leerPaquete(idPaquete, buffer);
+            } catch (IOException e) {
+                // El archivo desapareció: los clientes no pueden completarlo
+                Bitacora.error(e);
+                abortada = true;
+                proximoEvento = Long.MAX_VALUE;
+                return true;
+            }
+            buffer.flip();
+            int crcPaquete = Protocolo.calcularCrc(crc, lote != null ? lote.getPosicion(idPaquete) : posicion,
+                    buffer, Protocolo.TAMANO_ENCABEZADO_DATOS);
+            buffer.putInt(Protocolo.TAMANO_ENCABEZADO_DATOS - 4, crcPaquete);
+            
+            boolean reenvio = idPaquete != siguientePaquete;
+            if (!difundir(canal, buffer, idPaquete, reenvio, false)) {
+                proximoEvento = ahora;
+                return false;
+            }
+            
+            if (!reenvio) {
+                if (paridad != null) {
+                    paridad.agregar(idPaquete, buffer, Protocolo.TAMANO_ENCABEZADO_DATOS);
+                }
+                if (lote == null) {
+                    huellaAcumulada += Protocolo.terminoHuella(idPaquete, crcPaquete);
+                } else {
+                    lote.registrarEnvio(idPaquete, crcPaquete);
+                }
+                if (++siguientePaquete == finPaquete && !huellaLista) {
+                    // Primer envío completo del rango: su huella queda para las transmisiones siguientes
+                    huella = huellaAcumulada;
+                    huellaLista = true;
+                    huellas.guardar(identidad, tamanoFragmento, primerPaquete, finPaquete, huella);
+                }
+                sondaPendiente = false;
+            } else if (!canalLleno) {
+                // Con el canal lleno quedan miembros que todavía esperan el paquete
+                pendientesReenvio.clear(idPaquete);
+            }
+            if (canalLleno) {
+                proximoEvento = ahora;
+                return false;
+            }
+        }
+        
+        // Se agotó el turno y quedan paquetes por enviar; se cede a las demás transmisiones
+        proximoEvento = ahora;
+        return true;
+    }
+    
+    /**
+     * Envía a los miembros activos el mensaje que está en {@code buffer}: una vez al grupo
+     * multicast si algún miembro lo escucha y una vez a cada miembro unicast, con el id de cada
+     * uno en el encabezado. Cada mensaje empieza por un miembro distinto, para que cuando el
+     * canal se llena no sean siempre los mismos los que se quedan sin él. Un reenvío solo va a
+     * los miembros que pidieron el paquete; los que no reciben un paquete de datos porque el
+     * canal se llenó lo conservan pendiente como un reenvío.
+     *
+     * @param idPaquete Número del paquete de datos, o -1 si el mensaje no es un paquete de datos.
+     * @param reenvio true si el paquete de datos es un reenvío.
+     * @param sellado true si el mensaje termina con el CRC32C de todo el mensaje, que cubre el id
+     *        y se recalcula para cada destino.
+     * @return false si el canal se llenó sin que el mensaje llegara a ningún miembro; si solo
+     *         faltaron algunos, devuelve true y deja {@link #canalLleno} en true.
+     */
+    private boolean difundir(DatagramChannel canal, ByteBuffer buffer, int idPaquete, boolean reenvio,
+            boolean sellado) throws IOException {
+        canalLleno = false;
+        int bytes = buffer.limit();
+        boolean destinatarios = false;
+        boolean enviado = false;
+        boolean multicast = false;
+        int cantidad = miembros.size();
+        int inicio = turnoMiembros = (turnoMiembros + 1) % cantidad;
+        for (int i = 0; i < cantidad; i++) {
+            SesionTransferenciaArchivo miembro = miembros.get((inicio + i) % cantidad);
+            if (!miembro.isActivo() || (reenvio && !miembro.tieneReenvio(idPaquete))) {
+                continue;
+            }
+            if (miembro.isMulticast()) {
+                multicast = true;
+                continue;
+            }
+            destinatarios = true;
+            if (enviarA(canal, buffer, sellado, miembro.getClave().getIdTransferencia(), miembro.getCliente())) {
+                enviado = true;
+                contarEnvio(idPaquete, reenvio, sellado, bytes);
+                miembro.cobrar(bytes);
+                if (idPaquete >= 0) {
+                    miembro.contarPaquete(bytes, reenvio);
+                }
+                if (reenvio) {
+                    miembro.quitarReenvio(idPaquete);
+                }
+            } else if (!reenvio && idPaquete >= 0) {
+                marcarNoEnviado(miembro, idPaquete);
+            }
+        }
+        if (multicast) {
+            destinatarios = true;
+            boolean aceptado = enviarA(canal, buffer, sellado, idGrupo, grupoMulticast);
+            enviado |= aceptado;
+            if (aceptado) {
+                contarEnvio(idPaquete, reenvio, sellado, bytes);
+            }
+            for (SesionTransferenciaArchivo miembro : miembros) {
+                if (miembro.isActivo() && miembro.isMulticast()) {
+                    if (aceptado && idPaquete >= 0 && (!reenvio || miembro.tieneReenvio(idPaquete))) {
+                        miembro.contarPaquete(bytes, reenvio);
+                    }
+                    if (aceptado && reenvio && miembro.tieneReenvio(idPaquete)) {
+                        miembro.quitarReenvio(idPaquete);
+                    } else if (!aceptado && !reenvio && idPaquete >= 0) {
+                        marcarNoEnviado(miembro, idPaquete);
+                    }
+                }
+            }
+        }
+        if (!enviado && destinatarios && !reenvio && idPaquete >= 0) {
+            // Nadie recibió el paquete: se enviará como paquete nuevo, no como reenvío
+            for (SesionTransferenciaArchivo miembro : miembros) {
+                if (miembro.tieneReenvio(idPaquete)) {
+                    miembro.quitarReenvio(idPaquete);
+                }
+            }
+            pendientesReenvio.clear(idPaquete);
+        }
+        return enviado || !destinatarios;
+    }
+    
+    /**
+     * Cuenta en las métricas un mensaje que el canal aceptó: los paquetes de datos y los de
+     * paridad, que son los únicos mensajes sin sellar que no son datos; FIN no se cuenta. El
+     * turno de la transmisión cuenta todos.
+     */
+    private void contarEnvio(int idPaquete, boolean reenvio, boolean sellado, int bytes) {
+        bytesEnviados += bytes;
+        if (idPaquete >= 0) {
+            metricas.registrarPaquete(bytes, reenvio);
+        } else if (!sellado) {
+            metricas.registrarParidad(bytes);
+        }
+    }
+    
+    /**
+     * Deja pendiente como reenvío un paquete nuevo que el canal no aceptó para un miembro.
+     */
+    private void marcarNoEnviado(SesionTransferenciaArchivo miembro, int idPaquete) {
+        if (pendientesReenvio == null) {
+            pendientesReenvio = new BitSet();
+        }
+        pendientesReenvio.set(idPaquete);
+        miembro.marcarReenvio(idPaquete, idPaquete + 1);
+    }
+    
+    /**
+     * Envía el mensaje a un destino con el id indicado. Después de que el canal se llena no se
+     * intenta con los demás destinos.
+     *
+     * @return true si el canal aceptó el mensaje.
+     */
+    private boolean enviarA(DatagramChannel canal, ByteBuffer buffer, boolean sellado, int id,
+            InetSocketAddress destino) throws IOException {
+        if (canalLleno) {
+            return false;
+        }
+        buffer.putInt(Protocolo.POSICION_ID, id);
+        if (sellado) {
+            Protocolo.resellar(crc, buffer);
+        }
+        buffer.rewind();
+        if (canal.send(buffer, destino) == 0) {
+            canalLleno = true;
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Elige el siguiente paquete a enviar: primero las retransmisiones y después los paquetes
+     * nuevos que quepan en la ventana. Si la ventana está llena programa la espera del acuse.
+     * Con varios miembros las retransmisiones se alternan con los paquetes nuevos, para que las
+     * que pide un cliente que se unió tarde no detengan a los demás.
+     *
+     * @param ahora Tiempo actual según {@link System#nanoTime()}.
+     * @return El número del paquete, o -1 si no hay nada que enviar por ahora.
+     */
+    private int siguienteParaEnviar(long ahora) {
+        int reenvio = pendientesReenvio != null ? pendientesReenvio.nextSetBit(0) : -1;
+        if (reenvio >= 0 && !(turnoNuevo && miembros.size() > 1)) {
+            turnoNuevo = true;
+            return reenvio;
+        }
+        turnoNuevo = false;
+        
+        if (siguientePaquete >= finPaquete) {
+            if (reenvio >= 0) {
+                return reenvio;
+            }
+            proximoEvento = Long.MAX_VALUE;
+            return -1;
+        }
+        
+        if (siguientePaquete - paquetesConfirmados < control.getVentana() || sondaPendiente) {
+            return siguientePaquete;
+        }
+        if (reenvio >= 0) {
+            return reenvio;
+        }
+        
+        // Esperar a que los clientes confirmen paquetes si la ventana está llena
+        if (plazoAcuse == 0) {
+            plazoAcuse = ahora + control.getRto();
+        } else if (ahora - plazoAcuse >= 0) {
+            if (esperasAgotadas > 0 && apartarRezagados()) {
+                plazoAcuse = 0;
+                return siguienteParaEnviar(ahora);
+            }
+            if (++esperasAgotadas >= MAX_INTENTOS) {
+                abortada = true;
+                proximoEvento = Long.MAX_VALUE;
+                return -1;
+            }
+            // El acuse pudo perderse: permitir un paquete de prueba fuera de la ventana sin
+            // tocar lo confirmado, que solo avanza con los acuses de los clientes
+            control.registrarEsperaAgotada(siguientePaquete);
+            sondaPendiente = true;
+            plazoAcuse = ahora + control.getRto();
+            return siguientePaquete;
+        }
+        proximoEvento = plazoAcuse;
+        return -1;
+    }
+    
+    /**
+     * Aparta como rezagados a los miembros que no confirmaron nada después de un paquete de
+     * prueba mientras otros miembros sí avanzaron. Sin ellos la ventana avanza hasta el
+     * siguiente más atrasado; los rezagados siguen recibiendo la transmisión y piden lo que
+     * les falte, y si dejaron de responder se expulsan por inactividad.
+     *
+     * @return true si se apartó a algún miembro.
+     */
+    private boolean apartarRezagados() {
+        int minimo = Integer.MAX_VALUE;
+        int maximo = Integer.MIN_VALUE;
+        for (SesionTransferenciaArchivo miembro : miembros) {
+            if (miembro.isActivo() && !miembro.isRezagado()) {
+                minimo = Math.min(minimo, miembro.getPaquetesConfirmados());
+                maximo = Math.max(maximo, miembro.getPaquetesConfirmados());
+            }
+        }
+        if (minimo >= maximo) {
+            return false;
+        }
+        for (SesionTransferenciaArchivo miembro : miembros) {
+            if (miembro.isActivo() && !miembro.isRezagado() && miembro.getPaquetesConfirmados() == minimo) {
+                Bitacora.registrar("El cliente " + miembro.getClave() + " se quedó atrás en la difusión de "
+                        + getDescripcion() + "; ya no detiene a los demás");
+                miembro.marcarRezagado();
+            }
+        }
+        esperasAgotadas = 0;
+        avanzarVentana();
+        return true;
+    }
+    
+    /**
+     * Marca de tiempo en microsegundos que viaja en los paquetes de datos; solo se usa para
+     * restar marcas del mismo reloj, así que puede dar la vuelta.
+     */
+    private static int marcaTiempo(long nanos) {
+        int marca = (int) TimeUnit.NANOSECONDS.toMicros(nanos);
+        return marca != 0 ? marca : 1; // 0 significa que el acuse no trae marca
+    }
+    
+    /**
+     * @return true si todos los clientes dejaron de responder, o la transmisión falló, y debe cerrarse.
+     */
+    public boolean isAbortada() {
+        return abortada;
+    }
+    
+    /**
+     * @return true si la transmisión no pudo abrir su archivo o falló por un error inesperado.
+     */
+    public boolean isFallida() {
+        return fallida;
+    }
+    
+    /**
+     * @return true si la transmisión no se pudo preparar porque el archivo cambió desde la solicitud.
+     */
+    public boolean isCambiada() {
+        return cambiada;
+    }
+    
+    /**
+     * Aborta la transmisión después de un error inesperado, para que sus sesiones se cierren
+     * sin afectar a las demás del reactor.
+     */
+    void fallar() {
+        fallida = true;
+        abortada = true;
+        proximoEvento = Long.MAX_VALUE;
+    }
+    
+    public boolean isCerrada() {
+        return cerrada;
+    }
+    
+    /**
+     * @return Momento según {@link System#nanoTime()} en que la transmisión necesita ser
+     *         atendida, o {@link Long#MAX_VALUE} si está esperando un mensaje de los clientes.
+     */
+    public long getProximoEvento() {
+        return proximoEvento;
+    }
+    
+    /**
+     * @return Grupo multicast de la transmisión, o null si no usa multicast.
+     */
+    public InetSocketAddress getGrupoMulticast() {
+        return grupoMulticast;
+    }
+    
+    public int getIdGrupo() {
+        return idGrupo;
+    }
+    
+    public int getMiembros() {
+        return miembros.size();
+    }
+    
+    /**
+     * @return true si ya se envió todo el rango y nadie pidió paquetes de nuevo, de modo que
+     *         la transmisión solo espera la confirmación de los clientes.
+     */
+    public boolean isEnviada() {
+        return finEnviado && !hayReenvios();
+    }
+    
+    /**
+     * @return true si algún miembro pidió paquetes que todavía no se le reenvían.
+     */
+    public boolean hayReenvios() {
+        return pendientesReenvio != null && !pendientesReenvio.isEmpty();
+    }
+    
+    /**
+     * @return Bytes de todos los datagramas que aceptó el canal, contando cada destinatario.
+     */
+    public long getBytesEnviados() {
+        return bytesEnviados;
+    }
+    
+    /**
+     * Anota una sesión lista de la transmisión en una ronda del planificador.
+     *
+     * @return true si es la primera sesión lista de la transmisión en esa ronda.
+     */
+    boolean anotarSesionLista(long ronda) {
+        if (this.ronda != ronda) {
+            this.ronda = ronda;
+            sesionesListas = 0;
+        }
+        return ++sesionesListas == 1;
+    }
+    
+    int getSesionesListas() {
+        return sesionesListas;
+    }
+    
+    long getDeficit() {
+        return deficit;
+    }
+    
+    void sumarDeficit(long bytes) {
+        deficit += bytes;
+    }
+    
+    public ControlCongestion getControl() {
+        return control;
+    }
+    
+    public LimitadorTasa getLimitador() {
+        return limitador;
+    }
+    
+    /**
+     * @return Versión del archivo solicitado, o null si la transmisión envía un lote.
+     */
+    public IdentidadArchivo getIdentidadOriginal() {
+        return identidadOriginal;
+    }
+    
+    /**
+     * @return Versión del archivo que se envía, o null si la transmisión envía un lote.
+     */
+    public IdentidadArchivo getIdentidad() {
+        return identidad;
+    }
+    
+    /**
+     * @return true si la transmisión envía un lote de archivos.
+     */
+    public boolean isLote() {
+        return lote != null;
+    }
+    
+    /**
+     * @return La versión del archivo que se envía, o 0 si es un lote, que no se reanuda.
+     */
+    public long getVersion() {
+        return lote != null ? 0 : identidad.getVersion();
+    }
+    
+    /**
+     * @return Códec con que se envía el archivo; los archivos de un lote indican el suyo en el manifiesto.
+     */
+    public byte getCodec() {
+        return lote != null ? Protocolo.CODEC_NINGUNO : CompresionArchivos.codecDe(identidadOriginal, identidad);
+    }
+    
+    /**
+     * @return Tamaño sin comprimir del archivo solicitado, o la suma de los de un lote.
+     */
+    public long getTamanoOriginal() {
+        return lote != null ? lote.getTamanoOriginal() : identidadOriginal.getTamano();
+    }
+    
+    /**
+     * @return El archivo solicitado o el lote, para los registros.
+     */
+    public String getDescripcion() {
+        return lote != null ? lote.toString() : identidadOriginal.getRuta();
+    }
+    
+    /**
+     * @return La huella que llevan los metadatos: la del rango si ya se conoce o 0, que el
+     *         cliente recibe entonces en el FIN. En un lote es la huella del manifiesto.
+     */
+    public long getHuella() {
+        if (lote != null) {
+            return lote.getHuella();
+        }
+        return isHuellaLista() ? huella : 0;
+    }
+    
+    /**
+     * Revisa si ya se conoce la huella del rango, que al reanudar puede estar calculándose. Si
+     * el cálculo falló (el archivo cambió o no se pudo leer) la transmisión falla.
+     *
+     * @return true si ya se conoce la huella del rango.
+     */
+    boolean isHuellaLista() {
+        if (!huellaLista && huellaCalculada != null && huellaCalculada.isDone()) {
+            try {
+                huella = huellaCalculada.join();
+                huellaLista = true;
+            } catch (CompletionException e) {
+                Bitacora.error(e.getCause());
+                fallar();
+            }
+            huellaCalculada = null;
+        }
+        return huellaLista;
+    }
+    
+    public int getTotalPaquetes() {
+        return totalPaquetes;
+    }
+    
+    public int getPrimerPaquete() {
+        return primerPaquete;
+    }
+    
+    public int getFinPaquete() {
+        return finPaquete;
+    }
+    
+    public int getTamanoFragmento() {
+        return tamanoFragmento;
+    }
+    
+    public long getTamanoArchivo() {
+        return tamanoArchivo;
+    }
+    
+    /**
+     * @return Paquetes de datos por bloque de paridad, o 0 si la paridad está desactivada.
+     */
+    public int getPaquetesPorBloque() {
+        return paridad != null ? paridad.getPaquetesPorBloque() : 0;
+    }
+    
+    /**
+     * @return Paquetes de paridad por bloque, o 0 si la paridad está desactivada.
+     */
+    public int getPaquetesParidad() {
+        return paridad != null ? paridad.getPaquetesParidad() : 0;
+    }
+    
+    /**
+     * Cierra el archivo asociado a la transmisión, o libera el canal compartido del índice.
+     * Un lote cierra los archivos que tenga abiertos.
+     */
+    @Override
+    public void close() {
+        if (cerrada) {
+            return;
+        }
+        cerrada = true;
+        if (grupoMulticast != null) {
+            // El puerto se puede reutilizar hasta que la transmisión terminó de enviar
+            multicast.liberarGrupo(grupoMulticast);
+        }
+        if (lote != null) {
+            lote.close();
+            return;
+        }
+        if (canalArchivo == null) {
+            return;
+        }
+        if (canalCompartido) {
+            archivoOriginal.liberar();
+            return;
+        }
+        try {
+            canalArchivo.close();
+        } catch (IOException e) {
+            Bitacora.error(e);
+        }
+    }
+}